@@ -1,14 +1,39 @@
 package org.squirrelframework.foundation.component;
 
+import java.security.SecureRandom;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringUtils;
 
 public interface IdProvider {
     String get();
     
+    /**
+     * Provide unique identifier generated from 64-bit sequence prefixed by random 48-bit salt of the process. 
+     * Sequence starts from current time millis shifted left by 20 bits, so that identifiers are not reused by 
+     * later process unless previous process generated more than one million identifiers per millisecond on 
+     * average, and salt keeps identifiers of processes started at the same time apart. Each thread reserves a 
+     * block of sequence at a time, hence generating identifier does not contend on shared state.
+     */
     public class Default implements IdProvider, SquirrelSingleton {
         private static IdProvider instance = new Default();
+        
+        private static final int BLOCK_SIZE = 1024;
+        
+        private static final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 20);
+        
+        // 48-bit random salt written as fixed 10 digits, so that salt and sequence cannot run into each other
+        private static final String salt = StringUtils.leftPad(Long.toString(
+                new SecureRandom().nextLong() & 0xFFFFFFFFFFFFL, Character.MAX_RADIX), 10, '0');
+        
+        private static final ThreadLocal<long[]> blocks = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                // next id and limit of reserved block
+                return new long[2];
+            }
+        };
 
         public static IdProvider getInstance() {
             return instance;
@@ -18,9 +43,42 @@ public interface IdProvider {
             Default.instance = instance;
         }
         
+        /**
+         * @return next id unique within current process
+         */
+        public static long nextId() {
+            long[] block = blocks.get();
+            if(block[0]==block[1]) {
+                block[0] = sequence.getAndAdd(BLOCK_SIZE);
+                block[1] = block[0] + BLOCK_SIZE;
+            }
+            return block[0]++;
+        }
+        
+        @Override
+        public String get() {
+            return salt + Long.toString(nextId(), Character.MAX_RADIX);
+        }
+    }
+    
+    /**
+     * Provide decimal identifier of {@link Default#nextId()} without salt, which is unique within current process 
+     * and required by stores addressing state machine by primitive long id, e.g. OffHeapStateMachineStore.
+     */
+    public class Numeric implements IdProvider, SquirrelSingleton {
+        private static IdProvider instance = new Numeric();
+
+        public static IdProvider getInstance() {
+            return instance;
+        }
+
+        public static void setInstance(IdProvider instance) {
+            Numeric.instance = instance;
+        }
+        
         @Override
         public String get() {
-            return RandomStringUtils.randomAlphanumeric(10);
+            return Long.toString(Default.nextId());
         }
     }
     
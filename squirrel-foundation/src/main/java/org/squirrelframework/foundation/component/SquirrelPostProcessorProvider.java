@@ -14,6 +14,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SquirrelPostProcessorProvider implements SquirrelComponent, SquirrelSingleton {
     
@@ -30,6 +31,12 @@ public class SquirrelPostProcessorProvider implements SquirrelComponent, Squirre
     private Map<Class<?>, SquirrelPostProcessor<?>> postProcessorRegistry = 
             new ConcurrentHashMap<Class<?>, SquirrelPostProcessor<?>>();
     
+    private final AtomicInteger registryVersion = new AtomicInteger();
+    
+    // callable post processors of component class stamped with registry version when they were scanned
+    private final Map<Class<?>, PostProcessorChain> callablePostProcessors = 
+            new ConcurrentHashMap<Class<?>, PostProcessorChain>();
+    
     /**
      * Register a new post processor class for a certain component class, note existing registration 
      * are overwritten without warning.
@@ -60,6 +67,7 @@ public class SquirrelPostProcessorProvider implements SquirrelComponent, Squirre
         } else {
             postProcessorRegistry.put(componentClass, postProcessor);
         }
+        invalidateCaches();
     }
     
     public <T> void register(Class<T> componentClass, Class<? extends SquirrelPostProcessor<? super T>> postProcessorClass) {
@@ -69,10 +77,25 @@ public class SquirrelPostProcessorProvider implements SquirrelComponent, Squirre
     
     public void unregister(Class<?> componentClass) {
         postProcessorRegistry.remove(componentClass);
+        invalidateCaches();
     }
     
     public void clearRegistry() {
         postProcessorRegistry.clear();
+        invalidateCaches();
+    }
+    
+    private void invalidateCaches() {
+        registryVersion.incrementAndGet();
+        callablePostProcessors.clear();
+    }
+    
+    /**
+     * @return version of post processor registry, which is changed whenever post processor is registered 
+     * or unregistered. Post processors resolved by caller can be reused as long as version is not changed.
+     */
+    public int getRegistryVersion() {
+        return registryVersion.get();
     }
     
     @SuppressWarnings("unchecked")
@@ -80,21 +103,32 @@ public class SquirrelPostProcessorProvider implements SquirrelComponent, Squirre
         return (SquirrelPostProcessor<T>)postProcessorRegistry.get(componentClass);
     }
     
+    /**
+     * @param componentClass component class
+     * @param <T> type of component class
+     * @return unmodifiable list of post processors registered for component class or its super types
+     */
     @SuppressWarnings("unchecked")
     public <T> List<SquirrelPostProcessor<? super T>> getCallablePostProcessors(Class<T> componentClass) {
-        List<SquirrelPostProcessor<? super T>> postProcessors = Lists.newArrayList();
-        for(Entry<Class<?>, SquirrelPostProcessor<?>> entry : postProcessorRegistry.entrySet()) {
-            if(entry.getKey().isAssignableFrom(componentClass)) {
-                SquirrelPostProcessor<? super T> postProcessor = (SquirrelPostProcessor<? super T>)entry.getValue();
-                postProcessors.add(postProcessor);
+        PostProcessorChain chain = callablePostProcessors.get(componentClass);
+        if(chain==null || chain.version!=registryVersion.get()) {
+            // read version before scanning, so that scan racing with registry change is never reused
+            int version = registryVersion.get();
+            List<SquirrelPostProcessor<?>> postProcessors = Lists.newArrayList();
+            for(Entry<Class<?>, SquirrelPostProcessor<?>> entry : postProcessorRegistry.entrySet()) {
+                if(entry.getKey().isAssignableFrom(componentClass)) {
+                    postProcessors.add(entry.getValue());
+                }
             }
+            chain = new PostProcessorChain(version, Collections.unmodifiableList(postProcessors));
+            callablePostProcessors.put(componentClass, chain);
         }
-        return postProcessors;
+        return (List<SquirrelPostProcessor<? super T>>)(List<?>)chain.postProcessors;
     }
     
     public <T> SquirrelPostProcessor<? super T> getBestMatchPostProcessor(Class<T> componentClass,
             Comparator<SquirrelPostProcessor<? super T>> comparator) {
-        List<SquirrelPostProcessor<? super T>> processors = getCallablePostProcessors(componentClass);
+        List<SquirrelPostProcessor<? super T>> processors = Lists.newArrayList(getCallablePostProcessors(componentClass));
         if (processors.isEmpty()) { return null; }
         Collections.sort(processors, comparator);
         return processors.get(0);
@@ -111,4 +145,15 @@ public class SquirrelPostProcessorProvider implements SquirrelComponent, Squirre
     public <T> void register(TypeReference<T> typeRefComponent, SquirrelPostProcessor<? super T> postProcessor) {
         register(typeRefComponent.getRawType(), postProcessor);
     }
+    
+    private static class PostProcessorChain {
+        final int version;
+        
+        final List<SquirrelPostProcessor<?>> postProcessors;
+        
+        PostProcessorChain(int version, List<SquirrelPostProcessor<?>> postProcessors) {
+            this.version = version;
+            this.postProcessors = postProcessors;
+        }
+    }
 }
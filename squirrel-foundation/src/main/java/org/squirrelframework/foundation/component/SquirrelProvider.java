@@ -1,11 +1,19 @@
 package org.squirrelframework.foundation.component;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.squirrelframework.foundation.exception.ErrorCodes;
+import org.squirrelframework.foundation.exception.SquirrelRuntimeException;
 import org.squirrelframework.foundation.util.ReflectUtils;
 import org.squirrelframework.foundation.util.TypeReference;
 
@@ -27,7 +35,17 @@ public class SquirrelProvider implements SquirrelSingleton {
         SquirrelProvider.instance = instance;
     }
 
+    private static final Class<?>[] NO_ARG_TYPES = new Class<?>[0];
+
     private Map<Class<?>, Class<?>> implementationRegistry = new ConcurrentHashMap<Class<?>, Class<?>>();
+    
+    private final AtomicInteger registryVersion = new AtomicInteger();
+    
+    // resolved implementation class stamped with registry version when it was resolved
+    private final Map<Class<?>, Resolution> resolvedImplementations = new ConcurrentHashMap<Class<?>, Resolution>();
+    
+    // constructor handle of implementation class adapted to (Object[])Object
+    private final Map<ConstructorKey, MethodHandle> constructorHandles = new ConcurrentHashMap<ConstructorKey, MethodHandle>();
 
     public <T> T newInstance(TypeReference<T> typeRef) {
         return newInstance(typeRef, null, null);
@@ -59,10 +77,39 @@ public class SquirrelProvider implements SquirrelSingleton {
     public <T> T newInstance(Class<T> clz, Class<?>[] argTypes, Object[] args) {
         Class<T> implementationClass = getImplementation(clz);
         if (args == null) {
-            return postProcess(clz, ReflectUtils.newInstance(implementationClass));
+            return postProcess(clz, construct(implementationClass, NO_ARG_TYPES, new Object[0]));
+        }
+        return postProcess(clz, construct(implementationClass, argTypes!=null ? argTypes : NO_ARG_TYPES, args));
+    }
+    
+    private <T> T construct(Class<T> implementationClass, Class<?>[] argTypes, Object[] args) {
+        MethodHandle handle = getConstructorHandle(implementationClass, argTypes);
+        try {
+            Object instance = handle.invokeExact(args);
+            return implementationClass.cast(instance);
+        } catch (Throwable t) {
+            throw new SquirrelRuntimeException(t, ErrorCodes.CONSTRUCT_NEW_INSTANCE_ERROR, 
+                    implementationClass.getName(), Arrays.toString(args));
+        }
+    }
+    
+    private MethodHandle getConstructorHandle(Class<?> implementationClass, Class<?>[] argTypes) {
+        ConstructorKey key = new ConstructorKey(implementationClass, argTypes);
+        MethodHandle handle = constructorHandles.get(key);
+        if (handle == null) {
+            Constructor<?> constructor = ReflectUtils.getConstructor(implementationClass, argTypes);
+            try {
+                constructor.setAccessible(true);
+                handle = MethodHandles.lookup().unreflectConstructor(constructor).asFixedArity()
+                        .asSpreader(Object[].class, argTypes.length)
+                        .asType(MethodType.methodType(Object.class, Object[].class));
+            } catch (Exception e) {
+                throw new SquirrelRuntimeException(e, ErrorCodes.CONSTRUCT_NEW_INSTANCE_ERROR, 
+                        implementationClass.getName(), Arrays.toString(argTypes));
+            }
+            constructorHandles.put(key, handle);
         }
-        Constructor<T> constructor = ReflectUtils.getConstructor(implementationClass, argTypes);
-        return postProcess(clz, ReflectUtils.newInstance(constructor, args));
+        return handle;
     }
     
     private <T> T postProcess(Class<T> clz, T component) {
@@ -84,14 +131,23 @@ public class SquirrelProvider implements SquirrelSingleton {
     public void register(Class<?> clazz, Class<?> implementationClass) {
         // TODO: handle the case that there is already an entry...
         implementationRegistry.put(clazz, implementationClass);
+        invalidateCaches();
     }
     
     public void unregister(Class<?> clazz) {
         implementationRegistry.remove(clazz);
+        invalidateCaches();
     }
     
     public void clearRegistry() {
         implementationRegistry.clear();
+        invalidateCaches();
+    }
+    
+    private void invalidateCaches() {
+        registryVersion.incrementAndGet();
+        resolvedImplementations.clear();
+        constructorHandles.clear();
     }
 
     /**
@@ -105,8 +161,16 @@ public class SquirrelProvider implements SquirrelSingleton {
      * @param clz registered class
      * @return current registered implementation
      */
+    @SuppressWarnings("unchecked")
     public <T> Class<T> getImplementation(Class<T> clz) {
-        return resolveImplIfInterface(clz, new HashSet<Class<?>>());
+        Resolution resolution = resolvedImplementations.get(clz);
+        if (resolution == null || resolution.version != registryVersion.get()) {
+            // read version before resolving, so that resolution racing with registry change is never reused
+            int version = registryVersion.get();
+            resolution = new Resolution(version, resolveImplIfInterface(clz, new HashSet<Class<?>>()));
+            resolvedImplementations.put(clz, resolution);
+        }
+        return (Class<T>) resolution.implementationClass;
     }
 
     private <T> Class<T> resolveImplIfInterface(Class<T> clz, Set<Class<?>> visited) {
@@ -125,8 +189,9 @@ public class SquirrelProvider implements SquirrelSingleton {
         if (possibleImpl == null) {
             possibleImpl = findImplementationClass(clz);
             // We only register actual implementations so cannot introduce
-            // cycles through this...
-            register(clz, possibleImpl);
+            // cycles through this... Conventional implementation does not change 
+            // any resolution, hence resolution caches are kept.
+            implementationRegistry.put(clz, possibleImpl);
         }
 
         return resolveImplIfInterface(possibleImpl, visited);
@@ -152,4 +217,39 @@ public class SquirrelProvider implements SquirrelSingleton {
         }
         return (Class<T>) implementationClass;
     }
+    
+    private static class Resolution {
+        final int version;
+        
+        final Class<?> implementationClass;
+        
+        Resolution(int version, Class<?> implementationClass) {
+            this.version = version;
+            this.implementationClass = implementationClass;
+        }
+    }
+    
+    private static class ConstructorKey {
+        final Class<?> type;
+        
+        final List<Class<?>> argTypes;
+        
+        ConstructorKey(Class<?> type, Class<?>[] argTypes) {
+            this.type = type;
+            this.argTypes = Arrays.asList(argTypes);
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + argTypes.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof ConstructorKey)) return false;
+            ConstructorKey other = (ConstructorKey) obj;
+            return type.equals(other.type) && argTypes.equals(other.argTypes);
+        }
+    }
 }
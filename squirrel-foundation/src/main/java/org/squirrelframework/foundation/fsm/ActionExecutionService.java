@@ -42,6 +42,11 @@ public interface ActionExecutionService<T extends StateMachine<T, S, E, C>, S, E
      */
     void setDummyExecution(boolean dummyExecution);
 
+    /**
+     * @return whether actions are not actually invoked by this execution service
+     */
+    boolean isDummyExecution();
+
     /**
      * Add action and all the execution parameters into execution context;
      *
@@ -0,0 +1,21 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Policy of merging fired event with equal event which is still queued by busy state machine in the same
+ * {@link EventPriority} class. Policy is declared per event by
+ * {@link StateMachineBuilder#defineEventCoalescing(Object, EventCoalescingPolicy)}.
+ *
+ * @author Henry.He
+ *
+ */
+public enum EventCoalescingPolicy {
+    /**
+     * Fired event is discarded while equal event is queued, e.g. repeated refresh request.
+     */
+    KEEP_PENDING,
+    /**
+     * Context of fired event replaces context of queued equal event, which keeps its place in queue, e.g.
+     * newer price update supersedes older one.
+     */
+    REPLACE_PENDING
+}
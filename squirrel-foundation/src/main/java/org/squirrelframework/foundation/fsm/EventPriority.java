@@ -0,0 +1,24 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Priority class of event queued by busy state machine. Queued events of higher class are processed
+ * first, and events of the same class are processed in the order they were fired.
+ *
+ * @author Henry.He
+ *
+ */
+public enum EventPriority {
+    /**
+     * Control event, e.g. cancel or terminate request, which overtakes other queued events. Event fired
+     * by {@link StateMachine#fireImmediate(Object, Object)} is of this class.
+     */
+    CONTROL,
+    /**
+     * Default class of fired event.
+     */
+    NORMAL,
+    /**
+     * Bulk event which can be delayed by events of other classes.
+     */
+    BULK
+}
@@ -0,0 +1,30 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Policy applied when event is fired to state machine whose event queue already reached its capacity.
+ *
+ * @author Henry.He
+ *
+ */
+public enum EventQueueOverflowPolicy {
+    /**
+     * Fail the fire operation with {@link IllegalStateException}.
+     */
+    REJECT,
+    /**
+     * Block the firing thread until queue has room or block timeout elapsed, after which the fire
+     * operation is rejected. Zero block timeout, which is the default, waits until queue has room. Event 
+     * fired by the thread processing events of the state machine is rejected immediately, because no room 
+     * can be made while it is waiting.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued event of the lowest {@link EventPriority} class to make room for fired event.
+     */
+    DROP_OLDEST,
+    /**
+     * Discard fired event if an equal event with equal context is already queued in the same
+     * {@link EventPriority} class, otherwise reject the fire operation.
+     */
+    COALESCE
+}
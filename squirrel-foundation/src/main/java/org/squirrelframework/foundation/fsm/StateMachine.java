@@ -9,6 +9,7 @@ import org.squirrelframework.foundation.util.ReflectUtils;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Interface for finite state machine.
@@ -30,13 +31,42 @@ public interface StateMachine<T extends StateMachine<T, S, E, C>, S, E, C> exten
     void fire(E event, C context);
     
     /**
-     * Fires event with context immediately, if current state machine is busy, the next processing event 
-     * is this event.
+     * Fires event with context immediately, if current state machine is busy, the event is processed 
+     * ahead of other queued events except immediate events fired earlier.
      * @param event the event
      * @param context external context
      */
     void fireImmediate(E event, C context);
     
+    /**
+     * Fires event with priority class, if current state machine is busy, the event is processed after 
+     * queued events of higher class and events of the same class fired earlier.
+     * @param event the event
+     * @param context external context
+     * @param priority priority class of event
+     */
+    void fire(E event, C context, EventPriority priority);
+    
+    /**
+     * Fires event after delay. Scheduled event is delivered by timer shared by all the state machines, 
+     * whose precision is 10 milliseconds.
+     * @param event the event
+     * @param context external context
+     * @param delay delay before event is fired
+     * @param unit time unit of delay
+     * @return handle to cancel scheduled event
+     */
+    Timeout fireDelayed(E event, C context, long delay, TimeUnit unit);
+    
+    /**
+     * Fires event at specified time
+     * @param event the event
+     * @param context external context
+     * @param timeMillis time in milliseconds since epoch, past time fires event as soon as possible
+     * @return handle to cancel scheduled event
+     */
+    Timeout fireAt(E event, C context, long timeMillis);
+    
     /**
      * Test transition result under circumstance
      * @param event test event
@@ -166,6 +196,25 @@ public interface StateMachine<T extends StateMachine<T, S, E, C>, S, E, C> exten
      */
     boolean loadSavedData(StateMachineData.Reader<T, S, E, C> savedData);
     
+    /**
+     * Dump changes of state machine data made after provided version. Version of returned delta can be
+     * used as the base version of next dump. Data of current linked state is always included.
+     * 
+     * @param sinceVersion base version, 0 means dump all the data
+     * @return changes of state machine data
+     */
+    StateMachineData.Delta<T, S, E, C> dumpDelta(long sinceVersion);
+    
+    /**
+     * Apply changes of state machine data on current state machine. The same as 
+     * {@link #loadSavedData(StateMachineData.Reader)}, it can only be done when state machine is not 
+     * processing events.
+     * 
+     * @param delta changes of state machine data
+     * @return true if apply delta success otherwise false
+     */
+    boolean applyDelta(StateMachineData.Delta<T, S, E, C> delta);
+    
     /**
      * @return whether state machine is context sensitive
      */
@@ -198,6 +247,11 @@ public interface StateMachine<T extends StateMachine<T, S, E, C>, S, E, C> exten
     
     boolean isError();
     
+    /**
+     * @return number of events waiting to be processed
+     */
+    int getQueuedEventSize();
+    
     interface StateMachineListener<T extends StateMachine<T, S, E, C>, S, E, C> {
         public static final String METHOD_NAME = "stateMachineEvent";
         // leverage bridge method to call the method of actual listener
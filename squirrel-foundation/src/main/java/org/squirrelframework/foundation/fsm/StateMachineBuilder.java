@@ -206,6 +206,14 @@ public interface StateMachineBuilder<T extends StateMachine<T, S, E, C>, S, E, C
      */
     void defineTerminateEvent(E terminateEvent);
     
+    /**
+     * Define how event fired to busy state machine is merged with equal event still queued, instead of 
+     * being queued again
+     * @param event coalesced event
+     * @param policy coalescing policy of event
+     */
+    void defineEventCoalescing(E event, EventCoalescingPolicy policy);
+    
     /**
      * Define on entry actions for state
      * @param stateId the id of state
@@ -249,4 +257,27 @@ public interface StateMachineBuilder<T extends StateMachine<T, S, E, C>, S, E, C
      * @param configure state machine default configuration
      */
     void setStateMachineConfiguration(StateMachineConfiguration configure);
+    
+    /**
+     * Set max number of released state machine instances kept by this builder for reuse. Instance released 
+     * by {@link #releaseStateMachine(StateMachine)} is reset to newly created state and handed out again by 
+     * newStateMachine without extra parameters. Fields declared by state machine implementation class are 
+     * not reset. Only instances created after instance pool enabled can be released.
+     * @param maximumPoolSize max number of pooled instances, zero means instance pool disabled
+     */
+    void setInstancePoolSize(int maximumPoolSize);
+    
+    /**
+     * Release terminated state machine instance into instance pool. Caller must not use the instance 
+     * anymore after it was released, as it may be handed out by newStateMachine to others.
+     * @param stateMachine terminated state machine instance created by this builder
+     * @return whether instance was kept by instance pool
+     */
+    boolean releaseStateMachine(T stateMachine);
+    
+    /**
+     * @return aggregated state residency statistics of all the state machine instances created by this 
+     * builder with state residency tracking enabled
+     */
+    StateResidencyStatistics<S> getStateResidencyStatistics();
 }
@@ -1,5 +1,7 @@
 package org.squirrelframework.foundation.fsm;
 
+import java.util.concurrent.TimeUnit;
+
 import org.squirrelframework.foundation.component.IdProvider;
 import org.squirrelframework.foundation.component.SquirrelSingleton;
 
@@ -39,8 +41,24 @@ public class StateMachineConfiguration implements SquirrelSingleton {
 
     private boolean isTerminateEventTriggerExitActions = true;
 
+    private boolean isStateResidencyTrackingEnabled = false;
+
+    private boolean isLightweightInstanceEnabled = false;
+
     private IdProvider idProvider = IdProvider.Default.getInstance();
     
+    private StateMachineEventLog eventLog = null;
+    
+    private int eventQueueCapacity = Integer.MAX_VALUE;
+    
+    private EventQueueOverflowPolicy eventQueueOverflowPolicy = EventQueueOverflowPolicy.REJECT;
+    
+    private long eventQueueBlockTimeout = 0;
+    
+    private int eventQueueStarvationLimit = 32;
+    
+    private TimerCatchUpPolicy timerCatchUpPolicy = TimerCatchUpPolicy.FIRE_ONCE;
+    
     public boolean isAutoStartEnabled() {
         return isAutoStartEnabled;
     }
@@ -113,4 +131,142 @@ public class StateMachineConfiguration implements SquirrelSingleton {
         return isTerminateEventTriggerExitActions;
     }
 
+    public boolean isStateResidencyTrackingEnabled() {
+        return isStateResidencyTrackingEnabled;
+    }
+
+    /**
+     * Enable state residency tracking. When enabled, time elapsed between state entry and exit is
+     * aggregated into {@link StateMachineBuilder#getStateResidencyStatistics()}.
+     * @param isStateResidencyTrackingEnabled whether state residency tracking is enabled
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration enableStateResidencyTracking(boolean isStateResidencyTrackingEnabled) {
+        this.isStateResidencyTrackingEnabled = isStateResidencyTrackingEnabled;
+        return this;
+    }
+
+    public boolean isLightweightInstanceEnabled() {
+        return isLightweightInstanceEnabled;
+    }
+
+    /**
+     * Enable lightweight state machine instance. Lightweight instance does not own action execution
+     * service, but borrows one shared by the current thread while processing event. Dedicated execution
+     * service is only created when action execution listener is added to the instance.
+     * @param isLightweightInstanceEnabled whether lightweight instance is enabled
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration enableLightweightInstance(boolean isLightweightInstanceEnabled) {
+        this.isLightweightInstanceEnabled = isLightweightInstanceEnabled;
+        return this;
+    }
+
+    public StateMachineEventLog getEventLog() {
+        return eventLog;
+    }
+
+    /**
+     * Attach durable event log to state machine. Start, accepted events and terminate of state machine
+     * will be appended to the event log, and state machine can be recovered by 
+     * {@link StateMachineEventLog#recover(StateMachineBuilder, Object...)}.
+     * @param eventLog event log of state machine, null means no event log
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setEventLog(StateMachineEventLog eventLog) {
+        this.eventLog = eventLog;
+        return this;
+    }
+
+    public int getEventQueueCapacity() {
+        return eventQueueCapacity;
+    }
+
+    /**
+     * Bound the number of events queued by state machine while it is processing event. Event fired when
+     * queue is full is handled by {@link #getEventQueueOverflowPolicy()}. Queue is unbounded by default.
+     * @param eventQueueCapacity max number of queued events
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setEventQueueCapacity(int eventQueueCapacity) {
+        if(eventQueueCapacity<=0) {
+            throw new IllegalArgumentException("Event queue capacity must be positive.");
+        }
+        this.eventQueueCapacity = eventQueueCapacity;
+        return this;
+    }
+
+    public EventQueueOverflowPolicy getEventQueueOverflowPolicy() {
+        return eventQueueOverflowPolicy;
+    }
+
+    /**
+     * @param eventQueueOverflowPolicy policy applied when event fired to full event queue
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setEventQueueOverflowPolicy(EventQueueOverflowPolicy eventQueueOverflowPolicy) {
+        if(eventQueueOverflowPolicy==null) {
+            throw new IllegalArgumentException("Event queue overflow policy cannot be null.");
+        }
+        this.eventQueueOverflowPolicy = eventQueueOverflowPolicy;
+        return this;
+    }
+
+    /**
+     * @return max time in milliseconds firing thread is blocked by {@link EventQueueOverflowPolicy#BLOCK}, 
+     * zero blocks until queue has room
+     */
+    public long getEventQueueBlockTimeout() {
+        return eventQueueBlockTimeout;
+    }
+
+    /**
+     * @param timeout max time firing thread is blocked by {@link EventQueueOverflowPolicy#BLOCK}, zero blocks 
+     * until queue has room
+     * @param unit time unit of timeout
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setEventQueueBlockTimeout(long timeout, TimeUnit unit) {
+        if(timeout<0) {
+            throw new IllegalArgumentException("Event queue block timeout cannot be negative.");
+        }
+        this.eventQueueBlockTimeout = unit.toMillis(timeout);
+        return this;
+    }
+
+    public int getEventQueueStarvationLimit() {
+        return eventQueueStarvationLimit;
+    }
+
+    /**
+     * Limit the number of times queued event of lower {@link EventPriority} class can be passed over by 
+     * events of higher class, after which it is processed next.
+     * @param eventQueueStarvationLimit max number of times queued event is passed over
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setEventQueueStarvationLimit(int eventQueueStarvationLimit) {
+        if(eventQueueStarvationLimit<=0) {
+            throw new IllegalArgumentException("Event queue starvation limit must be positive.");
+        }
+        this.eventQueueStarvationLimit = eventQueueStarvationLimit;
+        return this;
+    }
+
+    public TimerCatchUpPolicy getTimerCatchUpPolicy() {
+        return timerCatchUpPolicy;
+    }
+
+    /**
+     * @param timerCatchUpPolicy policy applied to timed state timer which became due before saved data 
+     * was loaded
+     * @return state machine configuration
+     */
+    public StateMachineConfiguration setTimerCatchUpPolicy(TimerCatchUpPolicy timerCatchUpPolicy) {
+        if(timerCatchUpPolicy==null) {
+            throw new IllegalArgumentException("Timer catch up policy cannot be null.");
+        }
+        this.timerCatchUpPolicy = timerCatchUpPolicy;
+        return this;
+    }
+
 }
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class is used to hold all the internal data of state machine. User can
@@ -42,6 +43,137 @@ public interface StateMachineData<T extends StateMachine<T, S, E, C>, S, E, C> e
      */
     Writer<T, S, E, C> write();
     
+    /**
+     * Version of state machine data is increased whenever any data is changed. It can be used as
+     * checkpoint to dump changes through {@link #dumpDelta(long)}.
+     * 
+     * @return current version of state machine data
+     */
+    long version();
+    
+    /**
+     * Dump the changes made after provided version. Type information is not included in delta, and
+     * {@code dumpDelta(0)} returns all the data.
+     * 
+     * @param sinceVersion version of last checkpoint
+     * @return changes made after provided version
+     */
+    Delta<T, S, E, C> dumpDelta(long sinceVersion);
+    
+    /**
+     * Apply changes dumped by {@link #dumpDelta(long)} into current state machine data
+     * 
+     * @param delta changes of state machine data
+     */
+    void applyDelta(Delta<T, S, E, C> delta);
+    
+    /**
+     * Single valued field of state machine data tracked by delta
+     */
+    public enum Field {
+        IDENTIFIER, CURRENT_STATE, LAST_STATE, INITIAL_STATE, START_CONTEXT
+    }
+    
+    /**
+     * Changes of state machine data between two versions. Removed history or sub states are presented
+     * as null value or empty list in the corresponding map.
+     */
+    public interface Delta<T extends StateMachine<T, S, E, C>, S, E, C> extends Serializable {
+        /**
+         * @return base version of the changes
+         */
+        long sinceVersion();
+        
+        /**
+         * @return version of state machine data when delta dumped
+         */
+        long version();
+        
+        /**
+         * @return changed single valued fields
+         */
+        Set<Field> changedFields();
+        
+        String identifier();
+        
+        S currentState();
+        
+        S lastState();
+        
+        S initialState();
+        
+        C startContext();
+        
+        /**
+         * @return changed last active child state keyed by parent state, null value means removed
+         */
+        Map<S, S> lastActiveChildStates();
+        
+        /**
+         * @return changed sub states keyed by parallel state, empty list means removed
+         */
+        Map<S, List<S>> subStates();
+        
+        /**
+         * @return changed linked state data keyed by linked state, null value means removed
+         */
+        Map<S, Reader<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateData();
+        
+        /**
+         * @return true if nothing changed
+         */
+        boolean isEmpty();
+    }
+    
+    /**
+     * Timer armed by timed state which was pending when state machine data was saved
+     */
+    public final class PendingTimer implements Serializable {
+        private static final long serialVersionUID = -3406437262353404532L;
+        
+        private final long dueTime;
+        
+        private final long period;
+        
+        public PendingTimer(long dueTime, long period) {
+            this.dueTime = dueTime;
+            this.period = period;
+        }
+        
+        /**
+         * @return time in milliseconds since epoch when timer is next due
+         */
+        public long getDueTime() {
+            return dueTime;
+        }
+        
+        /**
+         * @return period in milliseconds of periodic timer, or 0 for timer fired once
+         */
+        public long getPeriod() {
+            return period;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof PendingTimer)) {
+                return false;
+            }
+            PendingTimer other = (PendingTimer)obj;
+            return dueTime==other.dueTime && period==other.period;
+        }
+        
+        @Override
+        public int hashCode() {
+            return 31*Long.hashCode(dueTime)+Long.hashCode(period);
+        }
+        
+        @Override
+        public String toString() {
+            return "PendingTimer[dueTime="+dueTime+", period="+period+"]";
+        }
+    }
+    
     public interface Reader<T extends StateMachine<T, S, E, C>, S, E, C> extends Serializable {
         /**
          * @return state machine identifier
@@ -152,6 +284,20 @@ public interface StateMachineData<T extends StateMachine<T, S, E, C>, S, E, C> e
         Map<S, ImmutableState<T, S, E, C>> originalStates();
 
         Reader<? extends StateMachine<?, S, E, C>, S, E, C> linkedStateDataOf(S linkedState);
+        
+        /**
+         * Pending timers are recorded when state machine data is saved, and they are not tracked by
+         * {@link StateMachineData#dumpDelta(long)}.
+         * 
+         * @return timed states whose timer was pending when data was saved
+         */
+        Collection<S> pendingTimerStates();
+        
+        /**
+         * @param timedState id of timed state
+         * @return pending timer of timed state, or null if there is none
+         */
+        PendingTimer pendingTimerOf(S timedState);
     }
 
     public interface Writer<T extends StateMachine<T, S, E, C>, S, E, C> extends Serializable {
@@ -256,5 +402,13 @@ public interface StateMachineData<T extends StateMachine<T, S, E, C>, S, E, C> e
         void linkedStateDataOn(
                 S linkedState,
                 StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C> linkStateData);
+        
+        /**
+         * Write pending timer of timed state
+         * 
+         * @param timedState id of timed state
+         * @param timer pending timer, null to remove
+         */
+        void pendingTimerFor(S timedState, PendingTimer timer);
     }
 }
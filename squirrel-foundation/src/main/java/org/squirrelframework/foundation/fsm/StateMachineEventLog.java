@@ -0,0 +1,74 @@
+package org.squirrelframework.foundation.fsm;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * Durable log of state machine start, accepted events and terminate. Event log is attached to state
+ * machine through {@link StateMachineConfiguration#setEventLog(StateMachineEventLog)}, and state machines
+ * can be rebuilt by replaying logged events without invoking any action.
+ * <p>
+ * Event context is only logged when it is serializable, otherwise null will be replayed instead.
+ *
+ * @author Henry.He
+ *
+ */
+public interface StateMachineEventLog extends Closeable {
+
+    public enum AppendMode {
+        /**
+         * Event is appended after transition accepted but before any transition action executed
+         */
+        BEFORE_EXECUTION,
+        /**
+         * Event is appended after transition completed
+         */
+        AFTER_EXECUTION
+    }
+
+    /**
+     * @return when accepted event is appended
+     */
+    AppendMode getAppendMode();
+
+    /**
+     * Append start of state machine
+     * @param identifier state machine identifier
+     * @param initialState initial state of state machine
+     * @param context start context
+     * @return sequence number of log record
+     */
+    long appendStart(String identifier, Object initialState, Object context);
+
+    /**
+     * Append accepted event of state machine
+     * @param identifier state machine identifier
+     * @param event accepted event
+     * @param context event context
+     * @return sequence number of log record
+     */
+    long appendEvent(String identifier, Object event, Object context);
+
+    /**
+     * Append terminate of state machine
+     * @param identifier state machine identifier
+     * @return sequence number of log record
+     */
+    long appendTerminate(String identifier);
+
+    /**
+     * Block until all the appended records are durable
+     */
+    void sync();
+
+    /**
+     * Rebuild all the not terminated state machines by replaying logged events through dummy execution,
+     * which means no action will be invoked during replay. Timers of active timed states are armed again after
+     * replay, counting their delay from recovery as log records carry no time.
+     * @param builder builder of logged state machines
+     * @param extraParams extra parameters to create state machine instance
+     * @return rebuilt state machines keyed by identifier
+     */
+    <T extends StateMachine<T, S, E, C>, S, E, C> Map<String, T> recover(
+            StateMachineBuilder<T, S, E, C> builder, Object... extraParams);
+}
@@ -0,0 +1,70 @@
+package org.squirrelframework.foundation.fsm;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manager which owns state machine instances and processes their events on shard threads. Identifier
+ * of each state machine is hashed onto one of the shards, and all the events of the state machine are
+ * processed by the single thread of that shard, so that event processing does not need any lock.
+ * <p>
+ * State machine added to manager should not be accessed directly any more, event should be submitted
+ * through {@link #submit(String, Object, Object)} instead.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public interface StateMachineManager<T extends StateMachine<T, S, E, C>, S, E, C> {
+
+    /**
+     * Hand over state machine to the shard of its identifier
+     * @param stateMachine added state machine
+     * @return identifier of state machine
+     */
+    String add(T stateMachine);
+
+    /**
+     * Submit event to the shard of state machine. Terminated state machine is removed from manager.
+     * @param identifier state machine identifier
+     * @param event submitted event
+     * @param context event context
+     * @return future of current state after event processed, which fails with
+     * {@link IllegalArgumentException} if state machine not found
+     */
+    Future<S> submit(String identifier, E event, C context);
+
+    /**
+     * Remove state machine from manager
+     * @param identifier state machine identifier
+     * @return future of whether state machine exists
+     */
+    Future<Boolean> remove(String identifier);
+
+    /**
+     * @return number of state machines owned by manager
+     */
+    int size();
+
+    /**
+     * @return number of shards
+     */
+    int getShardCount();
+
+    /**
+     * Stop accepting new submission, previously submitted events are still processed
+     */
+    void shutdown();
+
+    /**
+     * Block until all submitted events are processed after shutdown
+     * @param timeout max time to wait
+     * @param unit time unit of timeout
+     * @return whether all the shards terminated
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+}
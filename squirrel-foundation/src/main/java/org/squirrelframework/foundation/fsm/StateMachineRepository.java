@@ -0,0 +1,59 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Repository of state machines which only keeps recently used state machines in memory. Idle state
+ * machines are passivated into {@link StateMachineStore} through {@link StateMachine#dumpSavedData()}
+ * when repository exceeds its capacity, and reactivated through {@link StateMachine#loadSavedData}
+ * on a newly created instance when they are accessed again.
+ * <p>
+ * Passivated instance is detached from repository, so event should be fired through
+ * {@link #fire(String, Object, Object)} rather than on the instance returned by {@link #get(String)}.
+ * 
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public interface StateMachineRepository<T extends StateMachine<T, S, E, C>, S, E, C> {
+    
+    /**
+     * @param identifier state machine identifier
+     * @return active or reactivated state machine, null if not exists
+     */
+    T get(String identifier);
+    
+    /**
+     * Fire event on state machine, which will be reactivated if passivated. Terminated state machine is
+     * removed from repository.
+     * @param identifier state machine identifier
+     * @param event fired event
+     * @param context event context
+     * @return current state of state machine after event processed
+     */
+    S fire(String identifier, E event, C context);
+    
+    /**
+     * Add state machine to repository and store its current data
+     * @param stateMachine saved state machine
+     */
+    void save(T stateMachine);
+    
+    /**
+     * Remove state machine from both memory and store
+     * @param identifier state machine identifier
+     * @return whether state machine exists
+     */
+    boolean remove(String identifier);
+    
+    /**
+     * Passivate all the idle state machines in memory
+     */
+    void passivateAll();
+    
+    /**
+     * @return number of state machines kept in memory
+     */
+    int activeSize();
+}
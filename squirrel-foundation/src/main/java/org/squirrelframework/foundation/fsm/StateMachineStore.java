@@ -0,0 +1,38 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Storage of passivated state machine data used by {@link StateMachineRepository}.
+ * 
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public interface StateMachineStore<T extends StateMachine<T, S, E, C>, S, E, C> {
+    
+    /**
+     * @param identifier state machine identifier
+     * @return stored state machine data or null if not exists
+     */
+    StateMachineData.Reader<T, S, E, C> load(String identifier);
+    
+    /**
+     * Store state machine data and replace previous one of the same identifier
+     * @param savedData saved state machine data
+     */
+    void store(StateMachineData.Reader<T, S, E, C> savedData);
+    
+    /**
+     * @param identifier state machine identifier
+     * @return whether state machine data is removed
+     */
+    boolean remove(String identifier);
+    
+    /**
+     * @param identifier state machine identifier
+     * @return whether state machine data is stored
+     */
+    boolean contains(String identifier);
+}
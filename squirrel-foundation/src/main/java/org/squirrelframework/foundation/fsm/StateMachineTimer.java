@@ -0,0 +1,33 @@
+package org.squirrelframework.foundation.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer backend which fires scheduled events to state machines, used by delayed events and timed states.
+ * Default implementation is a hierarchical timing wheel shared by all the state machines. Different backend
+ * can be plugged in by registering it to {@link org.squirrelframework.foundation.component.SquirrelSingletonProvider}.
+ *
+ * @author Henry.He
+ *
+ */
+public interface StateMachineTimer {
+
+    /**
+     * Schedule event to be fired to state machine
+     * @param stateMachine target state machine
+     * @param event scheduled event
+     * @param context event context
+     * @param delay delay before event is first fired, non-positive delay fires event as soon as possible
+     * @param period period between successive firings at fixed rate, non-positive period fires event once
+     * @param unit time unit of delay and period
+     * @return handle to cancel scheduled event
+     */
+    <E, C> Timeout schedule(StateMachine<?, ?, E, C> stateMachine, E event, C context,
+            long delay, long period, TimeUnit unit);
+
+    /**
+     * Stop timer and cancel all the scheduled events, which are neither fired nor rescheduled afterwards. 
+     * Scheduling on stopped timer is rejected.
+     */
+    void shutdown();
+}
@@ -0,0 +1,183 @@
+package org.squirrelframework.foundation.fsm;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Aggregated state residency time (time elapsed between state entry and state exit) of all the state
+ * machine instances created by the same state machine builder. Residency time is only recorded when
+ * {@link StateMachineConfiguration#enableStateResidencyTracking(boolean)} is enabled.
+ * <p>
+ * Each state owns a {@link Histogram} whose buckets are power-of-two microseconds, so recording a
+ * residency sample only increments a few atomic counters and never allocates.
+ *
+ * @author Henry.He
+ *
+ * @param <S> type of State
+ */
+public class StateResidencyStatistics<S> {
+
+    private final ConcurrentMap<S, Histogram> histograms = Maps.newConcurrentMap();
+
+    /**
+     * Pre-allocate histogram of provided state, so that recording residency of this state never
+     * allocates.
+     * @param stateId id of tracked state
+     */
+    public void track(S stateId) {
+        if(!histograms.containsKey(stateId)) {
+            histograms.putIfAbsent(stateId, new Histogram());
+        }
+    }
+
+    /**
+     * Record one residency sample of provided state
+     * @param stateId id of exited state
+     * @param residencyNanos time elapsed between state entry and exit in nanoseconds
+     */
+    public void record(S stateId, long residencyNanos) {
+        if(stateId==null) return;
+        Histogram histogram = histograms.get(stateId);
+        if(histogram==null) {
+            track(stateId);
+            histogram = histograms.get(stateId);
+        }
+        histogram.record(residencyNanos);
+    }
+
+    /**
+     * @param stateId id of state
+     * @return residency histogram of state, or null if state is not tracked
+     */
+    public Histogram getHistogram(S stateId) {
+        return histograms.get(stateId);
+    }
+
+    /**
+     * @return all the tracked states
+     */
+    public Set<S> getTrackedStates() {
+        return Collections.unmodifiableSet(histograms.keySet());
+    }
+
+    /**
+     * Reset residency samples of all the tracked states
+     */
+    public void reset() {
+        for(Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("State\t\tCount\tMean\t\tP50\t\tP99\t\tMax\n");
+        for(S stateId : histograms.keySet()) {
+            Histogram histogram = histograms.get(stateId);
+            builder.append(stateId).append("\t\t").
+                append(histogram.getCount()).append("\t").
+                append(String.format("%.4fms", histogram.getMeanTime(TimeUnit.MICROSECONDS)/1000f)).append("\t").
+                append(histogram.getPercentile(0.5, TimeUnit.MILLISECONDS)).append("ms\t\t").
+                append(histogram.getPercentile(0.99, TimeUnit.MILLISECONDS)).append("ms\t\t").
+                append(histogram.getMaxTime(TimeUnit.MILLISECONDS)).append("ms\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Residency histogram of a single state. Bucket <i>i</i> counts the samples whose residency time in
+     * microseconds is in range [2<sup>i-1</sup>, 2<sup>i</sup>), bucket 0 counts residency less than one
+     * microsecond.
+     */
+    public static class Histogram {
+
+        public static final int BUCKET_SIZE = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_SIZE);
+
+        private final AtomicLong count = new AtomicLong(0);
+
+        private final AtomicLong totalNanos = new AtomicLong(0);
+
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        void record(long residencyNanos) {
+            long nanos = Math.max(0, residencyNanos);
+            long micros = nanos / 1000;
+            int bucket = micros==0 ? 0 : Math.min(BUCKET_SIZE-1, 64-Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long currentMax = maxNanos.get();
+            while(nanos>currentMax && !maxNanos.compareAndSet(currentMax, nanos)) {
+                currentMax = maxNanos.get();
+            }
+        }
+
+        void reset() {
+            for(int i=0; i<BUCKET_SIZE; ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalTime(TimeUnit unit) {
+            return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxTime(TimeUnit unit) {
+            return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        public float getMeanTime(TimeUnit unit) {
+            long samples = count.get();
+            return samples>0 ? unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS) / (float)samples : 0f;
+        }
+
+        /**
+         * Estimate residency time percentile. The returned value is the upper bound of the bucket where
+         * the percentile falls in, and it never exceeds the recorded max residency time.
+         * @param percentile percentile within (0, 1]
+         * @param unit time unit of returned value
+         * @return estimated residency time of percentile
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            long samples = count.get();
+            if(samples==0) return 0;
+            long threshold = (long)Math.ceil(samples * Math.min(1.0, Math.max(0.0, percentile)));
+            long accumulated = 0;
+            for(int i=0; i<BUCKET_SIZE; ++i) {
+                accumulated += buckets.get(i);
+                if(accumulated>=Math.max(1, threshold)) {
+                    long upperBoundNanos = i==0 ? 1000L : (i>=53 ? Long.MAX_VALUE : (1L<<i)*1000L);
+                    return unit.convert(Math.min(upperBoundNanos, maxNanos.get()), TimeUnit.NANOSECONDS);
+                }
+            }
+            return getMaxTime(unit);
+        }
+
+        /**
+         * @return snapshot of sample count in each bucket
+         */
+        public long[] getBucketCounts() {
+            long[] result = new long[BUCKET_SIZE];
+            for(int i=0; i<BUCKET_SIZE; ++i) {
+                result[i] = buckets.get(i);
+            }
+            return result;
+        }
+    }
+}
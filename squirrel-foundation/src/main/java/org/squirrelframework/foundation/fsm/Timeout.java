@@ -0,0 +1,23 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Handle of event scheduled to be fired to state machine later.
+ *
+ * @author Henry.He
+ *
+ */
+public interface Timeout {
+
+    /**
+     * Cancel scheduled event
+     * @return false if event was already delivered or cancelled
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    /**
+     * @return whether event was delivered to state machine, periodic event is never expired
+     */
+    boolean isExpired();
+}
@@ -0,0 +1,24 @@
+package org.squirrelframework.foundation.fsm;
+
+/**
+ * Policy applied to timer of timed state which became due while state machine was saved, when the saved
+ * data is loaded again.
+ *
+ * @author Henry.He
+ *
+ */
+public enum TimerCatchUpPolicy {
+    /**
+     * Fire auto event once for all the missed firings, and periodic timer resumes on its schedule.
+     */
+    FIRE_ONCE,
+    /**
+     * Fire auto event once for each missed firing up to 1000 firings, and periodic timer resumes on its 
+     * schedule. Missed firings which were not yet delivered are cancelled when timed state is exited.
+     */
+    FIRE_ALL,
+    /**
+     * Do not fire missed firings, and periodic timer resumes on its schedule.
+     */
+    SKIP
+}
@@ -184,6 +184,11 @@ public abstract class AbstractExecutionService<T extends StateMachine<T, S, E, C
     public void setDummyExecution(boolean dummyExecution) {
         this.dummyExecution = dummyExecution;
     }
+
+    @Override
+    public boolean isDummyExecution() {
+        return dummyExecution;
+    }
     
     static class ExecActionExceptionEventImpl<T extends StateMachine<T, S, E, C>, S, E, C> 
         extends AbstractExecActionEvent<T, S, E, C> implements ExecActionExceptionEvent<T, S, E, C> {
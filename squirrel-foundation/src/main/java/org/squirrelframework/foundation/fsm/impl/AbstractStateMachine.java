@@ -2,13 +2,17 @@ package org.squirrelframework.foundation.fsm.impl;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.component.SquirrelInstanceProvider;
 import org.squirrelframework.foundation.component.Observable;
 import org.squirrelframework.foundation.component.SquirrelProvider;
+import org.squirrelframework.foundation.component.SquirrelSingletonProvider;
 import org.squirrelframework.foundation.component.impl.AbstractSubject;
 import org.squirrelframework.foundation.event.AsyncEventListener;
 import org.squirrelframework.foundation.event.ListenerMethod;
@@ -19,13 +23,15 @@ import org.squirrelframework.foundation.fsm.ActionExecutionService.*;
 import org.squirrelframework.foundation.fsm.annotation.*;
 import org.squirrelframework.foundation.util.Pair;
 import org.squirrelframework.foundation.util.ReflectUtils;
-import org.squirrelframework.foundation.util.TypeReference;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.*;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -55,19 +61,38 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     
     private static final Logger logger = LoggerFactory.getLogger(AbstractStateMachine.class);
     
-    private final ActionExecutionService<T, S, E, C> executor = SquirrelProvider.getInstance().newInstance(
-            new TypeReference<ActionExecutionService<T, S, E, C>>(){});
+    // upper bound of missed firings of a periodic timed state which are fired on load
+    static final int MAX_CATCH_UP_FIRINGS = 1000;
+    
+    // execution services shared by lightweight state machine instances processing event on current thread
+    private static final ThreadLocal<Deque<ActionExecutionService<?, ?, ?, ?>>> sharedExecutors = 
+            new ThreadLocal<Deque<ActionExecutionService<?, ?, ?, ?>>>() {
+        @Override
+        protected Deque<ActionExecutionService<?, ?, ?, ?>> initialValue() {
+            return new ArrayDeque<ActionExecutionService<?, ?, ?, ?>>();
+        }
+    };
+    
+    // dedicated execution service, which is created on demand for lightweight instance
+    private volatile ActionExecutionService<T, S, E, C> executor;
     
     private StateMachineData<T, S, E, C> data;
     
     private volatile StateMachineStatus status = StateMachineStatus.INITIALIZED;
     
-    private LinkedBlockingDeque<Pair<E, C>> queuedEvents = new LinkedBlockingDeque<Pair<E, C>>();
+    // event queues are created when first event fired
+    private volatile EventQueue<E, C> queuedEvents;
     
-    private LinkedBlockingQueue<Pair<E, C>> queuedTestEvents = new LinkedBlockingQueue<Pair<E, C>>();
+    private volatile LinkedBlockingQueue<Pair<E, C>> queuedTestEvents;
     
     private volatile boolean isProcessingTestEvent = false;
     
+    // thread processing events without lock, see fireConfined
+    private Thread confinedThread = null;
+    
+    // executor of thread which instance is confined to, scheduled events are processed through it
+    private volatile Executor mailbox = null;
+    
     private E startEvent, finishEvent, terminateEvent;
     
     protected final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
@@ -98,10 +123,78 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     
     private boolean isRemoteMonitorEnabled = false;
     
+    private boolean isLightweightInstanceEnabled = false;
+    
     private Class<?>[] extraParamTypes;
     
     private TransitionException lastException = null;
     
+    private StateResidencyStatistics<S> residencyStatistics = null;
+    
+    // dense index of tracked states shared by builder, and the states in index order
+    private Map<S, Integer> residencyStateIndexes = null;
+    
+    private List<S> residencyStates = null;
+    
+    // entry time of tracked states by index, only allocated when residency is tracked
+    private long[] stateEnteredAt = null;
+    
+    // entries and exits of current transition encoded as index*2+1 and index*2, which are recorded 
+    // after actions of transition executed
+    private int[] residencyChanges = null;
+    
+    private int residencyChangeCount = 0;
+    
+    private StateMachineEventLog eventLog = null;
+    
+    private int eventQueueCapacity = Integer.MAX_VALUE;
+    
+    private int eventQueueStarvationLimit = 32;
+    
+    private TimerCatchUpPolicy timerCatchUpPolicy = TimerCatchUpPolicy.FIRE_ONCE;
+    
+    private Map<E, EventCoalescingPolicy> coalescingPolicies = Collections.emptyMap();
+    
+    private EventQueueOverflowPolicy eventQueueOverflowPolicy = EventQueueOverflowPolicy.REJECT;
+    
+    private long eventQueueBlockTimeout = 0;
+    
+    private ActionExecutionService<T, S, E, C> replayExecutor = null;
+    
+    private volatile boolean isReleased = false;
+    
+    // timers armed by timed states of this instance, keyed by state id, created on first arm
+    private volatile ConcurrentMap<S, TimedStateTimer> timedStateTimers;
+    
+    // handles of delayed events fired to this instance, delivered or cancelled ones are pruned lazily, 
+    // created on first delayed event
+    private volatile Set<Timeout> delayedTimeouts;
+    
+    private volatile int delayedTimeoutsPruneSize = 16;
+    
+    private static final int PASSIVATED = Integer.MIN_VALUE;
+    
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AbstractStateMachine> SCHEDULED_DELIVERIES_UPDATER = 
+            AtomicIntegerFieldUpdater.newUpdater(AbstractStateMachine.class, "scheduledDeliveries");
+    
+    // number of timer deliveries which are in flight, or PASSIVATED once instance was passivated
+    private volatile int scheduledDeliveries = 0;
+    
+    // linked state machines of linked states entered by this instance, keyed by state id, created on first 
+    // entry, so that they are discarded along with this instance
+    private volatile ConcurrentMap<S, StateMachine<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateMachines;
+    
+    // builder which keeps instance for reuse after released, and configuration instance was created with
+    private Object instanceOwner = null;
+    
+    private StateMachineConfiguration instanceConfiguration = null;
+    
+    // listeners installed during instance creation, which are kept when instance is recycled
+    private Set<ListenerMethod> initialListeners = null;
+    
+    private Set<ListenerMethod> initialExecutorListeners = null;
+    
     void prePostConstruct(S initialStateId, Map<S, ? extends ImmutableState<T, S, E, C>> states,
             StateMachineConfiguration configuration, Runnable cb) {
         data = FSM.newStateMachineData(states);
@@ -117,11 +210,183 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         this.isDelegatorModeEnabled = configuration.isDelegatorModeEnabled();
         this.isStartEventTriggerEntryActions = configuration.isStartEventTriggerEntryActions();
         this.isTerminateEventTriggerExitActions = configuration.isTerminateEventTriggerExitActions();
+        this.eventLog = configuration.getEventLog();
+        this.isLightweightInstanceEnabled = configuration.isLightweightInstanceEnabled();
+        this.eventQueueCapacity = configuration.getEventQueueCapacity();
+        this.eventQueueOverflowPolicy = configuration.getEventQueueOverflowPolicy();
+        this.eventQueueBlockTimeout = configuration.getEventQueueBlockTimeout();
+        this.eventQueueStarvationLimit = configuration.getEventQueueStarvationLimit();
+        this.timerCatchUpPolicy = configuration.getTimerCatchUpPolicy();
+        if(!isLightweightInstanceEnabled) {
+            getExecutor();
+        }
         cb.run();
         
         prepare();
     }
     
+    /**
+     * Mark instance as recyclable by owner, and record listeners installed during its creation.
+     */
+    void markRecyclable(Object owner, StateMachineConfiguration configuration) {
+        this.instanceOwner = owner;
+        this.instanceConfiguration = configuration;
+        this.initialListeners = listenersOf(this);
+        this.initialExecutorListeners = executor!=null ? listenersOf(executor) : null;
+    }
+    
+    boolean isRecyclableWith(StateMachineConfiguration configuration) {
+        return instanceConfiguration==configuration;
+    }
+    
+    /**
+     * Release terminated instance for reuse. After released the instance cannot be started again 
+     * until it was recycled by its owner.
+     * @param owner owner of instance
+     * @return false if instance was not recyclable or was already released
+     */
+    synchronized boolean release(Object owner) {
+        if(instanceOwner==null) {
+            return false;
+        }
+        Preconditions.checkArgument(instanceOwner==owner, "State machine instance was not created by this builder.");
+        checkState(isTerminated(), "Cannot release state machine under "+getStatus()+" status.");
+        checkState(!rwLock.isWriteLocked() && StateMachineContext.currentInstance()!=this, 
+                "Cannot release state machine while processing event.");
+        if(isReleased) {
+            return false;
+        }
+        isReleased = true;
+        return true;
+    }
+    
+    /**
+     * Reset released instance to newly created state. Queued events, listeners added after instance 
+     * created and last exception are discarded, and state machine data is re-initialized.
+     */
+    synchronized void recycle(S initialStateId, Map<S, ? extends ImmutableState<T, S, E, C>> states,
+            StateMachineConfiguration configuration, Runnable cb) {
+        checkState(isReleased, "State machine instance was not released.");
+        if(queuedEvents!=null) {
+            queuedEvents.clear();
+        }
+        if(queuedTestEvents!=null) {
+            queuedTestEvents.clear();
+        }
+        lastException = null;
+        linkedStateMachines = null;
+        scheduledDeliveries = 0;
+        residencyStatistics = null;
+        residencyStateIndexes = null;
+        residencyStates = null;
+        stateEnteredAt = null;
+        residencyChanges = null;
+        residencyChangeCount = 0;
+        if(initialExecutorListeners!=null) {
+            executor.reset();
+            retainListeners(executor, initialExecutorListeners);
+        } else {
+            executor = null;
+        }
+        // definition set once by builder is assigned again by initializer
+        startEvent = finishEvent = terminateEvent = null;
+        extraParamTypes = null;
+        scriptManager = null;
+        prePostConstruct(initialStateId, states, configuration, cb);
+        // listeners installed again by prepare are dropped, initial ones were retained
+        retainListeners(this, initialListeners);
+        setStatus(StateMachineStatus.INITIALIZED);
+        isReleased = false;
+    }
+    
+    private static Set<ListenerMethod> listenersOf(Observable observable) {
+        final Set<ListenerMethod> listeners = new HashSet<ListenerMethod>();
+        // observable only exposes listeners through removal predicate, which collects and keeps all of them
+        observable.removeListener(new Predicate<ListenerMethod>() {
+            @Override
+            public boolean apply(ListenerMethod input) {
+                listeners.add(input);
+                return false;
+            }
+        });
+        return listeners;
+    }
+    
+    private static void retainListeners(Observable observable, final Set<ListenerMethod> listeners) {
+        observable.removeListener(new Predicate<ListenerMethod>() {
+            @Override
+            public boolean apply(ListenerMethod input) {
+                return !listeners.contains(input);
+            }
+        });
+    }
+    
+    private synchronized ActionExecutionService<T, S, E, C> getExecutor() {
+        if(executor==null) {
+            executor = newExecutionService();
+        }
+        return executor;
+    }
+    
+    /**
+     * Create execution service by its raw type, which avoids resolving generic super type token of an 
+     * anonymous type reference class per state machine instance.
+     */
+    @SuppressWarnings("unchecked")
+    private ActionExecutionService<T, S, E, C> newExecutionService() {
+        return SquirrelProvider.getInstance().newInstance(ActionExecutionService.class);
+    }
+    
+    /**
+     * @return dedicated execution service if exists, otherwise execution service shared by current thread
+     */
+    @SuppressWarnings("unchecked")
+    private ActionExecutionService<T, S, E, C> acquireExecutor() {
+        ActionExecutionService<T, S, E, C> executionService = executor;
+        if(executionService==null) {
+            executionService = (ActionExecutionService<T, S, E, C>)sharedExecutors.get().poll();
+            if(executionService==null) {
+                executionService = newExecutionService();
+            }
+        }
+        return executionService;
+    }
+    
+    private void releaseExecutor(ActionExecutionService<T, S, E, C> executionService) {
+        if(executionService!=executor) {
+            executionService.reset();
+            sharedExecutors.get().push(executionService);
+        }
+    }
+    
+    private EventQueue<E, C> getQueuedEvents() {
+        if(queuedEvents==null) {
+            synchronized (this) {
+                if(queuedEvents==null) {
+                    queuedEvents = new EventQueue<E, C>(eventQueueCapacity, eventQueueOverflowPolicy, 
+                            eventQueueBlockTimeout, eventQueueStarvationLimit, coalescingPolicies);
+                }
+            }
+        }
+        return queuedEvents;
+    }
+    
+    private LinkedBlockingQueue<Pair<E, C>> getQueuedTestEvents() {
+        if(queuedTestEvents==null) {
+            synchronized (this) {
+                if(queuedTestEvents==null) {
+                    queuedTestEvents = new LinkedBlockingQueue<Pair<E, C>>();
+                }
+            }
+        }
+        return queuedTestEvents;
+    }
+    
+    @Override
+    public int getQueuedEventSize() {
+        return queuedEvents!=null ? queuedEvents.size() : 0;
+    }
+    
     @Override
     public boolean isRemoteMonitorEnabled() {
         return isRemoteMonitorEnabled;
@@ -150,14 +415,19 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         StateMachineData<T, S, E, C> localData = originalData;
         ImmutableState<T, S, E, C> fromState = localData.read().currentRawState();
         S fromStateId = fromState.getStateId(), toStateId = null;
+        residencyChangeCount = 0;
         try {
             beforeTransitionBegin(fromStateId, event, context);
             fireEvent(new TransitionBeginEventImpl<T, S, E, C>(fromStateId, event, context, getThis()));
             
             if(isDataIsolateEnabled) {
                 // use local data to isolation transition data write
-                localData = FSM.newStateMachineData(originalData.read().originalStates());
-                localData.dump(originalData.read());
+                if(originalData instanceof StateMachineDataImpl) {
+                    localData = ((StateMachineDataImpl<T, S, E, C>)originalData).fork();
+                } else {
+                    localData = FSM.newStateMachineData(originalData.read().originalStates());
+                    localData.dump(originalData.read());
+                }
             }
             
             TransitionResult<T, S, E, C> result = FSM.newResult(false, fromState, null);
@@ -167,12 +437,24 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             toStateId = result.getTargetState().getStateId();
             
             if(result.isAccepted()) {
+                boolean isEventLogged = eventLog!=null && originalData==data && executionService!=replayExecutor;
+                if(isEventLogged && eventLog.getAppendMode()==StateMachineEventLog.AppendMode.BEFORE_EXECUTION) {
+                    eventLog.appendEvent(getIdentifier(), event, context);
+                }
                 executionService.execute();
                 localData.write().lastState(fromStateId);
                 localData.write().currentState(toStateId);
                 if(isDataIsolateEnabled) { 
                     // import local data after transition accepted
-                    originalData.dump(localData.read());
+                    if(localData instanceof StateMachineDataImpl && originalData instanceof StateMachineDataImpl) {
+                        ((StateMachineDataImpl<T, S, E, C>)originalData).commit((StateMachineDataImpl<T, S, E, C>)localData);
+                    } else {
+                        originalData.dump(localData.read());
+                    }
+                }
+                recordStateResidency();
+                if(isEventLogged && eventLog.getAppendMode()==StateMachineEventLog.AppendMode.AFTER_EXECUTION) {
+                    eventLog.appendEvent(getIdentifier(), event, context);
                 }
                 fireEvent(new TransitionCompleteEventImpl<T, S, E, C>(fromStateId, toStateId, 
                         event, context, getThis()));
@@ -186,6 +468,8 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             // set state machine in error status first which means state machine cannot process event anymore 
             // unless this exception has been resolved and state machine status set back to normal again.
             setStatus(StateMachineStatus.ERROR);
+            // entries and exits of failed transition are discarded
+            residencyChangeCount = 0;
             // wrap any exception into transition exception    
             lastException = (e instanceof TransitionException) ? (TransitionException) e :
                 new TransitionException(e, ErrorCodes.FSM_TRANSITION_ERROR, 
@@ -202,36 +486,153 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     }
     
     private void processEvents() {
-        if (isIdle()) {
+        if (isIdle() && queuedEvents!=null) {
             writeLock.lock();
             setStatus(StateMachineStatus.BUSY);
+            ActionExecutionService<T, S, E, C> executionService = acquireExecutor();
             try {
-                Pair<E, C> eventInfo;
-                E event;
-                C context = null;
-                while ((eventInfo=queuedEvents.poll())!=null) {
-                    // response to cancel operation
-                    if(Thread.interrupted()) {
-                        queuedEvents.clear();
-                        break;
-                    }
-                    event = eventInfo.first();
-                    context = eventInfo.second();
-                    processEvent(event, context, data, executor, isDataIsolateEnabled);
-                }
-                ImmutableState<T, S, E, C> rawState = data.read().currentRawState();
-                if(isAutoTerminateEnabled && rawState.isRootState() && rawState.isFinalState()) {
-                    terminate(context);
-                }
+                processQueuedEvents(executionService, null);
             } finally {
+                releaseExecutor(executionService);
                 if(getStatus()==StateMachineStatus.BUSY)
                     setStatus(StateMachineStatus.IDLE);
                 writeLock.unlock();
             }
+            // event queued by other thread after last poll but before status became idle
+            if(getStatus()==StateMachineStatus.IDLE && !queuedEvents.isEmpty()) {
+                processEvents();
+            }
+        }
+    }
+    
+    private void processQueuedEvents(ActionExecutionService<T, S, E, C> executionService, C lastContext) {
+        EventQueue.QueuedEvent<E, C> eventInfo;
+        C context = lastContext;
+        while (queuedEvents!=null && (eventInfo=queuedEvents.poll())!=null) {
+            // response to cancel operation
+            if(Thread.interrupted()) {
+                queuedEvents.clear();
+                break;
+            }
+            context = eventInfo.context;
+            processEvent(eventInfo.event, context, data, executionService, isDataIsolateEnabled);
+        }
+        ImmutableState<T, S, E, C> rawState = data.read().currentRawState();
+        if(isAutoTerminateEnabled && rawState.isRootState() && rawState.isFinalState()) {
+            terminate(context);
+        }
+    }
+    
+    /**
+     * Process event on calling thread without acquiring lock or queuing the event. Caller must guarantee 
+     * that instance is only accessed by one thread, e.g. instance owned by {@link StateMachineManagerImpl}. 
+     * Events fired by actions during processing are still queued and processed before return.
+     */
+    void fireConfined(E event, C context) {
+        boolean isEntryPoint = isEntryPoint();
+        if(isEntryPoint) {
+            StateMachineContext.set(getThis());
+        }
+        try {
+            checkFireable(context);
+            processConfinedEvents(event, context);
+        } finally {
+            if(isEntryPoint) {
+                StateMachineContext.set(null);
+            }
+        }
+    }
+    
+    /**
+     * Process event delegated by linked state of outer state machine before return, so that decline of the 
+     * event itself is reported as result and outer state can process the event. When instance is processing 
+     * event on other thread, delegated event is processed after that, and events fired by actions are still 
+     * queued and processed along with it.
+     * @return true if the delegated event was declined
+     */
+    boolean fireDelegated(E event, C context) {
+        StateMachineContext.set(getThis(), StateMachineContext.isTestEvent());
+        try {
+            if(StateMachineContext.isTestEvent()) {
+                return testDelegated(event, context);
+            }
+            checkFireable(context);
+            checkState(!rwLock.isWriteLockedByCurrentThread() && confinedThread!=Thread.currentThread(), 
+                    "Cannot delegate event to state machine '"+getIdentifier()+"' while it is processing event.");
+            boolean isDeclined;
+            writeLock.lock();
+            try {
+                checkFireable(context);
+                setStatus(StateMachineStatus.BUSY);
+                ActionExecutionService<T, S, E, C> executionService = acquireExecutor();
+                try {
+                    isDeclined = !processEvent(event, context, data, executionService, isDataIsolateEnabled) && 
+                            getStatus()!=StateMachineStatus.ERROR;
+                    processQueuedEvents(executionService, context);
+                } finally {
+                    releaseExecutor(executionService);
+                    if(getStatus()==StateMachineStatus.BUSY)
+                        setStatus(StateMachineStatus.IDLE);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            // event queued by other thread while delegated event was processed
+            if(getStatus()==StateMachineStatus.IDLE && queuedEvents!=null && !queuedEvents.isEmpty()) {
+                processEvents();
+            }
+            return isDeclined;
+        } finally {
+            StateMachineContext.set(null);
         }
     }
     
-    private void internalFire(E event, C context, boolean insertAtFirst) {
+    private boolean testDelegated(E event, C context) {
+        checkState(status!=StateMachineStatus.ERROR && status!=StateMachineStatus.TERMINATED,
+                "Cannot test state machine under "+status+" status.");
+        @SuppressWarnings("unchecked")
+        StateMachineData<T, S, E, C> cloneData = (StateMachineData<T, S, E, C>)dumpSavedData();
+        ActionExecutionService<T, S, E, C> dummyExecutor = getDummyExecutor();
+        if(getStatus()==StateMachineStatus.INITIALIZED) {
+            if(isAutoStartEnabled) {
+                internalStart(context, cloneData, dummyExecutor);
+            } else {
+                throw new IllegalStateException("The state machine is not running.");
+            }
+        }
+        return !processEvent(event, context, cloneData, dummyExecutor, false) && 
+                getStatus()!=StateMachineStatus.ERROR;
+    }
+    
+    private void processConfinedEvents(E event, C context) {
+        setStatus(StateMachineStatus.BUSY);
+        confinedThread = Thread.currentThread();
+        ActionExecutionService<T, S, E, C> executionService = acquireExecutor();
+        try {
+            if(event!=null) {
+                processEvent(event, context, data, executionService, isDataIsolateEnabled);
+            }
+            processQueuedEvents(executionService, context);
+        } finally {
+            confinedThread = null;
+            releaseExecutor(executionService);
+            if(getStatus()==StateMachineStatus.BUSY)
+                setStatus(StateMachineStatus.IDLE);
+        }
+    }
+    
+    Executor getMailbox() {
+        return mailbox;
+    }
+    
+    /**
+     * @param mailbox executor of thread which instance is confined to, or null if instance is no longer confined
+     */
+    void setMailbox(Executor mailbox) {
+        this.mailbox = mailbox;
+    }
+    
+    private void checkFireable(C context) {
         if(getStatus()==StateMachineStatus.INITIALIZED) {
             if(isAutoStartEnabled) {
                 start(context);
@@ -240,15 +641,19 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             }
         }
         if(getStatus()==StateMachineStatus.TERMINATED) {
-            throw new IllegalStateException("The state machine is already terminated.");
+            throw new IllegalStateException(isReleased ? "The state machine instance was released." : 
+                "The state machine is already terminated.");
         }
         if(getStatus()==StateMachineStatus.ERROR) {
             throw new IllegalStateException("The state machine is corruptted.");
         }
-        if(insertAtFirst) {
-            queuedEvents.addFirst(new Pair<E, C>(event, context));
-        } else {
-            queuedEvents.addLast(new Pair<E, C>(event, context));
+    }
+    
+    private void internalFire(E event, C context, EventPriority priority) {
+        checkFireable(context);
+        boolean isProcessingThread = rwLock.isWriteLockedByCurrentThread() || confinedThread==Thread.currentThread();
+        if(!getQueuedEvents().offer(event, context, priority, !isProcessingThread)) {
+            throw new IllegalStateException("Event queue of state machine '"+getIdentifier()+"' is full.");
         }
         processEvents();
     }
@@ -257,20 +662,22 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         return StateMachineContext.currentInstance()==null;
     }
     
-    private void fire(E event, C context, boolean insertAtFirst) {
+    @Override
+    public void fire(E event, C context, EventPriority priority) {
+        Preconditions.checkNotNull(priority, "Event priority cannot be null.");
         boolean isEntryPoint = isEntryPoint();
         if(isEntryPoint) {
             StateMachineContext.set(getThis());
         } else if(isDelegatorModeEnabled && StateMachineContext.currentInstance()!=this) {
             T currentInstance = StateMachineContext.currentInstance();
-            currentInstance.fire(event, context);
+            currentInstance.fire(event, context, priority);
             return;
         } 
         try {
             if(StateMachineContext.isTestEvent()) {
                 internalTest(event, context);
             } else {
-                internalFire(event, context, insertAtFirst);
+                internalFire(event, context, priority);
             }
         } finally {
             if(isEntryPoint) {
@@ -281,7 +688,346 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     
     @Override
     public void fire(E event, C context) {
-        fire(event, context, false);
+        fire(event, context, EventPriority.NORMAL);
+    }
+    
+    @Override
+    public Timeout fireDelayed(E event, C context, long delay, TimeUnit unit) {
+        Timeout timeout = getTimer().schedule(this, event, context, delay, 0, unit);
+        Set<Timeout> delayedTimeouts = getDelayedTimeouts();
+        delayedTimeouts.add(timeout);
+        if(delayedTimeouts.size()>=delayedTimeoutsPruneSize) {
+            Iterator<Timeout> iterator = delayedTimeouts.iterator();
+            while(iterator.hasNext()) {
+                Timeout delayedTimeout = iterator.next();
+                if(delayedTimeout.isCancelled() || delayedTimeout.isExpired()) {
+                    iterator.remove();
+                }
+            }
+            delayedTimeoutsPruneSize = Math.max(16, delayedTimeouts.size()*2);
+        }
+        return timeout;
+    }
+    
+    /**
+     * Store saved data and passivate instance, unless it is processing event, has queued events, or has 
+     * scheduled events being delivered by timer, which would be lost along with the discarded instance. 
+     * Timer delivery afterwards is dropped, as its timeout is either kept by the stored data or cancelled.
+     * @param store store of passivated data
+     * @return false if instance cannot be passivated now
+     */
+    boolean passivateInto(StateMachineStore<T, S, E, C> store) {
+        if(!writeLock.tryLock()) {
+            return false;
+        }
+        try {
+            // events queued by timer are counted as in flight until processed
+            if(queuedEvents!=null && !queuedEvents.isEmpty()) {
+                return false;
+            }
+            store.store(dumpSavedData());
+            // delivery entered after data was stored keeps instance active, and it is stored again later
+            if(!SCHEDULED_DELIVERIES_UPDATER.compareAndSet(this, 0, PASSIVATED)) {
+                return false;
+            }
+            passivate();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Called by timer before scheduled event expires, so that instance is not passivated until the event 
+     * was processed and {@link #exitScheduledDelivery(int)} was called
+     * @return false if instance was passivated and event must be dropped
+     */
+    boolean enterScheduledDelivery() {
+        while(true) {
+            int deliveries = scheduledDeliveries;
+            if(deliveries==PASSIVATED) {
+                return false;
+            }
+            if(SCHEDULED_DELIVERIES_UPDATER.compareAndSet(this, deliveries, deliveries+1)) {
+                return true;
+            }
+        }
+    }
+    
+    void exitScheduledDelivery(int deliveries) {
+        SCHEDULED_DELIVERIES_UPDATER.addAndGet(this, -deliveries);
+    }
+    
+    /**
+     * Cancel timers of timed states and delayed events, so that instance can be discarded after its 
+     * saved data was dumped. Pending timers are kept by the dumped data and re-armed when it is loaded.
+     */
+    void passivate() {
+        disarmTimedStates();
+        Set<Timeout> delayedTimeouts = this.delayedTimeouts;
+        if(delayedTimeouts!=null) {
+            for(Timeout timeout : delayedTimeouts) {
+                timeout.cancel();
+            }
+            delayedTimeouts.clear();
+        }
+        // linked state machines are kept by dumped data as well, and discarded along with this instance
+        Map<S, StateMachine<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateMachines = this.linkedStateMachines;
+        if(linkedStateMachines!=null) {
+            for(StateMachine<?, S, E, C> linkedStateMachine : linkedStateMachines.values()) {
+                if(linkedStateMachine instanceof AbstractStateMachine) {
+                    ((AbstractStateMachine<?, S, E, C>)linkedStateMachine).passivate();
+                }
+            }
+            linkedStateMachines.clear();
+        }
+    }
+    
+    private Set<Timeout> getDelayedTimeouts() {
+        if(delayedTimeouts==null) {
+            synchronized (this) {
+                if(delayedTimeouts==null) {
+                    delayedTimeouts = Sets.newConcurrentHashSet();
+                }
+            }
+        }
+        return delayedTimeouts;
+    }
+    
+    /**
+     * @param stateId id of linked state
+     * @param provider provider of linked state machine which is created if absent
+     * @return linked state machine of linked state held by this instance
+     */
+    StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> getLinkedStateMachine(S stateId,
+            SquirrelInstanceProvider<? extends StateMachine<?, S, E, C>> provider) {
+        if(linkedStateMachines==null) {
+            synchronized (this) {
+                if(linkedStateMachines==null) {
+                    linkedStateMachines = Maps.newConcurrentMap();
+                }
+            }
+        }
+        StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> linkedStateMachine = linkedStateMachines.get(stateId);
+        if(linkedStateMachine==null) {
+            linkedStateMachine = provider.get();
+            StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> existing = 
+                    linkedStateMachines.putIfAbsent(stateId, linkedStateMachine);
+            if(existing!=null) {
+                linkedStateMachine = existing;
+            }
+        }
+        return linkedStateMachine;
+    }
+    
+    /**
+     * @param stateId id of linked state
+     * @return removed linked state machine of linked state, or null if not created
+     */
+    StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> removeLinkedStateMachine(S stateId) {
+        Map<S, StateMachine<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateMachines = this.linkedStateMachines;
+        return linkedStateMachines!=null ? linkedStateMachines.remove(stateId) : null;
+    }
+    
+    private ConcurrentMap<S, TimedStateTimer> getTimedStateTimers() {
+        if(timedStateTimers==null) {
+            synchronized (this) {
+                if(timedStateTimers==null) {
+                    timedStateTimers = Maps.newConcurrentMap();
+                }
+            }
+        }
+        return timedStateTimers;
+    }
+    
+    static StateMachineTimer getTimer() {
+        return SquirrelSingletonProvider.getInstance().get(StateMachineTimer.class);
+    }
+    
+    /**
+     * Arm timer of timed state, whose handle is kept by instance rather than shared state definition.
+     * @param timedState timed state
+     * @param dueTime time in milliseconds since epoch when auto event is first fired
+     * @param period period in milliseconds of periodic timer, non-positive period fires auto event once
+     */
+    void armTimedState(ImmutableTimedState<T, S, E, C> timedState, long dueTime, long period) {
+        armTimedState(timedState, dueTime, period, Collections.<Timeout>emptyList());
+    }
+    
+    private void armTimedState(ImmutableTimedState<T, S, E, C> timedState, long dueTime, long period, 
+            List<Timeout> catchUpTimeouts) {
+        Timeout timeout = getTimer().schedule(this, timedState.getAutoFireEvent(), timedState.getAutoFireContext(), 
+                dueTime-System.currentTimeMillis(), period, TimeUnit.MILLISECONDS);
+        TimedStateTimer previous = getTimedStateTimers().put(timedState.getStateId(), 
+                new TimedStateTimer(timeout, dueTime, Math.max(period, 0), catchUpTimeouts));
+        if(previous!=null) {
+            previous.cancel();
+        }
+    }
+    
+    void disarmTimedState(S stateId) {
+        Map<S, TimedStateTimer> timers = timedStateTimers;
+        TimedStateTimer timer = timers!=null ? timers.remove(stateId) : null;
+        if(timer!=null) {
+            timer.cancel();
+        }
+    }
+    
+    private void disarmTimedStates() {
+        Map<S, TimedStateTimer> timers = timedStateTimers;
+        if(timers!=null) {
+            for(S stateId : Lists.newArrayList(timers.keySet())) {
+                disarmTimedState(stateId);
+            }
+        }
+    }
+    
+    private void saveTimedStateTimers(StateMachineData.Writer<T, S, E, C> target) {
+        Map<S, TimedStateTimer> timers = timedStateTimers;
+        if(timers==null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for(Map.Entry<S, TimedStateTimer> entry : timers.entrySet()) {
+            TimedStateTimer timer = entry.getValue();
+            if(!timer.timeout.isCancelled() && !timer.timeout.isExpired()) {
+                target.pendingTimerFor(entry.getKey(), 
+                        new StateMachineData.PendingTimer(timer.nextDueTime(now), timer.period));
+            }
+        }
+    }
+    
+    private void loadTimedStateTimers(StateMachineData.Reader<T, S, E, C> savedData) {
+        disarmTimedStates();
+        // saved data may be data of this instance, whose pending timers are cleared below
+        Map<S, StateMachineData.PendingTimer> pendingTimers = Maps.newLinkedHashMap();
+        for(S stateId : savedData.pendingTimerStates()) {
+            pendingTimers.put(stateId, savedData.pendingTimerOf(stateId));
+        }
+        // pending timers are only kept by saved data, live timers are kept by instance
+        for(S stateId : Lists.newArrayList(data.read().pendingTimerStates())) {
+            data.write().pendingTimerFor(stateId, null);
+        }
+        long now = System.currentTimeMillis();
+        for(Map.Entry<S, StateMachineData.PendingTimer> entry : pendingTimers.entrySet()) {
+            S stateId = entry.getKey();
+            ImmutableState<T, S, E, C> rawState = data.read().rawStateFrom(stateId);
+            StateMachineData.PendingTimer timer = entry.getValue();
+            if(!(rawState instanceof ImmutableTimedState) || timer==null) {
+                continue;
+            }
+            ImmutableTimedState<T, S, E, C> timedState = (ImmutableTimedState<T, S, E, C>)rawState;
+            long dueTime = timer.getDueTime(), period = timer.getPeriod();
+            if(dueTime<=now) {
+                long missed = period>0 ? (now-dueTime)/period+1 : 1;
+                long firings = timerCatchUpPolicy==TimerCatchUpPolicy.FIRE_ALL ? missed : 
+                    (timerCatchUpPolicy==TimerCatchUpPolicy.FIRE_ONCE ? 1 : 0);
+                if(period<=0) {
+                    if(firings>0) {
+                        armTimedState(timedState, dueTime, 0);
+                    }
+                    continue;
+                }
+                if(firings>MAX_CATCH_UP_FIRINGS) {
+                    logger.warn("{} missed firings of timed state '{}' truncated to {}.", 
+                            firings, stateId, MAX_CATCH_UP_FIRINGS);
+                    firings = MAX_CATCH_UP_FIRINGS;
+                }
+                // missed firings are delivered as one batch, and cancelled together with timer of timed state
+                List<Timeout> catchUpTimeouts = Lists.newArrayListWithCapacity((int)firings);
+                for(long i=0; i<firings; ++i) {
+                    catchUpTimeouts.add(getTimer().schedule(this, timedState.getAutoFireEvent(), 
+                            timedState.getAutoFireContext(), 0, 0, TimeUnit.MILLISECONDS));
+                }
+                armTimedState(timedState, dueTime+missed*period, period, catchUpTimeouts);
+                continue;
+            }
+            armTimedState(timedState, dueTime, period);
+        }
+    }
+    
+    private static class TimedStateTimer {
+        final Timeout timeout;
+        
+        // time in milliseconds since epoch when timer is first due
+        final long dueTime;
+        
+        final long period;
+        
+        // firings missed while state machine data was saved, see TimerCatchUpPolicy
+        final List<Timeout> catchUpTimeouts;
+        
+        TimedStateTimer(Timeout timeout, long dueTime, long period, List<Timeout> catchUpTimeouts) {
+            this.timeout = timeout;
+            this.dueTime = dueTime;
+            this.period = period;
+            this.catchUpTimeouts = catchUpTimeouts;
+        }
+        
+        void cancel() {
+            timeout.cancel();
+            for(Timeout catchUpTimeout : catchUpTimeouts) {
+                catchUpTimeout.cancel();
+            }
+        }
+        
+        long nextDueTime(long now) {
+            if(period>0 && dueTime<now) {
+                return dueTime+((now-dueTime)/period+1)*period;
+            }
+            return dueTime;
+        }
+    }
+    
+    @Override
+    public Timeout fireAt(E event, C context, long timeMillis) {
+        return fireDelayed(event, context, timeMillis-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Queue events delivered by timer in due order. Event which cannot be queued is discarded with warning, 
+     * as there is no firing thread to report to.
+     * @return false if state machine cannot process events
+     */
+    @SuppressWarnings("unchecked")
+    boolean queueScheduledEvents(List<Pair<Object, Object>> events) {
+        StateMachineStatus status = getStatus();
+        if(status==StateMachineStatus.TERMINATED || status==StateMachineStatus.ERROR || 
+                (status==StateMachineStatus.INITIALIZED && !isAutoStartEnabled)) {
+            return false;
+        }
+        for(Pair<Object, Object> eventInfo : events) {
+            if(!getQueuedEvents().offer((E)eventInfo.first(), (C)eventInfo.second(), EventPriority.NORMAL, false)) {
+                logger.warn("Scheduled event '{}' discarded by full event queue of state machine '{}'.", 
+                        eventInfo.first(), getIdentifier());
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Process events queued by timer in one pass. Instance confined to a thread must be processed on its
+     * mailbox, and otherwise events already processed by firing thread are simply skipped.
+     */
+    @SuppressWarnings("unchecked")
+    void processScheduledEvents(Object startContext) {
+        C context = (C)startContext;
+        boolean isEntryPoint = isEntryPoint();
+        if(isEntryPoint) {
+            StateMachineContext.set(getThis());
+        }
+        try {
+            checkFireable(context);
+            if(mailbox!=null) {
+                processConfinedEvents(null, context);
+            } else {
+                processEvents();
+            }
+        } finally {
+            if(isEntryPoint) {
+                StateMachineContext.set(null);
+            }
+        }
     }
     
     public void untypedFire(Object event, Object context) {
@@ -290,7 +1036,7 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     
     @Override
     public void fireImmediate(E event, C context) {
-        fire(event, context, true);
+        fire(event, context, EventPriority.CONTROL);
     }
     
     @Override
@@ -307,12 +1053,13 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
      * Clean all queued events
      */
     protected void cleanQueuedEvents() {
-        queuedEvents.clear();
+        if(queuedEvents!=null) {
+            queuedEvents.clear();
+        }
     }
     
     private ActionExecutionService<T, S, E, C> getDummyExecutor() {
-        ActionExecutionService<T, S, E, C> dummyExecutor = SquirrelProvider.getInstance().newInstance(
-                new TypeReference<ActionExecutionService<T, S, E, C>>(){});
+        ActionExecutionService<T, S, E, C> dummyExecutor = newExecutionService();
         dummyExecutor.setDummyExecution(true);
         return dummyExecutor;
     }
@@ -322,7 +1069,7 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
                 "Cannot test state machine under "+status+" status.");
         
         S testResult = null;
-        queuedTestEvents.add(new Pair<E, C>(event, context));
+        getQueuedTestEvents().add(new Pair<E, C>(event, context));
         if(!isProcessingTestEvent) {
             isProcessingTestEvent = true;
             @SuppressWarnings("unchecked")
@@ -539,19 +1286,63 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         if(isStarted()) {
             return;
         }
+        checkState(!isReleased, "The state machine instance was released.");
 
         setStatus(StateMachineStatus.BUSY);
-        internalStart(context, data, executor);
+        if(eventLog!=null && eventLog.getAppendMode()==StateMachineEventLog.AppendMode.BEFORE_EXECUTION) {
+            eventLog.appendStart(getIdentifier(), data.read().initialState(), context);
+        }
+        ActionExecutionService<T, S, E, C> executionService = acquireExecutor();
+        try {
+            internalStart(context, data, executionService);
+        } finally {
+            releaseExecutor(executionService);
+        }
+        if(eventLog!=null && eventLog.getAppendMode()==StateMachineEventLog.AppendMode.AFTER_EXECUTION) {
+            eventLog.appendStart(getIdentifier(), data.read().initialState(), context);
+        }
         setStatus(StateMachineStatus.IDLE);
         processEvents();
     }
     
+    private ActionExecutionService<T, S, E, C> getReplayExecutor() {
+        if(replayExecutor==null) {
+            replayExecutor = getDummyExecutor();
+        }
+        return replayExecutor;
+    }
+    
+    /**
+     * Replay logged start of state machine, no action will be invoked and nothing will be logged.
+     */
+    void replayStart(String identifier, C context) {
+        checkState(getStatus()==StateMachineStatus.INITIALIZED, "Cannot replay start under "+getStatus()+" status.");
+        data.write().identifier(identifier);
+        setStatus(StateMachineStatus.BUSY);
+        internalStart(context, data, getReplayExecutor());
+        resetStateResidency();
+        setStatus(StateMachineStatus.IDLE);
+    }
+    
+    /**
+     * Replay logged event of state machine, no action will be invoked and nothing will be logged.
+     */
+    boolean replayEvent(E event, C context) {
+        writeLock.lock();
+        try {
+            return processEvent(event, context, data, getReplayExecutor(), false);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
     private void internalStart(C context, StateMachineData<T, S, E, C> localData,
             ActionExecutionService<T, S, E, C> executionService) {
         ImmutableState<T, S, E, C> initialRawState = localData.read().initialRawState();
         StateContext<T, S, E, C> stateContext = FSM.newStateContext(
                 this, localData, initialRawState, getStartEvent(), context, null, executionService);
         
+        residencyChangeCount = 0;
         entryAll(initialRawState, stateContext);
         ImmutableState<T, S, E, C> historyState = initialRawState.enterByHistory(stateContext);
         if (isStartEventTriggerEntryActions) {
@@ -559,9 +1350,99 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         }
         localData.write().currentState(historyState.getStateId());
         localData.write().startContext(context);
+        recordStateResidency();
         fireEvent(new StartEventImpl<T, S, E, C>(getThis()));
     }
     
+    /**
+     * Note entry of state by transition, start or nested parallel region, which is recorded after actions
+     * of transition executed
+     * @param stateId entered state
+     * @param executionService execution service of transition
+     */
+    void stateEntered(S stateId, ActionExecutionService<T, S, E, C> executionService) {
+        if(executionService==replayExecutor) {
+            replayTimedState(stateId, true);
+        }
+        noteResidencyChange(stateId, executionService, 1);
+    }
+    
+    /**
+     * Note exit of state by transition or termination, which is recorded after actions of transition executed
+     * @param stateId exited state
+     * @param executionService execution service of transition
+     */
+    void stateExited(S stateId, ActionExecutionService<T, S, E, C> executionService) {
+        if(executionService==replayExecutor) {
+            replayTimedState(stateId, false);
+        }
+        noteResidencyChange(stateId, executionService, 0);
+    }
+    
+    /**
+     * Entry and exit actions of timed state are not executed by replay, so its timer is kept by data as
+     * pending timer instead. Entry time is not logged, therefore timer is counted from the time it was replayed.
+     */
+    @SuppressWarnings("unchecked")
+    private void replayTimedState(S stateId, boolean isEntered) {
+        ImmutableState<T, S, E, C> rawState = data.read().rawStateFrom(stateId);
+        if(!(rawState instanceof ImmutableTimedState)) {
+            return;
+        }
+        ImmutableTimedState<T, S, E, C> timedState = (ImmutableTimedState<T, S, E, C>)rawState;
+        disarmTimedState(stateId);
+        data.write().pendingTimerFor(stateId, isEntered ? new StateMachineData.PendingTimer(
+                System.currentTimeMillis()+timedState.getInitialDelay(), timedState.getTimeInterval()) : null);
+    }
+    
+    /**
+     * Arm pending timers kept by data of replayed or restored instance
+     */
+    void armPendingTimers() {
+        writeLock.lock();
+        try {
+            loadTimedStateTimers(data.read());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    private void noteResidencyChange(S stateId, ActionExecutionService<T, S, E, C> executionService, int isEntry) {
+        if(residencyStatistics==null || executionService.isDummyExecution()) {
+            return;
+        }
+        Integer index = residencyStateIndexes.get(stateId);
+        if(index==null) {
+            return;
+        }
+        if(residencyChangeCount==residencyChanges.length) {
+            residencyChanges = Arrays.copyOf(residencyChanges, residencyChangeCount*2);
+        }
+        residencyChanges[residencyChangeCount++] = index*2+isEntry;
+    }
+    
+    private void recordStateResidency() {
+        if(residencyChangeCount==0) {
+            return;
+        }
+        long now = System.nanoTime();
+        for(int i=0; i<residencyChangeCount; ++i) {
+            int index = residencyChanges[i]>>>1;
+            if((residencyChanges[i] & 1)==0) {
+                residencyStatistics.record(residencyStates.get(index), now-stateEnteredAt[index]);
+            }
+            stateEnteredAt[index] = now;
+        }
+        residencyChangeCount = 0;
+    }
+    
+    private void resetStateResidency() {
+        // residency of states active in loaded data is counted from the time it was loaded
+        if(stateEnteredAt!=null) {
+            Arrays.fill(stateEnteredAt, System.nanoTime());
+        }
+    }
+    
     @Override
     public void start() {
         start(null);
@@ -617,15 +1498,27 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             return;
         }
         
-        StateContext<T, S, E, C> stateContext = FSM.newStateContext(
-                this, data, data.read().currentRawState(), getTerminateEvent(), 
-                context, null, executor);
-        exitAll(data.read().currentRawState(), stateContext);
-        if (isTerminateEventTriggerExitActions) {
-            executor.execute();
+        ActionExecutionService<T, S, E, C> executionService = acquireExecutor();
+        try {
+            StateContext<T, S, E, C> stateContext = FSM.newStateContext(
+                    this, data, data.read().currentRawState(), getTerminateEvent(), 
+                    context, null, executionService);
+            residencyChangeCount = 0;
+            exitAll(data.read().currentRawState(), stateContext);
+            if (isTerminateEventTriggerExitActions) {
+                executionService.execute();
+            }
+            recordStateResidency();
+        } finally {
+            releaseExecutor(executionService);
         }
+        // exit actions which disarm timed states may not be executed on termination
+        disarmTimedStates();
 
         setStatus(StateMachineStatus.TERMINATED);
+        if(eventLog!=null) {
+            eventLog.appendTerminate(getIdentifier());
+        }
         fireEvent(new TerminateEventImpl<T, S, E, C>(getThis()));
     }
     
@@ -679,6 +1572,21 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         this.scriptManager = scriptManager;
     }
     
+    /**
+     * @param residencyStatistics statistics shared by builder
+     * @param residencyStateIndexes dense index of states tracked by statistics, whose iteration order is
+     * index order
+     */
+    void setResidencyStatistics(StateResidencyStatistics<S> residencyStatistics, 
+            ImmutableMap<S, Integer> residencyStateIndexes) {
+        this.residencyStatistics = residencyStatistics;
+        this.residencyStateIndexes = residencyStateIndexes;
+        this.residencyStates = residencyStateIndexes.keySet().asList();
+        this.stateEnteredAt = new long[residencyStateIndexes.size()];
+        this.residencyChanges = new int[8];
+        resetStateResidency();
+    }
+    
     void setStartEvent(E startEvent) {
         checkState(this.startEvent==null);
         this.startEvent=startEvent;
@@ -697,6 +1605,10 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         return terminateEvent;
     }
     
+    void setCoalescingPolicies(Map<E, EventCoalescingPolicy> coalescingPolicies) {
+        this.coalescingPolicies = coalescingPolicies;
+    }
+    
     void setFinishEvent(E finishEvent) {
         checkState(this.finishEvent==null);
         this.finishEvent=finishEvent;
@@ -721,6 +1633,7 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             
             // process linked state if any
             saveLinkedStateData(data.read(), savedData.write());
+            saveTimedStateTimers(savedData.write());
             return savedData.read();
         } finally {
             readLock.unlock();
@@ -743,13 +1656,76 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
         }
     }
     
+    @Override
+    public StateMachineData.Delta<T, S, E, C> dumpDelta(long sinceVersion) {
+        readLock.lock();
+        try {
+            StateMachineData.Delta<T, S, E, C> result = data.dumpDelta(sinceVersion);
+            if(!(result instanceof StateMachineDataDeltaImpl)) {
+                return result;
+            }
+            // linked state data is not hold by state machine data, so it cannot be tracked
+            StateMachineDataDeltaImpl<T, S, E, C> delta = (StateMachineDataDeltaImpl<T, S, E, C>)result;
+            ImmutableState<T, S, E, C> currentRawState = data.read().currentRawState();
+            if(currentRawState instanceof ImmutableLinkedState) {
+                delta.linkedStateDataOn(currentRawState.getStateId(), ((ImmutableLinkedState<T, S, E, C>)
+                        currentRawState).getLinkedStateMachine(getThis()).dumpSavedData());
+            }
+            ImmutableState<T, S, E, C> lastRawState = data.read().lastRawState();
+            if(delta.changedFields().contains(StateMachineData.Field.CURRENT_STATE) && 
+                    lastRawState instanceof ImmutableLinkedState && lastRawState!=currentRawState) {
+                delta.linkedStateDataOn(lastRawState.getStateId(), null);
+            }
+            return delta;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
     @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public boolean applyDelta(StateMachineData.Delta<T, S, E, C> delta) {
+        Preconditions.checkNotNull(delta, "Delta cannot be null");
+        if(writeLock.tryLock()) {
+            try {
+                data.applyDelta(delta);
+                for(Map.Entry<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> entry : 
+                    delta.linkedStateData().entrySet()) {
+                    ImmutableState<T, S, E, C> rawState = data.read().rawStateFrom(entry.getKey());
+                    if(entry.getValue()!=null && rawState instanceof ImmutableLinkedState) {
+                        ImmutableLinkedState<T, S, E, C> linkedRawState = (ImmutableLinkedState<T, S, E, C>)rawState;
+                        linkedRawState.getLinkedStateMachine(getThis()).loadSavedData((StateMachineData.Reader)entry.getValue());
+                    }
+                }
+                if(getStatus()==StateMachineStatus.INITIALIZED && data.read().currentState()!=null) {
+                    setStatus(StateMachineStatus.IDLE);
+                }
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        return false;
+    }
+    
     @Override
     public boolean loadSavedData(StateMachineData.Reader<T, S, E, C> savedData) {
+        return loadSavedData(savedData, true);
+    }
+    
+    /**
+     * @param savedData saved data
+     * @param isTimerArmed false to keep pending timers in data without arming them until 
+     * {@link #armPendingTimers()}, used by instance which is only replayed
+     * @return whether data was loaded
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    boolean loadSavedData(StateMachineData.Reader<T, S, E, C> savedData, boolean isTimerArmed) {
         Preconditions.checkNotNull(savedData, "Saved data cannot be null");
         if(writeLock.tryLock()) {
             try {
                 data.dump(savedData);
+                resetStateResidency();
                 // process linked state if any
                 for(S linkedState : savedData.linkedStates()) {
                     StateMachineData.Reader linkedStateData = savedData.linkedStateDataOf(linkedState);
@@ -759,6 +1735,9 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
                         linkedRawState.getLinkedStateMachine(getThis()).loadSavedData(linkedStateData);
                     }
                 }
+                if(isTimerArmed) {
+                    loadTimedStateTimers(savedData);
+                }
                 setStatus(StateMachineStatus.IDLE);
                 return true;
             } finally {
@@ -1075,7 +2054,7 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
             }
             
             for(int i=0; i<actionExecutorListenerMapping.length; ++i) {
-                registerDeclarativeListener(listenerMethodProvider, listenerMethod, executor, 
+                registerDeclarativeListener(listenerMethodProvider, listenerMethod, getExecutor(), 
                         (Class<? extends Annotation>)actionExecutorListenerMapping[i][0], 
                         actionExecutorListenerMapping[i][1], actionExecutorListenerMapping[i][2]);
             }
@@ -1085,7 +2064,9 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     @Override
     public void removeDeclarativeListener(final Object listenerMethodProvider) {
         removeDeclarativeListener(this, listenerMethodProvider);
-        removeDeclarativeListener(executor, listenerMethodProvider);
+        if(executor!=null) {
+            removeDeclarativeListener(executor, listenerMethodProvider);
+        }
     }
     
     /**
@@ -1093,7 +2074,7 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
      * @return ActionExecutionService
      */
     public int getExecutorListenerSize() {
-        return executor.getListenerSize();
+        return executor!=null ? executor.getListenerSize() : 0;
     }
     
     @Override
@@ -1254,12 +2235,14 @@ public abstract class AbstractStateMachine<T extends StateMachine<T, S, E, C>, S
     
     @Override
     public void addExecActionListener(BeforeExecActionListener<T, S, E, C> listener) {
-        executor.addExecActionListener(listener);
+        getExecutor().addExecActionListener(listener);
     }
 
     @Override
     public void removeExecActionListener(BeforeExecActionListener<T, S, E, C> listener) {
-        executor.removeExecActionListener(listener);
+        if(executor!=null) {
+            executor.removeExecActionListener(listener);
+        }
     }
     
     public static abstract class AbstractStateMachineEvent<T extends StateMachine<T, S, E, C>, S, E, C> 
@@ -1,5 +1,6 @@
 package org.squirrelframework.foundation.fsm.impl;
 
+import org.squirrelframework.foundation.fsm.EventPriority;
 import org.squirrelframework.foundation.fsm.UntypedStateMachine;
 
 import com.google.common.base.Preconditions;
@@ -30,7 +31,14 @@ public abstract class AbstractUntypedStateMachine
     public void fireImmediate(Object event, Object context) {
         Preconditions.checkNotNull(event, "Cannot fire null event.");
         verifyParameterType(event, context);
-        super.fire(event, context);
+        super.fireImmediate(event, context);
+    }
+    
+    @Override
+    public void fire(Object event, Object context, EventPriority priority) {
+        Preconditions.checkNotNull(event, "Cannot fire null event.");
+        verifyParameterType(event, context);
+        super.fire(event, context, priority);
     }
     
     @Override
@@ -0,0 +1,813 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.squirrelframework.foundation.fsm.ConverterProvider;
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineData.Field;
+import org.squirrelframework.foundation.fsm.StateMachineDataSerializer;
+import org.squirrelframework.foundation.util.Base64Coder;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * State machine data serializer which writes a versioned compact binary format instead of java object
+ * serialization. Type information is written as class name only once per record, state ids of enum
+ * type are written as ordinal, and other state ids are written as tagged values whose strings are
+ * interned within the record, so that repeated state ids only cost a varint back reference.
+ * <p>
+ * Record layout (version 2):
+ * <pre>
+ * magic(1) version(1) data
+ * data := typeOfStateMachine typeOfState typeOfEvent typeOfContext identifier
+ *         currentState lastState initialState startContext
+ *         count (parentState childState)*
+ *         count (parentState count subState*)*
+ *         count (linkedState data)*
+ *         count (timedState dueTime period)*
+ * </pre>
+ * Pending timers were added in version 2, and records of version 1 are read without them.
+ * Start context is only written when it is a simple value or {@link Serializable}, which is consistent
+ * with {@link StateMachineData.Writer#startContext(Object)}.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class BinaryStateMachineDataSerializer<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineDataSerializer<T, S, E, C> {
+
+    static final byte MAGIC = (byte)0x5A;
+
+    static final byte DELTA_MAGIC = (byte)0x5B;
+
+    public static final byte CURRENT_VERSION = 2;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Output> localOutput = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output(256);
+        }
+    };
+
+    @Override
+    public String serialize(StateMachineData.Reader<T, S, E, C> data) {
+        return new String(Base64Coder.encode(toByteArray(data)));
+    }
+
+    @Override
+    public StateMachineData.Reader<T, S, E, C> deserialize(String value) {
+        return fromByteArray(Base64Coder.decode(value));
+    }
+
+    public byte[] toByteArray(StateMachineData.Reader<T, S, E, C> data) {
+        Output output = encode(data);
+        try {
+            return output.toByteArray();
+        } finally {
+            release(output);
+        }
+    }
+
+    /**
+     * Write serialized state machine data into target buffer at its current position
+     * @param data state machine data
+     * @param target target buffer
+     * @throws java.nio.BufferOverflowException if no enough space remaining in target buffer
+     */
+    public void writeTo(StateMachineData.Reader<T, S, E, C> data, ByteBuffer target) {
+        Output output = encode(data);
+        try {
+            target.put(output.buffer(), 0, output.size());
+        } finally {
+            release(output);
+        }
+    }
+
+    public void writeTo(StateMachineData.Reader<T, S, E, C> data, OutputStream target) throws IOException {
+        Output output = encode(data);
+        try {
+            target.write(output.buffer(), 0, output.size());
+        } finally {
+            release(output);
+        }
+    }
+
+    public StateMachineData.Reader<T, S, E, C> fromByteArray(byte[] bytes) {
+        return readFrom(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Read state machine data from source buffer starting at its current position. Source buffer position
+     * is advanced to the end of the record.
+     * @param source source buffer
+     * @return state machine data
+     */
+    public StateMachineData.Reader<T, S, E, C> readFrom(ByteBuffer source) {
+        try {
+            return decode(new ByteBufferInput(source));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated state machine data.", e);
+        } catch (IOException e) {
+            // never happens on byte buffer
+            throw new RuntimeException("Data deserialization failed.", e);
+        }
+    }
+
+    /**
+     * Read state machine data from source stream. Only the bytes of the record are consumed.
+     * @param source source stream
+     * @return state machine data
+     * @throws IOException if read from source stream failed
+     */
+    public StateMachineData.Reader<T, S, E, C> readFrom(InputStream source) throws IOException {
+        return decode(new StreamInput(source));
+    }
+
+    /**
+     * Serialize changes of state machine data. Delta record has its own magic and can only be read by
+     * {@link #deltaFromByteArray(byte[])} or {@link #readDeltaFrom(ByteBuffer)}.
+     * @param delta changes of state machine data
+     * @return serialized delta
+     */
+    public byte[] toByteArray(StateMachineData.Delta<T, S, E, C> delta) {
+        Output output = encode(delta);
+        try {
+            return output.toByteArray();
+        } finally {
+            release(output);
+        }
+    }
+
+    public void writeTo(StateMachineData.Delta<T, S, E, C> delta, OutputStream target) throws IOException {
+        Output output = encode(delta);
+        try {
+            target.write(output.buffer(), 0, output.size());
+        } finally {
+            release(output);
+        }
+    }
+
+    public StateMachineData.Delta<T, S, E, C> deltaFromByteArray(byte[] bytes) {
+        return readDeltaFrom(ByteBuffer.wrap(bytes));
+    }
+
+    public StateMachineData.Delta<T, S, E, C> readDeltaFrom(ByteBuffer source) {
+        try {
+            return decodeDelta(new ByteBufferInput(source));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated state machine data delta.", e);
+        } catch (IOException e) {
+            // never happens on byte buffer
+            throw new RuntimeException("Data deserialization failed.", e);
+        }
+    }
+
+    public StateMachineData.Delta<T, S, E, C> readDeltaFrom(InputStream source) throws IOException {
+        return decodeDelta(new StreamInput(source));
+    }
+
+    private Output acquireOutput() {
+        Output output = localOutput.get();
+        if(output.inUse) {
+            // reentrant serialization e.g. serialize data in context serialization
+            output = new Output(256);
+        }
+        output.inUse = true;
+        return output;
+    }
+
+    private Output encode(StateMachineData.Reader<T, S, E, C> data) {
+        Output output = acquireOutput();
+        output.writeByte(MAGIC);
+        output.writeByte(CURRENT_VERSION);
+        writeData(output, data);
+        return output;
+    }
+
+    private Output encode(StateMachineData.Delta<T, S, E, C> delta) {
+        Output output = acquireOutput();
+        output.writeByte(DELTA_MAGIC);
+        output.writeByte(CURRENT_VERSION);
+        writeDelta(output, delta);
+        return output;
+    }
+
+    private void release(Output output) {
+        output.reset();
+        output.inUse = false;
+        if(output.buffer().length > MAX_RETAINED_BUFFER_SIZE && localOutput.get()==output) {
+            localOutput.remove();
+        }
+    }
+
+    private StateMachineData.Reader<T, S, E, C> decode(Input input) throws IOException {
+        byte formatVersion = readHeader(input, MAGIC);
+        return readData(input, formatVersion);
+    }
+
+    private StateMachineData.Delta<T, S, E, C> decodeDelta(Input input) throws IOException {
+        byte formatVersion = readHeader(input, DELTA_MAGIC);
+        return readDelta(input, formatVersion);
+    }
+
+    private byte readHeader(Input input, byte expectedMagic) throws IOException {
+        byte magic = input.readByte();
+        if(magic!=expectedMagic) {
+            throw new IllegalArgumentException("Not a binary state machine data "+
+                    (expectedMagic==MAGIC ? "record." : "delta record."));
+        }
+        byte version = input.readByte();
+        if(version<1 || version>CURRENT_VERSION) {
+            throw new IllegalArgumentException("Unsupported state machine data version "+version+".");
+        }
+        return version;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void writeData(Output output, StateMachineData.Reader data) {
+        Class<?> stateType = data.typeOfState();
+        output.writeClass(data.typeOfStateMachine());
+        output.writeClass(stateType);
+        output.writeClass(data.typeOfEvent());
+        output.writeClass(data.typeOfContext());
+        output.writeString(data.identifier());
+        output.writeId(stateType, data.currentState());
+        output.writeId(stateType, data.lastState());
+        output.writeId(stateType, data.initialState());
+        output.writeValue(data.startContext());
+
+        Collection<Object> parentStates = data.activeParentStates();
+        output.writeVarInt(parentStates.size());
+        for(Object parentState : parentStates) {
+            output.writeId(stateType, parentState);
+            output.writeId(stateType, data.lastActiveChildStateOf(parentState));
+        }
+
+        Collection<Object> parallelStates = data.parallelStates();
+        output.writeVarInt(parallelStates.size());
+        for(Object parallelState : parallelStates) {
+            output.writeId(stateType, parallelState);
+            List<Object> subStates = data.subStatesOn(parallelState);
+            output.writeVarInt(subStates.size());
+            for(Object subState : subStates) {
+                output.writeId(stateType, subState);
+            }
+        }
+
+        Collection<Object> linkedStates = data.linkedStates();
+        output.writeVarInt(linkedStates.size());
+        for(Object linkedState : linkedStates) {
+            output.writeId(stateType, linkedState);
+            writeData(output, data.linkedStateDataOf(linkedState));
+        }
+
+        Collection<Object> timedStates = data.pendingTimerStates();
+        output.writeVarInt(timedStates.size());
+        for(Object timedState : timedStates) {
+            StateMachineData.PendingTimer timer = data.pendingTimerOf(timedState);
+            output.writeId(stateType, timedState);
+            output.writeZigZagLong(timer.getDueTime());
+            output.writeZigZagLong(timer.getPeriod());
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private StateMachineDataImpl readData(Input input, byte formatVersion) throws IOException {
+        StateMachineDataImpl data = new StateMachineDataImpl();
+        Class stateMachineType = input.readClass();
+        Class stateType = input.readClass();
+        Class eventType = input.readClass();
+        Class contextType = input.readClass();
+        if(stateMachineType!=null) data.typeOfStateMachine(stateMachineType);
+        if(stateType!=null) data.typeOfState(stateType);
+        if(eventType!=null) data.typeOfEvent(eventType);
+        if(contextType!=null) data.typeOfContext(contextType);
+        data.identifier(input.readString());
+        data.currentState(input.readId(stateType));
+        data.lastState(input.readId(stateType));
+        data.initialState(input.readId(stateType));
+        data.startContext(input.readValue());
+
+        int parentStateSize = input.readVarInt();
+        for(int i=0; i<parentStateSize; ++i) {
+            Object parentState = input.readId(stateType);
+            data.lastActiveChildStateFor(parentState, input.readId(stateType));
+        }
+
+        int parallelStateSize = input.readVarInt();
+        for(int i=0; i<parallelStateSize; ++i) {
+            Object parallelState = input.readId(stateType);
+            int subStateSize = input.readVarInt();
+            for(int j=0; j<subStateSize; ++j) {
+                data.putSubState(parallelState, input.readId(stateType));
+            }
+        }
+
+        int linkedStateSize = input.readVarInt();
+        for(int i=0; i<linkedStateSize; ++i) {
+            Object linkedState = input.readId(stateType);
+            data.linkedStateDataOn(linkedState, readData(input, formatVersion));
+        }
+
+        if(formatVersion>=2) {
+            int timedStateSize = input.readVarInt();
+            for(int i=0; i<timedStateSize; ++i) {
+                Object timedState = input.readId(stateType);
+                long dueTime = input.readZigZagLong();
+                data.pendingTimerFor(timedState, new StateMachineData.PendingTimer(dueTime, input.readZigZagLong()));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Delta layout: sinceVersion version fieldMask changedFields*
+     * count (parentState childState|null)* count (parentState count subState*)* count (linkedState data|null)*.
+     * State ids are written as tagged values as delta holds no type information.
+     */
+    private void writeDelta(Output output, StateMachineData.Delta<T, S, E, C> delta) {
+        output.writeVarLong(delta.sinceVersion());
+        output.writeVarLong(delta.version());
+        Set<Field> changedFields = delta.changedFields();
+        int fieldMask = 0;
+        for(Field field : changedFields) {
+            fieldMask |= 1 << field.ordinal();
+        }
+        output.writeVarInt(fieldMask);
+        if(changedFields.contains(Field.IDENTIFIER)) output.writeString(delta.identifier());
+        if(changedFields.contains(Field.CURRENT_STATE)) output.writeValue(delta.currentState());
+        if(changedFields.contains(Field.LAST_STATE)) output.writeValue(delta.lastState());
+        if(changedFields.contains(Field.INITIAL_STATE)) output.writeValue(delta.initialState());
+        if(changedFields.contains(Field.START_CONTEXT)) output.writeValue(delta.startContext());
+
+        output.writeVarInt(delta.lastActiveChildStates().size());
+        for(Map.Entry<S, S> entry : delta.lastActiveChildStates().entrySet()) {
+            output.writeValue(entry.getKey());
+            output.writeValue(entry.getValue());
+        }
+        output.writeVarInt(delta.subStates().size());
+        for(Map.Entry<S, List<S>> entry : delta.subStates().entrySet()) {
+            output.writeValue(entry.getKey());
+            output.writeVarInt(entry.getValue().size());
+            for(S subState : entry.getValue()) {
+                output.writeValue(subState);
+            }
+        }
+        output.writeVarInt(delta.linkedStateData().size());
+        for(Map.Entry<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> entry :
+            delta.linkedStateData().entrySet()) {
+            output.writeValue(entry.getKey());
+            output.writeByte(entry.getValue()!=null ? 1 : 0);
+            if(entry.getValue()!=null) {
+                writeData(output, entry.getValue());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private StateMachineData.Delta<T, S, E, C> readDelta(Input input, byte formatVersion) throws IOException {
+        long sinceVersion = input.readVarLong();
+        long version = input.readVarLong();
+        StateMachineDataDeltaImpl<T, S, E, C> delta = new StateMachineDataDeltaImpl<T, S, E, C>(sinceVersion, version);
+        int fieldMask = input.readVarInt();
+        if((fieldMask & (1 << Field.IDENTIFIER.ordinal()))!=0) delta.identifier(input.readString());
+        if((fieldMask & (1 << Field.CURRENT_STATE.ordinal()))!=0) delta.currentState((S)input.readValue());
+        if((fieldMask & (1 << Field.LAST_STATE.ordinal()))!=0) delta.lastState((S)input.readValue());
+        if((fieldMask & (1 << Field.INITIAL_STATE.ordinal()))!=0) delta.initialState((S)input.readValue());
+        if((fieldMask & (1 << Field.START_CONTEXT.ordinal()))!=0) delta.startContext(input.readValue());
+
+        int parentStateSize = input.readVarInt();
+        for(int i=0; i<parentStateSize; ++i) {
+            S parentState = (S)input.readValue();
+            delta.lastActiveChildStateFor(parentState, (S)input.readValue());
+        }
+        int parallelStateSize = input.readVarInt();
+        for(int i=0; i<parallelStateSize; ++i) {
+            S parallelState = (S)input.readValue();
+            int subStateSize = input.readVarInt();
+            List<S> subStates = Lists.newArrayListWithCapacity(subStateSize);
+            for(int j=0; j<subStateSize; ++j) {
+                subStates.add((S)input.readValue());
+            }
+            delta.subStatesOn(parallelState, subStates);
+        }
+        int linkedStateSize = input.readVarInt();
+        for(int i=0; i<linkedStateSize; ++i) {
+            S linkedState = (S)input.readValue();
+            delta.linkedStateDataOn(linkedState, input.readByte()!=0 ? readData(input, formatVersion) : null);
+        }
+        return delta;
+    }
+
+    // value tags
+    static final int TAG_NULL       = 0;
+    static final int TAG_STRING     = 1;
+    static final int TAG_INTEGER    = 2;
+    static final int TAG_LONG       = 3;
+    static final int TAG_BOOLEAN    = 4;
+    static final int TAG_ENUM       = 5;
+    static final int TAG_CONVERTED  = 6;
+    static final int TAG_SERIALIZED = 7;
+    static final int TAG_FLOAT      = 8;
+    static final int TAG_DOUBLE     = 9;
+
+    // value types whose converted string is read back to equal value by GeneralConverter
+    private static final Set<Class<?>> CONVERTED_TYPES = ImmutableSet.<Class<?>>of(Short.class, Byte.class, 
+            Character.class, BigInteger.class, BigDecimal.class, Date.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, Class<?>> resolvedClasses = Maps.newConcurrentMap();
+
+    static Class<?> resolveClass(String className) {
+        Class<?> clazz = resolvedClasses.get(className);
+        if(clazz==null) {
+            try {
+                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                clazz = Class.forName(className, false, classLoader!=null ?
+                        classLoader : BinaryStateMachineDataSerializer.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Cannot resolve class '"+className+"'.", e);
+            }
+            resolvedClasses.putIfAbsent(className, clazz);
+        }
+        return clazz;
+    }
+
+    /**
+     * Growable byte array writer. Strings written through {@link #writeString(String)} are interned
+     * until {@link #reset()} is called.
+     */
+    static class Output {
+
+        private byte[] buffer;
+
+        private int size = 0;
+
+        private final Map<String, Integer> internedStrings = Maps.newHashMap();
+
+        private boolean inUse = false;
+
+        Output(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        void reset() {
+            size = 0;
+            internedStrings.clear();
+        }
+
+        private void ensureCapacity(int extra) {
+            if(size+extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length<<1, size+extra));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte)value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeFixedInt(int value) {
+            ensureCapacity(4);
+            buffer[size++] = (byte)(value >>> 24);
+            buffer[size++] = (byte)(value >>> 16);
+            buffer[size++] = (byte)(value >>> 8);
+            buffer[size++] = (byte)value;
+        }
+
+        void writeFixedLong(long value) {
+            writeFixedInt((int)(value >>> 32));
+            writeFixedInt((int)value);
+        }
+
+        static boolean isWritable(Object value) {
+            // values of simple types are all serializable, others are written by java serialization
+            return value==null || value instanceof Serializable;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte)value;
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Null is written as 0, first occurrence of string is written as 1 followed by UTF-8 bytes,
+         * later occurrences are written as interned index plus 2.
+         */
+        void writeString(String value) {
+            if(value==null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = internedStrings.get(value);
+            if(index!=null) {
+                writeVarInt(index+2);
+            } else {
+                internedStrings.put(value, internedStrings.size());
+                byte[] bytes = value.getBytes(UTF8);
+                writeVarInt(1);
+                writeVarInt(bytes.length);
+                writeBytes(bytes);
+            }
+        }
+
+        void writeClass(Class<?> clazz) {
+            writeString(clazz!=null ? clazz.getName() : null);
+        }
+
+        /**
+         * Write id of declared type, enum id is written as ordinal plus 1 and 0 stands for null.
+         */
+        void writeId(Class<?> declaredType, Object id) {
+            if(declaredType!=null && declaredType.isEnum()) {
+                writeVarInt(id!=null ? ((Enum<?>)id).ordinal()+1 : 0);
+            } else {
+                writeValue(id);
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        void writeValue(Object value) {
+            if(value==null) {
+                writeByte(TAG_NULL);
+            } else if(value instanceof String) {
+                writeByte(TAG_STRING);
+                writeString((String)value);
+            } else if(value instanceof Integer) {
+                writeByte(TAG_INTEGER);
+                writeZigZagLong((Integer)value);
+            } else if(value instanceof Long) {
+                writeByte(TAG_LONG);
+                writeZigZagLong((Long)value);
+            } else if(value instanceof Boolean) {
+                writeByte(TAG_BOOLEAN);
+                writeByte((Boolean)value ? 1 : 0);
+            } else if(value instanceof Enum) {
+                writeByte(TAG_ENUM);
+                writeClass(((Enum<?>)value).getDeclaringClass());
+                writeVarInt(((Enum<?>)value).ordinal());
+            } else if(value instanceof Float) {
+                writeByte(TAG_FLOAT);
+                writeFixedInt(Float.floatToRawIntBits((Float)value));
+            } else if(value instanceof Double) {
+                writeByte(TAG_DOUBLE);
+                writeFixedLong(Double.doubleToRawLongBits((Double)value));
+            } else if(CONVERTED_TYPES.contains(value.getClass())) {
+                writeByte(TAG_CONVERTED);
+                writeClass(value.getClass());
+                writeString(ConverterProvider.INSTANCE.getConverter((Class)value.getClass()).convertToString(value));
+            } else if(value instanceof Serializable) {
+                writeByte(TAG_SERIALIZED);
+                byte[] bytes = javaSerialize(value);
+                writeVarInt(bytes.length);
+                writeBytes(bytes);
+            } else {
+                throw new IllegalArgumentException("Cannot serialize value of type '"+value.getClass().getName()+"'.");
+            }
+        }
+
+        private static byte[] javaSerialize(Object value) {
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                try {
+                    oos.writeObject(value);
+                } finally {
+                    oos.close();
+                }
+                return bos.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException("Data serialization failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Reader counterpart of {@link Output}.
+     */
+    static abstract class Input {
+
+        private final List<String> internedStrings = Lists.newArrayList();
+
+        abstract byte readByte() throws IOException;
+
+        abstract void readBytes(byte[] bytes) throws IOException;
+
+        int readVarInt() throws IOException {
+            return (int)readVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for(int shift=0; shift<64; shift+=7) {
+                byte b = readByte();
+                result |= (long)(b & 0x7F) << shift;
+                if((b & 0x80)==0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint.");
+        }
+
+        int readFixedInt() throws IOException {
+            return (readByte() & 0xFF) << 24 | (readByte() & 0xFF) << 16 | (readByte() & 0xFF) << 8 | 
+                    (readByte() & 0xFF);
+        }
+
+        long readFixedLong() throws IOException {
+            return (long)readFixedInt() << 32 | (readFixedInt() & 0xFFFFFFFFL);
+        }
+
+        long readZigZagLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            int header = readVarInt();
+            if(header==0) {
+                return null;
+            } else if(header==1) {
+                byte[] bytes = new byte[readVarInt()];
+                readBytes(bytes);
+                String value = new String(bytes, UTF8);
+                internedStrings.add(value);
+                return value;
+            }
+            int index = header-2;
+            if(index>=internedStrings.size()) {
+                throw new IllegalArgumentException("Invalid interned string reference "+index+".");
+            }
+            return internedStrings.get(index);
+        }
+
+        Class<?> readClass() throws IOException {
+            String className = readString();
+            return className!=null ? resolveClass(className) : null;
+        }
+
+        Object readId(Class<?> declaredType) throws IOException {
+            if(declaredType!=null && declaredType.isEnum()) {
+                int ordinal = readVarInt();
+                return ordinal>0 ? declaredType.getEnumConstants()[ordinal-1] : null;
+            }
+            return readValue();
+        }
+
+        Object readValue() throws IOException {
+            int tag = readByte();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return readString();
+            case TAG_INTEGER:
+                return (int)readZigZagLong();
+            case TAG_LONG:
+                return readZigZagLong();
+            case TAG_BOOLEAN:
+                return readByte()!=0;
+            case TAG_ENUM:
+                Class<?> enumType = readClass();
+                return enumType.getEnumConstants()[readVarInt()];
+            case TAG_FLOAT:
+                return Float.intBitsToFloat(readFixedInt());
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(readFixedLong());
+            case TAG_CONVERTED:
+                Class<?> valueType = readClass();
+                return ConverterProvider.INSTANCE.getConverter(valueType).convertFromString(readString());
+            case TAG_SERIALIZED:
+                byte[] bytes = new byte[readVarInt()];
+                readBytes(bytes);
+                return javaDeserialize(bytes);
+            default:
+                throw new IllegalArgumentException("Unknown value tag "+tag+".");
+            }
+        }
+
+        private static Object javaDeserialize(byte[] bytes) {
+            try {
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Data deserialization failed.", e);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static class ByteBufferInput extends Input {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        byte readByte() {
+            return buffer.get();
+        }
+
+        @Override
+        void readBytes(byte[] bytes) {
+            buffer.get(bytes);
+        }
+    }
+
+    static class StreamInput extends Input {
+
+        private final InputStream stream;
+
+        StreamInput(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        byte readByte() throws IOException {
+            int value = stream.read();
+            if(value<0) throw new EOFException("Truncated state machine data.");
+            return (byte)value;
+        }
+
+        @Override
+        void readBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while(offset<bytes.length) {
+                int read = stream.read(bytes, offset, bytes.length-offset);
+                if(read<0) throw new EOFException("Truncated state machine data.");
+                offset += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.squirrelframework.foundation.fsm.EventCoalescingPolicy;
+import org.squirrelframework.foundation.fsm.EventPriority;
+import org.squirrelframework.foundation.fsm.EventQueueOverflowPolicy;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * Queue of events fired while state machine is processing event, which keeps one FIFO lane per
+ * {@link EventPriority} class and drains higher class first. Lane of lower class which has been passed
+ * over starvation limit times is drained next. Event declared with {@link EventCoalescingPolicy} is
+ * merged with equal event queued in the same lane. Queue is bounded by capacity shared by all the lanes
+ * and applies overflow policy when full. Block timeout of zero makes {@link EventQueueOverflowPolicy#BLOCK}
+ * wait until queue has room.
+ *
+ * @author Henry.He
+ *
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+class EventQueue<E, C> {
+
+    private static final int LANES = EventPriority.values().length;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    // guarded by lock, indexed by priority ordinal
+    private final List<ArrayDeque<QueuedEvent<E, C>>> lanes;
+    
+    // queued events which can be coalesced by event, guarded by lock, indexed by priority ordinal
+    private final List<Map<E, QueuedEvent<E, C>>> coalescibleEvents;
+
+    // queued events counted by event and context for COALESCE overflow, guarded by lock, indexed by priority ordinal
+    private final List<Multiset<EventKey>> queuedEventKeys;
+
+    // number of times non-empty lane was passed over since last drained, guarded by lock
+    private final int[] passedOver = new int[LANES];
+
+    private volatile int count = 0;
+
+    private final int capacity;
+
+    private final EventQueueOverflowPolicy overflowPolicy;
+
+    private final long blockTimeout;
+
+    private final int starvationLimit;
+    
+    private final Map<E, EventCoalescingPolicy> coalescingPolicies;
+
+    EventQueue(int capacity, EventQueueOverflowPolicy overflowPolicy, long blockTimeout, int starvationLimit, 
+            Map<E, EventCoalescingPolicy> coalescingPolicies) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+        this.starvationLimit = starvationLimit;
+        this.coalescingPolicies = coalescingPolicies;
+        this.lanes = Lists.newArrayListWithCapacity(LANES);
+        this.coalescibleEvents = Lists.newArrayListWithCapacity(LANES);
+        this.queuedEventKeys = overflowPolicy==EventQueueOverflowPolicy.COALESCE ? 
+                Lists.<Multiset<EventKey>>newArrayListWithCapacity(LANES) : null;
+        for(int i=0; i<LANES; ++i) {
+            lanes.add(new ArrayDeque<QueuedEvent<E, C>>());
+            coalescibleEvents.add(coalescingPolicies.isEmpty() ? 
+                    Collections.<E, QueuedEvent<E, C>>emptyMap() : Maps.<E, QueuedEvent<E, C>>newHashMap());
+            if(queuedEventKeys!=null) {
+                queuedEventKeys.add(HashMultiset.<EventKey>create());
+            }
+        }
+    }
+
+    /**
+     * @param event queued event
+     * @param context event context
+     * @param priority priority class of event
+     * @param canBlock whether calling thread can wait for room
+     * @return false if event was neither queued nor coalesced
+     */
+    boolean offer(E event, C context, EventPriority priority, boolean canBlock) {
+        lock.lock();
+        try {
+            if(coalesce(event, context, priority)) {
+                return true;
+            }
+            if(count<capacity) {
+                enqueue(event, context, priority);
+                return true;
+            }
+            switch (overflowPolicy) {
+            case BLOCK:
+                if(!canBlock) {
+                    return false;
+                }
+                if(blockTimeout==0) {
+                    while(count>=capacity) {
+                        notFull.await();
+                    }
+                } else {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+                    while(count>=capacity) {
+                        if(nanos<=0) {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                }
+                enqueue(event, context, priority);
+                return true;
+            case DROP_OLDEST:
+                dropOldest();
+                enqueue(event, context, priority);
+                return true;
+            case COALESCE:
+                return queuedEventKeys.get(priority.ordinal()).contains(new EventKey(event, context));
+            default:
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean coalesce(E event, C context, EventPriority priority) {
+        EventCoalescingPolicy policy = coalescingPolicies.get(event);
+        if(policy==null) {
+            return false;
+        }
+        QueuedEvent<E, C> pending = coalescibleEvents.get(priority.ordinal()).get(event);
+        if(pending==null) {
+            return false;
+        }
+        if(policy==EventCoalescingPolicy.REPLACE_PENDING) {
+            if(queuedEventKeys!=null) {
+                queuedEventKeys.get(priority.ordinal()).remove(new EventKey(event, pending.context));
+                queuedEventKeys.get(priority.ordinal()).add(new EventKey(event, context));
+            }
+            pending.context = context;
+        }
+        return true;
+    }
+
+    private void enqueue(E event, C context, EventPriority priority) {
+        QueuedEvent<E, C> queuedEvent = new QueuedEvent<E, C>(event, context);
+        lanes.get(priority.ordinal()).addLast(queuedEvent);
+        if(coalescingPolicies.containsKey(event)) {
+            coalescibleEvents.get(priority.ordinal()).put(event, queuedEvent);
+        }
+        if(queuedEventKeys!=null) {
+            queuedEventKeys.get(priority.ordinal()).add(new EventKey(event, context));
+        }
+        count++;
+    }
+
+    private QueuedEvent<E, C> dequeue(int lane) {
+        QueuedEvent<E, C> queuedEvent = lanes.get(lane).pollFirst();
+        if(queuedEvent!=null) {
+            if(coalescibleEvents.get(lane).get(queuedEvent.event)==queuedEvent) {
+                coalescibleEvents.get(lane).remove(queuedEvent.event);
+            }
+            if(queuedEventKeys!=null) {
+                queuedEventKeys.get(lane).remove(new EventKey(queuedEvent.event, queuedEvent.context));
+            }
+            count--;
+        }
+        return queuedEvent;
+    }
+
+    private void dropOldest() {
+        for(int i=LANES-1; i>=0; --i) {
+            if(dequeue(i)!=null) {
+                return;
+            }
+        }
+    }
+
+    QueuedEvent<E, C> poll() {
+        lock.lock();
+        try {
+            if(count==0) {
+                return null;
+            }
+            int drained = -1;
+            for(int i=0; i<LANES; ++i) {
+                if(lanes.get(i).isEmpty()) {
+                    continue;
+                }
+                if(drained<0 || passedOver[i]>=starvationLimit && passedOver[drained]<starvationLimit) {
+                    drained = i;
+                }
+            }
+            for(int i=0; i<LANES; ++i) {
+                if(i==drained) {
+                    passedOver[i] = 0;
+                } else if(!lanes.get(i).isEmpty()) {
+                    passedOver[i]++;
+                }
+            }
+            notFull.signal();
+            return dequeue(drained);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return count==0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            for(int i=0; i<LANES; ++i) {
+                lanes.get(i).clear();
+                coalescibleEvents.get(i).clear();
+                if(queuedEventKeys!=null) {
+                    queuedEventKeys.get(i).clear();
+                }
+                passedOver[i] = 0;
+            }
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static class QueuedEvent<E, C> {
+        final E event;
+        // replaced by coalesced event, guarded by lock of queue until polled
+        C context;
+
+        QueuedEvent(E event, C context) {
+            this.event = event;
+            this.context = context;
+        }
+    }
+
+    private static class EventKey {
+        private final Object event;
+        private final Object context;
+
+        EventKey(Object event, Object context) {
+            this.event = event;
+            this.context = context;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof EventKey)) {
+                return false;
+            }
+            EventKey other = (EventKey)obj;
+            return Objects.equal(event, other.event) && Objects.equal(context, other.context);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(event, context);
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineEventLog;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer.ByteBufferInput;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer.Output;
+import org.squirrelframework.foundation.fsm.impl.StateMachineEventLogCompactor.Snapshot;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Segmented file based state machine event log. Records appended by all the state machines are buffered
+ * and written by a single flusher thread, which forces each batch to disk once (group commit), so that
+ * concurrent appenders share the cost of one fsync. When sync append is enabled, append only returns
+ * after its record is durable.
+ * <p>
+ * Each segment file is named after the sequence number of its first record and contains frames of
+ * <pre>
+ * length(4) crc32(4) sequence(8) payload(length)
+ * payload := type(1) identifier [state|event context]
+ * </pre>
+ * A torn or corrupted frame at the end of segment is ignored during replay. Closed segments can be folded
+ * into snapshots by {@link StateMachineEventLogCompactor}, recovery then starts from the latest snapshot.
+ *
+ * @author Henry.He
+ *
+ */
+public class FileStateMachineEventLog implements StateMachineEventLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileStateMachineEventLog.class);
+
+    static final byte RECORD_START = 1;
+
+    static final byte RECORD_EVENT = 2;
+
+    static final byte RECORD_TERMINATE = 3;
+
+    static final int FRAME_HEADER_SIZE = 16;
+
+    static final String SEGMENT_PREFIX = "segment-";
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final ThreadLocal<Output> localPayload = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output(128);
+        }
+    };
+
+    private static final ThreadLocal<CRC32> localChecksum = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    private final File directory;
+
+    private final AppendMode appendMode;
+
+    private final long segmentSize;
+
+    private final boolean isSyncAppend;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition pendingCondition = lock.newCondition();
+
+    // guarded by lock
+    private Output pending = new Output(64 * 1024);
+
+    private Output flushing = new Output(64 * 1024);
+
+    private SettableFuture<Long> pendingBatch = SettableFuture.create();
+
+    private SettableFuture<Long> flushingBatch = null;
+
+    private long pendingFirstSequence;
+
+    private long lastSequence;
+
+    private boolean isClosed = false;
+
+    private volatile IOException failure = null;
+
+    // confined to flusher thread
+    private RandomAccessFile segmentFile;
+
+    private long segmentBytes;
+
+    // guarded by segmentMonitor, segment file currently written by flusher
+    private File activeSegment;
+
+    private final Object segmentMonitor = new Object();
+
+    private final Thread flusher;
+
+    public FileStateMachineEventLog(File directory) throws IOException {
+        this(directory, AppendMode.AFTER_EXECUTION, DEFAULT_SEGMENT_SIZE, true);
+    }
+
+    /**
+     * @param directory directory of segment files
+     * @param appendMode when accepted event is appended
+     * @param segmentSize size of segment file before rolling to next segment
+     * @param isSyncAppend whether append blocks until the record is durable
+     * @throws IOException if event log directory cannot be accessed
+     */
+    public FileStateMachineEventLog(File directory, AppendMode appendMode, long segmentSize,
+            boolean isSyncAppend) throws IOException {
+        if(segmentSize<=0 || segmentSize>Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment size must be within (0, "+Integer.MAX_VALUE+"].");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create event log directory '"+directory+"'.");
+        }
+        this.directory = directory;
+        this.appendMode = appendMode;
+        this.segmentSize = segmentSize;
+        this.isSyncAppend = isSyncAppend;
+        this.lastSequence = findLastSequence();
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "squirrel-event-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public AppendMode getAppendMode() {
+        return appendMode;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public long appendStart(String identifier, Object initialState, Object context) {
+        return append(RECORD_START, identifier, initialState, context);
+    }
+
+    @Override
+    public long appendEvent(String identifier, Object event, Object context) {
+        return append(RECORD_EVENT, identifier, event, context);
+    }
+
+    @Override
+    public long appendTerminate(String identifier) {
+        return append(RECORD_TERMINATE, identifier, null, null);
+    }
+
+    private long append(byte type, String identifier, Object value, Object context) {
+        Output payload = localPayload.get();
+        payload.reset();
+        payload.writeByte(type);
+        payload.writeString(identifier);
+        if(type!=RECORD_TERMINATE) {
+            payload.writeValue(value);
+            payload.writeValue(Output.isWritable(context) ? context : null);
+        }
+        CRC32 checksum = localChecksum.get();
+        checksum.reset();
+        checksum.update(payload.buffer(), 0, payload.size());
+
+        long sequence;
+        Future<Long> batch;
+        lock.lock();
+        try {
+            checkAppendable();
+            sequence = ++lastSequence;
+            if(pending.size()==0) {
+                pendingFirstSequence = sequence;
+                pendingCondition.signal();
+            }
+            pending.writeFixedInt(payload.size());
+            pending.writeFixedInt((int)checksum.getValue());
+            pending.writeFixedLong(sequence);
+            pending.writeBytes(payload.buffer(), 0, payload.size());
+            batch = pendingBatch;
+        } finally {
+            lock.unlock();
+        }
+        if(isSyncAppend) {
+            await(batch);
+        }
+        return sequence;
+    }
+
+    private void checkAppendable() {
+        if(isClosed) {
+            throw new IllegalStateException("Event log is already closed.");
+        }
+        if(failure!=null) {
+            throw new IllegalStateException("Event log is broken.", failure);
+        }
+    }
+
+    private void await(Future<Long> batch) {
+        try {
+            batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting event log sync.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Event log append failed.", e.getCause());
+        }
+    }
+
+    @Override
+    public void sync() {
+        Future<Long> batch;
+        lock.lock();
+        try {
+            batch = pending.size()>0 ? pendingBatch : flushingBatch;
+        } finally {
+            lock.unlock();
+        }
+        if(batch!=null) {
+            await(batch);
+        }
+    }
+
+    private void flushLoop() {
+        while(true) {
+            Output batch;
+            SettableFuture<Long> batchFuture;
+            long firstSequence, batchLastSequence;
+            lock.lock();
+            try {
+                while(pending.size()==0 && !isClosed) {
+                    pendingCondition.awaitUninterruptibly();
+                }
+                if(pending.size()==0) {
+                    break;
+                }
+                batch = pending;
+                pending = flushing;
+                flushing = batch;
+                batchFuture = pendingBatch;
+                pendingBatch = SettableFuture.create();
+                flushingBatch = batchFuture;
+                firstSequence = pendingFirstSequence;
+                batchLastSequence = lastSequence;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                write(batch, firstSequence);
+                batchFuture.set(batchLastSequence);
+            } catch (IOException e) {
+                logger.error("Write event log failed.", e);
+                failure = e;
+                batchFuture.setException(e);
+            } finally {
+                batch.reset();
+            }
+        }
+        closeSegment();
+    }
+
+    private void write(Output batch, long firstSequence) throws IOException {
+        if(segmentFile==null || segmentBytes>=segmentSize) {
+            closeSegment();
+            synchronized (segmentMonitor) {
+                activeSegment = segmentFileOf(directory, firstSequence);
+                segmentFile = new RandomAccessFile(activeSegment, "rw");
+            }
+            segmentBytes = 0;
+        }
+        FileChannel channel = segmentFile.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(batch.buffer(), 0, batch.size());
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        segmentBytes += batch.size();
+    }
+
+    private void closeSegment() {
+        if(segmentFile!=null) {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+                logger.warn("Close event log segment failed.", e);
+            }
+            segmentFile = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if(isClosed) return;
+            isClosed = true;
+            pendingCondition.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(failure!=null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public <T extends StateMachine<T, S, E, C>, S, E, C> Map<String, T> recover(
+            final StateMachineBuilder<T, S, E, C> builder, final Object... extraParams) {
+        final Map<String, T> stateMachines = Maps.newLinkedHashMap();
+        try {
+            // load latest compacted snapshot and only replay the log tail after it
+            Snapshot snapshot = StateMachineEventLogCompactor.latestSnapshot(directory);
+            long fromSequence = 0;
+            if(snapshot!=null) {
+                for(File partitionFile : snapshot.partitionFiles) {
+                    StateMachineSnapshotFile<T, S, E, C> snapshotFile = StateMachineSnapshotFile.open(partitionFile);
+                    try {
+                        for(String identifier : snapshotFile.identifiers()) {
+                            stateMachines.put(identifier, StateMachineEventLogCompactor.restoreReplica(
+                                    snapshotFile.read(identifier), builder, extraParams));
+                        }
+                    } finally {
+                        snapshotFile.close();
+                    }
+                }
+                fromSequence = snapshot.sequence+1;
+            }
+            replay(segmentFiles(directory), fromSequence, new RecordHandler() {
+                @Override
+                public void handle(long sequence, byte type, String identifier, Object value, Object context) {
+                    StateMachineEventLogCompactor.apply(stateMachines, type, identifier, value, context,
+                            builder, extraParams);
+                }
+            });
+            StateMachineEventLogCompactor.armPendingTimers(stateMachines.values());
+        } catch (IOException e) {
+            throw new IllegalStateException("Recover state machines from event log failed.", e);
+        }
+        return stateMachines;
+    }
+
+    private long findLastSequence() throws IOException {
+        List<File> segments = segmentFiles(directory);
+        final long[] result = new long[] {0};
+        for(int i=segments.size()-1; i>=0 && result[0]==0; --i) {
+            result[0] = firstSequenceOf(segments.get(i))-1;
+            replay(segments.subList(i, i+1), 0, new RecordHandler() {
+                @Override
+                public void handle(long sequence, byte type, String identifier, Object value, Object context) {
+                    result[0] = Math.max(result[0], sequence);
+                }
+            });
+        }
+        Snapshot snapshot = StateMachineEventLogCompactor.latestSnapshot(directory);
+        return snapshot!=null ? Math.max(result[0], snapshot.sequence) : result[0];
+    }
+
+    /**
+     * @return segment files which will not be written any more
+     */
+    List<File> closedSegments() {
+        synchronized (segmentMonitor) {
+            List<File> segments = segmentFiles(directory);
+            if(activeSegment!=null) {
+                segments.remove(activeSegment);
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * Handler of replayed log record
+     */
+    interface RecordHandler {
+        void handle(long sequence, byte type, String identifier, Object value, Object context);
+    }
+
+    /**
+     * Replay records of provided segments in order
+     * @param segments segment files sorted by first sequence
+     * @param fromSequence records whose sequence less than it are skipped
+     * @param handler record handler
+     * @throws IOException if segment file cannot be read
+     */
+    static void replay(List<File> segments, long fromSequence, RecordHandler handler) throws IOException {
+        CRC32 checksum = new CRC32();
+        for(File segment : segments) {
+            RandomAccessFile file = new RandomAccessFile(segment, "r");
+            try {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                while(buffer.remaining()>=FRAME_HEADER_SIZE) {
+                    int length = buffer.getInt();
+                    int crc = buffer.getInt();
+                    long sequence = buffer.getLong();
+                    if(length<=0 || length>buffer.remaining()) {
+                        logger.warn("Ignore torn record {} at the end of event log segment {}.", sequence, segment);
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    checksum.reset();
+                    checksum.update(payload, 0, length);
+                    if((int)checksum.getValue()!=crc) {
+                        logger.warn("Ignore corrupted record {} at the end of event log segment {}.", sequence, segment);
+                        break;
+                    }
+                    if(sequence<fromSequence) {
+                        continue;
+                    }
+                    ByteBufferInput input = new ByteBufferInput(ByteBuffer.wrap(payload));
+                    byte type = input.readByte();
+                    String identifier = input.readString();
+                    Object value = null, context = null;
+                    if(type!=RECORD_TERMINATE) {
+                        value = input.readValue();
+                        context = input.readValue();
+                    }
+                    handler.handle(sequence, type, identifier, value, context);
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    static List<File> segmentFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) &&
+                        file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if(files==null) {
+            return Lists.newArrayList();
+        }
+        Arrays.sort(files);
+        return Lists.newArrayList(files);
+    }
+
+    static File segmentFileOf(File directory, long firstSequence) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    static long firstSequenceOf(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()));
+    }
+}
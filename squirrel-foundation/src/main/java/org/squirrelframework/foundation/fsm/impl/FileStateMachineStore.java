@@ -0,0 +1,94 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineStore;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Local file state machine store. Data of each state machine is written in binary form into its own
+ * file, which is spread into 256 sub directories by identifier hash. File is replaced atomically
+ * so that a crash during store never leaves partially written data.
+ *
+ * @author Henry.He
+ *
+ */
+public class FileStateMachineStore<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineStore<T, S, E, C> {
+
+    private static final String DATA_SUFFIX = ".fsm";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final BaseEncoding FILE_NAME_ENCODING = BaseEncoding.base32Hex().lowerCase().omitPadding();
+
+    private final File directory;
+
+    private final BinaryStateMachineDataSerializer<T, S, E, C> serializer =
+            new BinaryStateMachineDataSerializer<T, S, E, C>();
+
+    public FileStateMachineStore(File directory) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create state machine store directory '"+directory+"'.");
+        }
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File fileOf(String identifier) {
+        String bucket = String.format("%02x", identifier.hashCode() & 0xff);
+        return new File(new File(directory, bucket),
+                FILE_NAME_ENCODING.encode(identifier.getBytes(UTF8))+DATA_SUFFIX);
+    }
+
+    @Override
+    public StateMachineData.Reader<T, S, E, C> load(String identifier) {
+        File file = fileOf(identifier);
+        if(!file.exists()) {
+            return null;
+        }
+        try {
+            return serializer.fromByteArray(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new IllegalStateException("Load state machine '"+identifier+"' failed.", e);
+        }
+    }
+
+    @Override
+    public void store(StateMachineData.Reader<T, S, E, C> savedData) {
+        File file = fileOf(savedData.identifier());
+        File tempFile = new File(file.getParentFile(), file.getName()+TEMP_SUFFIX);
+        try {
+            if(!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+                throw new IOException("Cannot create directory '"+file.getParentFile()+"'.");
+            }
+            Files.write(tempFile.toPath(), serializer.toByteArray(savedData));
+            Files.move(tempFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Store state machine '"+savedData.identifier()+"' failed.", e);
+        }
+    }
+
+    @Override
+    public boolean remove(String identifier) {
+        return fileOf(identifier).delete();
+    }
+
+    @Override
+    public boolean contains(String identifier) {
+        return fileOf(identifier).exists();
+    }
+}
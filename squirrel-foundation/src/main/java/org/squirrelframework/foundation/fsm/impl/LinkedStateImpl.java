@@ -3,7 +3,6 @@ package org.squirrelframework.foundation.fsm.impl;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import org.squirrelframework.foundation.component.SquirrelInstanceProvider;
 import org.squirrelframework.foundation.fsm.Action;
@@ -16,8 +15,6 @@ import org.squirrelframework.foundation.fsm.StateMachineContext;
 import org.squirrelframework.foundation.fsm.StateMachine.TransitionDeclinedEvent;
 import org.squirrelframework.foundation.fsm.StateMachineStatus;
 
-import com.google.common.collect.Maps;
-
 class LinkedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends StateImpl<T, S, E, C> 
     implements ImmutableLinkedState<T, S, E, C>, MutableLinkedState<T, S, E, C> {
     
@@ -37,9 +34,6 @@ class LinkedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends State
     
     private SquirrelInstanceProvider<? extends StateMachine<?, S, E, C>> provider;
     
-    private Map<String, StateMachine<? extends StateMachine<?, S, E, C>, S, E, C>> 
-        linkedStateMachineInstances = Maps.newConcurrentMap();
-    
     private Action<T, S, E, C> lastEntryAction = new AnonymousAction<T, S, E, C>() {
         @Override
         public void execute(S from, S to, E event, C context, T stateMachine) {
@@ -55,10 +49,11 @@ class LinkedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends State
     };
     
     private Action<T, S, E, C> firstExitAction = new AnonymousAction<T, S, E, C>() {
+        @SuppressWarnings("unchecked")
         @Override
         public void execute(S from, S to, E event, C context, T stateMachine) {
             StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> linkedStateMachine =
-                    linkedStateMachineInstances.remove(getKey(stateMachine));
+                    ((AbstractStateMachine<T, S, E, C>)stateMachine).removeLinkedStateMachine(getStateId());
             if(linkedStateMachine!=null) {
                 linkedStateMachine.terminate(context);
             }
@@ -84,39 +79,41 @@ class LinkedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends State
     @Override
     public void internalFire(StateContext<T, S, E, C> stateContext) {
         StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> stateMachine = 
-                linkedStateMachineInstances.get(getKey(stateContext.getStateMachine().getThis()));
+                getLinkedStateMachine(stateContext.getStateMachine().getThis());
         if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
             // if linked state machine entered its final state, then outside state will process event, 
             super.internalFire(stateContext);
         } else {
             // otherwise the linked state machine will try to process event first and only handle event 
             // to outside state when event was declined by linked state machine.
-            DeclineEventHandler declinedEventHandler = new DeclineEventHandler(stateContext);
-            try {
-                // add declined event listener
-                stateMachine.addTransitionDeclinedListener(declinedEventHandler);
-                // set child(linked) state machine context
-                StateMachineContext.set(stateMachine.getThis(), StateMachineContext.isTestEvent());
-                // delegate the event to linked state machine process
-                stateMachine.fire(stateContext.getEvent(), stateContext.getContext());
-            } finally {
-                StateMachineContext.set(null);
-                // remove declined event listener
-                stateMachine.removeTransitionDecleindListener(declinedEventHandler);
+            if(stateMachine instanceof AbstractStateMachine) {
+                if(((AbstractStateMachine)stateMachine).fireDelegated(stateContext.getEvent(), stateContext.getContext())) {
+                    super.internalFire(stateContext);
+                }
+            } else {
+                // other state machine implementation reports declined event through listener
+                DeclineEventHandler declinedEventHandler = new DeclineEventHandler(stateContext);
+                try {
+                    // add declined event listener
+                    stateMachine.addTransitionDeclinedListener(declinedEventHandler);
+                    // set child(linked) state machine context
+                    StateMachineContext.set(stateMachine.getThis(), StateMachineContext.isTestEvent());
+                    // delegate the event to linked state machine process
+                    stateMachine.fire(stateContext.getEvent(), stateContext.getContext());
+                } finally {
+                    StateMachineContext.set(null);
+                    // remove declined event listener
+                    stateMachine.removeTransitionDecleindListener(declinedEventHandler);
+                }
             }
         }
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> getLinkedStateMachine(T stateMachine) {
-        String key = getKey(stateMachine);
-        StateMachine<? extends StateMachine<?, S, E, C>, S, E, C> linkedStateMachine = 
-                linkedStateMachineInstances.get(key);
-        if(linkedStateMachine==null) {
-            linkedStateMachine = provider.get();
-            linkedStateMachineInstances.put(key, linkedStateMachine);
-        }
-        return linkedStateMachine;
+        // linked state machine is held by outer state machine instance rather than shared state definition
+        return ((AbstractStateMachine<T, S, E, C>)stateMachine).getLinkedStateMachine(getStateId(), provider);
     }
     
     @Override
@@ -0,0 +1,52 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineStore;
+
+/**
+ * In memory state machine store which keeps passivated state machine data in compact binary form
+ * instead of object graph. It can also be used as a stand-in of embedded key value store in tests.
+ *
+ * @author Henry.He
+ *
+ */
+public class MemoryStateMachineStore<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineStore<T, S, E, C> {
+
+    private final ConcurrentMap<String, byte[]> storage = new ConcurrentHashMap<String, byte[]>();
+
+    private final BinaryStateMachineDataSerializer<T, S, E, C> serializer =
+            new BinaryStateMachineDataSerializer<T, S, E, C>();
+
+    @Override
+    public StateMachineData.Reader<T, S, E, C> load(String identifier) {
+        byte[] bytes = storage.get(identifier);
+        return bytes!=null ? serializer.fromByteArray(bytes) : null;
+    }
+
+    @Override
+    public void store(StateMachineData.Reader<T, S, E, C> savedData) {
+        storage.put(savedData.identifier(), serializer.toByteArray(savedData));
+    }
+
+    @Override
+    public boolean remove(String identifier) {
+        return storage.remove(identifier)!=null;
+    }
+
+    @Override
+    public boolean contains(String identifier) {
+        return storage.containsKey(identifier);
+    }
+
+    /**
+     * @return number of stored state machines
+     */
+    public int size() {
+        return storage.size();
+    }
+}
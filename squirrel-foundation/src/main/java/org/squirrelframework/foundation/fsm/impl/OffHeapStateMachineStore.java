@@ -0,0 +1,501 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.squirrelframework.foundation.component.IdProvider;
+import org.squirrelframework.foundation.fsm.ImmutableState;
+import org.squirrelframework.foundation.fsm.ImmutableTimedState;
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineStatus;
+import org.squirrelframework.foundation.fsm.StateMachineStore;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer.ByteBufferInput;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer.Output;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Off-heap store of dormant state machines whose state type is enum. Runtime data of each state machine
+ * is encoded into a fixed size slot of direct memory and addressed by primitive long id, which is the
+ * numeric identifier of state machine. Identifiers generated by default {@link IdProvider} are not numeric,
+ * hence state machines stored here must be configured with {@link IdProvider.Numeric} or another provider of
+ * decimal long identifiers. Slot keeps current/last/initial state ordinal, last active child
+ * ordinals and sub states of each parallel state as ordinal bitset, therefore sub states are restored in
+ * ordinal order. Data larger than slot is kept on heap as byte array.
+ * <p>
+ * State machine is only materialized while processing event through {@link #fire(long, Object, Object,
+ * StateMachineBuilder, Object...)}. Linked state data and timed states are not supported, as pending timers
+ * cannot be kept by dormant state machine.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class OffHeapStateMachineStore<T extends StateMachine<T, S, E, C>, S extends Enum<S>, E, C>
+    implements StateMachineStore<T, S, E, C> {
+
+    public static final int DEFAULT_SLOT_SIZE = 32;
+
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final int SLOT_HEADER_SIZE = 2;
+
+    private static final int OVERFLOW_LENGTH = 0xFFFF;
+
+    private static final ThreadLocal<Output> localOutput = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output(64);
+        }
+    };
+
+    private final Class<S> stateType;
+
+    private final S[] states;
+
+    private final int slotSize;
+
+    private final int slotsPerChunk;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Striped<Lock> firingLocks = Striped.lock(64);
+
+    // guarded by lock
+    private final List<ByteBuffer> chunks = Lists.newArrayList();
+
+    private final LongIntHashMap index = new LongIntHashMap();
+
+    private final Map<Long, byte[]> overflow = Maps.newHashMap();
+
+    private int[] freeSlots = new int[16];
+
+    private int freeSlotCount = 0;
+
+    private int allocatedSlots = 0;
+
+    private Class<?> stateMachineType, eventType, contextType;
+
+    // last builder verified to define no timed state
+    private volatile StateMachineBuilder<T, S, E, C> verifiedBuilder;
+
+    public OffHeapStateMachineStore(Class<S> stateType) {
+        this(stateType, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * @param stateType enum type of state
+     * @param slotSize bytes of direct memory reserved for each state machine
+     */
+    public OffHeapStateMachineStore(Class<S> stateType, int slotSize) {
+        Preconditions.checkArgument(slotSize>SLOT_HEADER_SIZE && slotSize<=OVERFLOW_LENGTH,
+                "Slot size must be within ("+SLOT_HEADER_SIZE+", "+OVERFLOW_LENGTH+"].");
+        this.stateType = stateType;
+        this.states = stateType.getEnumConstants();
+        this.slotSize = slotSize;
+        this.slotsPerChunk = Math.max(1, MAX_CHUNK_SIZE/slotSize);
+    }
+
+    static long idOf(String identifier) {
+        try {
+            return Long.parseLong(identifier);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Identifier '"+identifier+"' of off-heap stored state machine must be numeric, "
+                    + "configure state machine with IdProvider.Numeric.");
+        }
+    }
+
+    @Override
+    public StateMachineData.Reader<T, S, E, C> load(String identifier) {
+        return load(idOf(identifier));
+    }
+
+    @Override
+    public void store(StateMachineData.Reader<T, S, E, C> savedData) {
+        long id = idOf(savedData.identifier());
+        Output output = localOutput.get();
+        output.reset();
+        encode(output, savedData);
+
+        lock.writeLock().lock();
+        try {
+            checkTypes(savedData);
+            int slot = index.get(id);
+            if(slot<0) {
+                slot = allocateSlot();
+                index.put(id, slot);
+            }
+            ByteBuffer buffer = slotBuffer(slot);
+            if(output.size()>slotSize-SLOT_HEADER_SIZE) {
+                buffer.putShort((short)OVERFLOW_LENGTH);
+                overflow.put(id, output.toByteArray());
+            } else {
+                buffer.putShort((short)output.size());
+                buffer.put(output.buffer(), 0, output.size());
+                overflow.remove(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String identifier) {
+        return remove(idOf(identifier));
+    }
+
+    @Override
+    public boolean contains(String identifier) {
+        return contains(idOf(identifier));
+    }
+
+    /**
+     * @param id state machine id
+     * @return stored state machine data or null if not exists
+     */
+    public StateMachineData.Reader<T, S, E, C> load(long id) {
+        byte[] bytes;
+        lock.readLock().lock();
+        try {
+            int slot = index.get(id);
+            if(slot<0) {
+                return null;
+            }
+            ByteBuffer buffer = slotBuffer(slot);
+            int length = buffer.getShort() & 0xFFFF;
+            if(length==OVERFLOW_LENGTH) {
+                bytes = overflow.get(id);
+            } else {
+                bytes = new byte[length];
+                buffer.get(bytes);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return decode(id, bytes);
+    }
+
+    public boolean remove(long id) {
+        lock.writeLock().lock();
+        try {
+            int slot = index.remove(id);
+            if(slot<0) {
+                return false;
+            }
+            overflow.remove(id);
+            if(freeSlotCount==freeSlots.length) {
+                int[] newFreeSlots = new int[freeSlots.length*2];
+                System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeSlotCount);
+                freeSlots = newFreeSlots;
+            }
+            freeSlots[freeSlotCount++] = slot;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(long id) {
+        lock.readLock().lock();
+        try {
+            return index.get(id)>=0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of stored state machines
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of direct memory reserved by store
+     */
+    public long reservedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long)chunks.size() * slotsPerChunk * slotSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Materialize stored state machine, fire event on it and store its data back. Terminated state
+     * machine is removed from store.
+     * @param id state machine id
+     * @param event fired event
+     * @param context event context
+     * @param builder builder to create materialized state machine
+     * @param extraParams extra parameters to create state machine instance
+     * @return current state after event processed
+     * @throws IllegalArgumentException if builder defines timed state
+     */
+    public S fire(long id, E event, C context, StateMachineBuilder<T, S, E, C> builder, Object... extraParams) {
+        Preconditions.checkArgument(builder!=null, "State machine builder cannot be null.");
+        Lock firingLock = firingLocks.get(id);
+        firingLock.lock();
+        try {
+            StateMachineData.Reader<T, S, E, C> savedData = load(id);
+            if(savedData==null) {
+                throw new IllegalArgumentException("State machine '"+id+"' not found.");
+            }
+            T stateMachine = StateMachineEventLogCompactor.restore(savedData, builder, extraParams);
+            if(builder!=verifiedBuilder) {
+                // reject before firing, otherwise timer armed by transition fails storing data afterwards
+                checkNoTimedState(stateMachine);
+                verifiedBuilder = builder;
+            }
+            stateMachine.fire(event, context);
+            if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
+                remove(id);
+            } else {
+                store(stateMachine.dumpSavedData());
+            }
+            return stateMachine.getCurrentState();
+        } finally {
+            firingLock.unlock();
+        }
+    }
+
+    private void checkNoTimedState(T stateMachine) {
+        for(ImmutableState<T, S, E, C> rawState : stateMachine.getAllRawStates()) {
+            if(rawState instanceof ImmutableTimedState) {
+                throw new IllegalArgumentException("Off-heap store does not support timed state '"+
+                        rawState.getStateId()+"'.");
+            }
+        }
+    }
+
+    private void checkTypes(StateMachineData.Reader<T, S, E, C> savedData) {
+        if(savedData.typeOfState()!=null && savedData.typeOfState()!=stateType) {
+            throw new IllegalArgumentException("State type "+savedData.typeOfState().getName()+
+                    " does not match store state type "+stateType.getName()+".");
+        }
+        if(stateMachineType==null) {
+            stateMachineType = savedData.typeOfStateMachine();
+            eventType = savedData.typeOfEvent();
+            contextType = savedData.typeOfContext();
+        } else if(savedData.typeOfStateMachine()!=null && savedData.typeOfStateMachine()!=stateMachineType) {
+            throw new IllegalArgumentException("Off-heap store only accepts state machine of type "+
+                    stateMachineType.getName()+".");
+        }
+    }
+
+    private int allocateSlot() {
+        if(freeSlotCount>0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if(allocatedSlots==(long)chunks.size()*slotsPerChunk) {
+            chunks.add(ByteBuffer.allocateDirect(slotsPerChunk*slotSize));
+        }
+        return allocatedSlots++;
+    }
+
+    private ByteBuffer slotBuffer(int slot) {
+        ByteBuffer buffer = chunks.get(slot/slotsPerChunk).duplicate();
+        buffer.position((slot%slotsPerChunk)*slotSize);
+        return buffer;
+    }
+
+    /**
+     * Slot layout: currentState lastState initialState startContext
+     * count (parentState childState)* count (parallelState wordCount word*)*. States are written as ordinal+1.
+     */
+    private void encode(Output output, StateMachineData.Reader<T, S, E, C> data) {
+        if(!data.linkedStates().isEmpty()) {
+            throw new IllegalArgumentException("Off-heap store does not support linked state data.");
+        }
+        if(!data.pendingTimerStates().isEmpty()) {
+            throw new IllegalArgumentException("Off-heap store does not support pending timers.");
+        }
+        writeState(output, data.currentState());
+        writeState(output, data.lastState());
+        writeState(output, data.initialState());
+        output.writeValue(data.startContext());
+
+        Collection<S> parentStates = data.activeParentStates();
+        output.writeVarInt(parentStates.size());
+        for(S parentState : parentStates) {
+            writeState(output, parentState);
+            writeState(output, data.lastActiveChildStateOf(parentState));
+        }
+
+        Collection<S> parallelStates = data.parallelStates();
+        output.writeVarInt(parallelStates.size());
+        for(S parallelState : parallelStates) {
+            writeState(output, parallelState);
+            long[] words = new long[(states.length+63)/64];
+            int wordCount = 0;
+            for(S subState : data.subStatesOn(parallelState)) {
+                int ordinal = subState.ordinal();
+                words[ordinal/64] |= 1L << (ordinal%64);
+                wordCount = Math.max(wordCount, ordinal/64+1);
+            }
+            output.writeVarInt(wordCount);
+            for(int i=0; i<wordCount; ++i) {
+                output.writeVarLong(words[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private StateMachineData.Reader<T, S, E, C> decode(long id, byte[] bytes) {
+        StateMachineDataImpl data = new StateMachineDataImpl();
+        if(stateMachineType!=null) data.typeOfStateMachine(stateMachineType);
+        data.typeOfState(stateType);
+        if(eventType!=null) data.typeOfEvent(eventType);
+        if(contextType!=null) data.typeOfContext(contextType);
+        data.identifier(String.valueOf(id));
+        try {
+            ByteBufferInput input = new ByteBufferInput(ByteBuffer.wrap(bytes));
+            data.currentState(readState(input));
+            data.lastState(readState(input));
+            data.initialState(readState(input));
+            data.startContext(input.readValue());
+
+            int parentStateSize = input.readVarInt();
+            for(int i=0; i<parentStateSize; ++i) {
+                S parentState = readState(input);
+                data.lastActiveChildStateFor(parentState, readState(input));
+            }
+
+            int parallelStateSize = input.readVarInt();
+            for(int i=0; i<parallelStateSize; ++i) {
+                S parallelState = readState(input);
+                int wordCount = input.readVarInt();
+                for(int j=0; j<wordCount; ++j) {
+                    long word = input.readVarLong();
+                    while(word!=0) {
+                        int bit = Long.numberOfTrailingZeros(word);
+                        data.putSubState(parallelState, states[j*64+bit]);
+                        word &= word-1;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Decode state machine '"+id+"' failed.", e);
+        }
+        return data.read();
+    }
+
+    private void writeState(Output output, S state) {
+        output.writeVarInt(state!=null ? state.ordinal()+1 : 0);
+    }
+
+    private S readState(ByteBufferInput input) throws IOException {
+        int value = input.readVarInt();
+        return value>0 ? states[value-1] : null;
+    }
+
+    /**
+     * Open addressing hash map from primitive long id to slot with linear probing
+     */
+    static class LongIntHashMap {
+
+        private long[] keys = new long[16];
+
+        // slot+1, 0 means empty
+        private int[] values = new int[16];
+
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        private int indexOf(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int)(hash ^ (hash >>> 32)) & mask;
+        }
+
+        int get(long key) {
+            int mask = keys.length-1;
+            for(int i=indexOf(key, mask); values[i]!=0; i=(i+1)&mask) {
+                if(keys[i]==key) {
+                    return values[i]-1;
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if((size+1)*4 > keys.length*3) {
+                resize(keys.length*2);
+            }
+            int mask = keys.length-1;
+            int i = indexOf(key, mask);
+            for(; values[i]!=0; i=(i+1)&mask) {
+                if(keys[i]==key) {
+                    values[i] = value+1;
+                    return;
+                }
+            }
+            keys[i] = key;
+            values[i] = value+1;
+            size++;
+        }
+
+        int remove(long key) {
+            int mask = keys.length-1;
+            int i = indexOf(key, mask);
+            for(; values[i]!=0; i=(i+1)&mask) {
+                if(keys[i]==key) {
+                    break;
+                }
+            }
+            if(values[i]==0) {
+                return -1;
+            }
+            int result = values[i]-1;
+            // shift following entries of the same probe sequence backward
+            int hole = i;
+            for(int j=(i+1)&mask; values[j]!=0; j=(j+1)&mask) {
+                int home = indexOf(keys[j], mask);
+                if(((j-home)&mask) >= ((j-hole)&mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = 0;
+            size--;
+            return result;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            size = 0;
+            for(int i=0; i<oldKeys.length; ++i) {
+                if(oldValues[i]!=0) {
+                    put(oldKeys[i], oldValues[i]-1);
+                }
+            }
+        }
+    }
+}
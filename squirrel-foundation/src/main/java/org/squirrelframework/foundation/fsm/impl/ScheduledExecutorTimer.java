@@ -0,0 +1,145 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineTimer;
+import org.squirrelframework.foundation.fsm.Timeout;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * Timer backend which schedules each event as task of scheduled executor. Suitable for small number of
+ * timers, as every schedule and cancel costs O(log n) on the executor heap.
+ *
+ * @author Henry.He
+ *
+ */
+public class ScheduledExecutorTimer implements StateMachineTimer {
+
+    private final ScheduledExecutorService scheduler;
+
+    // scheduler created by timer, which is shut down together with timer
+    private final boolean ownsScheduler;
+
+    // timeouts not yet fired, cancelled by shutdown as scheduler may be owned by caller
+    private final Set<FutureTimeout> timeouts = Sets.newConcurrentHashSet();
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Create timer with a private single thread scheduler, which removes cancelled task from its heap immediately
+     */
+    public ScheduledExecutorTimer() {
+        this(newScheduler(), true);
+    }
+
+    /**
+     * @param scheduler scheduler owned by caller, which is neither reconfigured nor shut down by timer
+     */
+    public ScheduledExecutorTimer(ScheduledExecutorService scheduler) {
+        this(scheduler, false);
+    }
+
+    private ScheduledExecutorTimer(ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        Preconditions.checkArgument(scheduler!=null, "Scheduler cannot be null.");
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "squirrel-timer-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // do not keep cancelled tasks in heap until they are due
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    @Override
+    public <E, C> Timeout schedule(final StateMachine<?, ?, E, C> stateMachine, final E event, final C context,
+            long delay, final long period, TimeUnit unit) {
+        if(stopped) {
+            throw new IllegalStateException("Timer is already shut down.");
+        }
+        final FutureTimeout timeout = new FutureTimeout();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                AbstractStateMachine<?, ?, ?, ?> deliveredStateMachine = stateMachine instanceof AbstractStateMachine ? 
+                        (AbstractStateMachine<?, ?, ?, ?>)stateMachine : null;
+                // passivated state machine keeps timeout which is not yet done in its saved data
+                if(deliveredStateMachine!=null && !deliveredStateMachine.enterScheduledDelivery()) {
+                    timeout.cancel();
+                    return;
+                }
+                try {
+                    stateMachine.fire(event, context);
+                } finally {
+                    if(deliveredStateMachine!=null) {
+                        deliveredStateMachine.exitScheduledDelivery(1);
+                    }
+                    if(period<=0) {
+                        timeouts.remove(timeout);
+                    }
+                }
+            }
+        };
+        // tracked before scheduled, so that task fired immediately is still untracked by itself
+        timeouts.add(timeout);
+        timeout.future = period>0 ?
+                scheduler.scheduleAtFixedRate(task, Math.max(delay, 0), period, unit) :
+                scheduler.schedule(task, delay, unit);
+        if(stopped) {
+            // raced with shutdown which may have missed the future
+            timeout.cancel();
+            throw new IllegalStateException("Timer is already shut down.");
+        }
+        return timeout;
+    }
+
+    @Override
+    public void shutdown() {
+        stopped = true;
+        for(FutureTimeout timeout : timeouts) {
+            timeout.cancel();
+        }
+        if(ownsScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private class FutureTimeout implements Timeout {
+        volatile Future<?> future;
+
+        @Override
+        public boolean cancel() {
+            timeouts.remove(this);
+            Future<?> current = future;
+            return current!=null && current.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            Future<?> current = future;
+            return current!=null && current.isCancelled();
+        }
+
+        @Override
+        public boolean isExpired() {
+            Future<?> current = future;
+            return current!=null && current.isDone() && !current.isCancelled();
+        }
+    }
+}
@@ -130,6 +130,10 @@ class StateImpl<T extends StateMachine<T, S, E, C>, S, E, C> implements MutableS
                     null, getStateId(), stateContext.getEvent(), 
                     stateContext.getContext(), stateContext.getStateMachine().getThis());
         }
+        if(stateContext.getStateMachine() instanceof AbstractStateMachine) {
+            ((AbstractStateMachine<T, S, E, C>)stateContext.getStateMachine()).stateEntered(
+                    getStateId(), stateContext.getExecutor());
+        }
         
         if(isParallelState()) {
             // When a parallel state group is entered, all its child states will be simultaneously entered. 
@@ -155,6 +159,10 @@ class StateImpl<T extends StateMachine<T, S, E, C>, S, E, C> implements MutableS
             }
             stateContext.getStateMachineData().write().removeSubStatesOn(getStateId());
         }
+        if(stateContext.getStateMachine() instanceof AbstractStateMachine) {
+            ((AbstractStateMachine<T, S, E, C>)stateContext.getStateMachine()).stateExited(
+                    getStateId(), stateContext.getExecutor());
+        }
 
         if(isFinalState()) return;
 
@@ -605,10 +613,6 @@ class StateImpl<T extends StateMachine<T, S, E, C>, S, E, C> implements MutableS
         return this;
     }
     
-    protected String getKey(T stateMachine) {
-        return stateMachine.getIdentifier()+'@'+getPath();
-    }
-    
     @Override
     public String getPath() {
         String currentId = stateId.toString();
@@ -1,8 +1,12 @@
 package org.squirrelframework.foundation.fsm.impl;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.apache.commons.lang3.StringUtils;
@@ -12,7 +16,6 @@ import org.squirrelframework.foundation.component.SquirrelInstanceProvider;
 import org.squirrelframework.foundation.component.SquirrelPostProcessor;
 import org.squirrelframework.foundation.component.SquirrelPostProcessorProvider;
 import org.squirrelframework.foundation.component.SquirrelProvider;
-import org.squirrelframework.foundation.exception.SquirrelRuntimeException;
 import org.squirrelframework.foundation.fsm.*;
 import org.squirrelframework.foundation.fsm.annotation.*;
 import org.squirrelframework.foundation.fsm.builder.*;
@@ -21,10 +24,13 @@ import org.squirrelframework.foundation.util.ReflectUtils;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.*;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C> implements StateMachineBuilder<T, S, E, C> {
@@ -51,6 +57,24 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     
     private final Method postConstructMethod;
     
+    private final boolean isDefaultConstructor;
+    
+    private volatile PostProcessorChain<T> postProcessorChain = null;
+    
+    private volatile BlockingQueue<T> instancePool = null;
+    
+    private MethodIndex methodIndex = null;
+    
+    // prepared states of state machine defined only by annotations, shared by builders of the same definition. 
+    // Cache is kept by state machine class itself, so that it does not keep class loader of the class reachable.
+    private static final ClassValue<Cache<DefinitionKey, Map<?, ?>>> preparedDefinitions = 
+            new ClassValue<Cache<DefinitionKey, Map<?, ?>>>() {
+        @Override
+        protected Cache<DefinitionKey, Map<?, ?>> computeValue(Class<?> type) {
+            return CacheBuilder.newBuilder().softValues().build();
+        }
+    };
+    
     protected final Converter<S> stateConverter;
     
     protected final Converter<E> eventConverter;
@@ -63,6 +87,8 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     
     private E startEvent, finishEvent, terminateEvent;
     
+    private final Map<E, EventCoalescingPolicy> coalescingPolicies = Maps.newHashMap();
+    
     private final ExecutionContext executionContext;
     
     private final List<DeferBoundActionInfo<T, S, E, C>> deferBoundActionInfoList = Lists.newArrayList();
@@ -73,6 +99,11 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
 
     private StateMachineConfiguration defaultConfiguration = StateMachineConfiguration.getInstance();
 
+    private final StateResidencyStatistics<S> residencyStatistics = new StateResidencyStatistics<S>();
+
+    // dense index of states, by which state machine keeps entry time of tracked states
+    private ImmutableMap<S, Integer> residencyStateIndexes;
+
     @SuppressWarnings("unchecked")
     private StateMachineBuilderImpl(Class<? extends T> stateMachineImplClazz, Class<S> stateClazz, 
             Class<E> eventClazz, Class<C> contextClazz, Class<?>... extraParamTypes) {
@@ -121,11 +152,15 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
                 throw new IllegalArgumentException("Cannot find matched constructor for \'"+stateMachineImplClazz.getName()+"\'.");
             }
         }
+        // constructor and post construct method are resolved once and kept accessible for all instances
+        fsmConstructor.setAccessible(true);
         this.constructor = fsmConstructor;
+        this.isDefaultConstructor = fsmConstructor.getParameterTypes().length==0;
         
         Method postInit = null;
         try {
             postInit = ReflectUtils.getMethod(stateMachineImplClazz, "postConstruct", this.extraParamTypes);
+            postInit.setAccessible(true);
         } catch (Exception e) {}
         this.postConstructMethod = postInit;
         
@@ -266,7 +301,7 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     
     private void addStateEntryExitMethodCallAction(String methodName, Class<?>[] parameterTypes, 
             MutableState<T, S, E, C> mutableState, boolean isEntryAction) {
-        Method method = findMethodCallActionInternal(stateMachineImplClazz, methodName, parameterTypes);
+        Method method = methodIndex.find(methodName, parameterTypes);
         if(method!=null) {
             int weight = Action.EXTENSION_WEIGHT;
             if(methodName.startsWith("before")) {
@@ -285,7 +320,7 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     
     private void addTransitionMethodCallAction(String methodName, Class<?>[] parameterTypes, 
             MutableTransition<T, S, E, C> mutableTransition) {
-        Method method = findMethodCallActionInternal(stateMachineImplClazz, methodName, parameterTypes);
+        Method method = methodIndex.find(methodName, parameterTypes);
         if(method!=null) {
             Action<T, S, E, C> methodCallAction = FSM.newMethodCallAction(method, Action.EXTENSION_WEIGHT, executionContext);
             mutableTransition.addAction(methodCallAction);
@@ -508,9 +543,25 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
         }
     }
     
+    @SuppressWarnings("unchecked")
     private synchronized void prepare() {
         if(prepared) return;
         
+        // definition only declared by annotations can be shared with other builders
+        DefinitionKey definitionKey = isScanAnnotations && states.isEmpty() && deferBoundActionInfoList.isEmpty() ? 
+                new DefinitionKey(stateClazz, eventClazz, contextClazz, extraParamTypes, 
+                        executionContext, defaultConfiguration) : null;
+        if(definitionKey!=null) {
+            Map<S, MutableState<T, S, E, C>> preparedStates = (Map<S, MutableState<T, S, E, C>>)
+                    preparedDefinitions.get(stateMachineImplClazz).getIfPresent(definitionKey);
+            if(preparedStates!=null) {
+                states.putAll(preparedStates);
+                trackStateResidency();
+                prepared = true;
+                return;
+            }
+        }
+        
         if(isScanAnnotations) {
             // 1. install all the declare states, states must be installed before installing transition and extension methods
             walkThroughStateMachineClass(new DeclareStateFunction());
@@ -529,7 +580,23 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
         verifyStateMachineDefinition();
         // 7. proxy untyped states
         proxyUntypedStates();
+        // 8. allocate residency histogram of each state
+        trackStateResidency();
+        methodIndex = null;
         prepared = true;
+        if(definitionKey!=null) {
+            preparedDefinitions.get(stateMachineImplClazz).asMap().putIfAbsent(definitionKey, ImmutableMap.copyOf(states));
+        }
+    }
+    
+    private void trackStateResidency() {
+        ImmutableMap.Builder<S, Integer> indexes = ImmutableMap.builder();
+        int index = 0;
+        for(S stateId : states.keySet()) {
+            residencyStatistics.track(stateId);
+            indexes.put(stateId, index++);
+        }
+        residencyStateIndexes = indexes.build();
     }
     
     @SuppressWarnings("unchecked")
@@ -598,6 +665,7 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     }
     
     private void installExtensionMethods() {
+        methodIndex = new MethodIndex(stateMachineImplClazz, AbstractStateMachine.class);
         for(MutableState<T, S, E, C> state : states.values()) {
             // Ignore all the transition start from a final state
             if(state.isFinalState()) continue;
@@ -687,6 +755,92 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
         return searchMethod(target, AbstractStateMachine.class, methodName, parameterTypes);
     }
     
+    /**
+     * Key of prepared definition within state machine class. Actions and conditions of prepared states are 
+     * bound to script manager and method call parameter types of execution context, so script manager 
+     * implementation is part of the key, as well as configuration of builder.
+     */
+    private static class DefinitionKey {
+        private final List<Class<?>> types;
+        
+        private final List<Class<?>> methodCallParamTypes;
+        
+        private final Class<?> scriptManagerType;
+        
+        private final StateMachineConfiguration configuration;
+        
+        DefinitionKey(Class<?> stateClazz, Class<?> eventClazz, Class<?> contextClazz, Class<?>[] extraParamTypes, 
+                ExecutionContext executionContext, StateMachineConfiguration configuration) {
+            List<Class<?>> types = Lists.newArrayList(stateClazz, eventClazz, contextClazz);
+            types.addAll(Arrays.asList(extraParamTypes));
+            this.types = types;
+            this.methodCallParamTypes = Arrays.asList(executionContext.getMethodCallParamTypes());
+            this.scriptManagerType = executionContext.getScriptManager().getClass();
+            this.configuration = configuration;
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(types, methodCallParamTypes, scriptManagerType, configuration);
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof DefinitionKey)) {
+                return false;
+            }
+            DefinitionKey other = (DefinitionKey)obj;
+            return types.equals(other.types) && methodCallParamTypes.equals(other.methodCallParamTypes) && 
+                    scriptManagerType==other.scriptManagerType && configuration==other.configuration;
+        }
+    }
+    
+    /**
+     * Declared methods of target class and its super classes below super class indexed by method name. 
+     * Lookup gives the same result as {@link StateMachineBuilderImpl#searchMethod(Class, Class, String, Class[])}, 
+     * but the class hierarchy is only walked once instead of probing each candidate method name.
+     */
+    private static class MethodIndex {
+        // methods of the same name are ordered from target class to its super classes
+        private final Map<String, List<Method>> methodsByName = Maps.newHashMap();
+        
+        MethodIndex(Class<?> targetClass, Class<?> superClass) {
+            if(superClass.isAssignableFrom(targetClass)) {
+                Class<?> clazz = targetClass;
+                while(!superClass.equals(clazz)) {
+                    for(Method method : clazz.getDeclaredMethods()) {
+                        List<Method> methods = methodsByName.get(method.getName());
+                        if(methods==null) {
+                            methods = Lists.newArrayListWithCapacity(1);
+                            methodsByName.put(method.getName(), methods);
+                        }
+                        methods.add(method);
+                    }
+                    clazz = clazz.getSuperclass();
+                }
+            }
+        }
+        
+        Method find(String methodName, Class<?>[] parameterTypes) {
+            List<Method> methods = methodsByName.get(methodName);
+            if(methods!=null) {
+                Method found = null;
+                for(Method method : methods) {
+                    if(found!=null && found.getDeclaringClass()!=method.getDeclaringClass()) {
+                        break;
+                    }
+                    if(Arrays.equals(method.getParameterTypes(), parameterTypes) && (found==null || 
+                            found.getReturnType().isAssignableFrom(method.getReturnType()))) {
+                        // same as getDeclaredMethod, prefer most specific return type among bridge methods
+                        found = method;
+                    }
+                }
+                return found;
+            }
+            return null;
+        }
+    }
+    
     @Override
     public T newStateMachine(S initialStateId) {
         return newStateMachine(initialStateId, new Object[0]);
@@ -699,71 +853,152 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
     
     @SuppressWarnings("unchecked")
     @Override
-    public T newStateMachine(S initialStateId, StateMachineConfiguration configuration, Object... extraParams) {
+    public T newStateMachine(S initialStateId, final StateMachineConfiguration configuration, Object... extraParams) {
         if(!prepared) prepare();
         if(!isValidState(initialStateId)) {
             throw new IllegalArgumentException(getClass()+" cannot find Initial state \'"+ 
                     initialStateId+"\' in state machine.");
         }
         
-        Class<?>[] constParamTypes = constructor.getParameterTypes();
+        BlockingQueue<T> pool = instancePool;
+        if(pool!=null && (extraParams==null || extraParams.length==0)) {
+            T recycled = recycleStateMachine(pool, initialStateId, configuration);
+            if(recycled!=null) {
+                return recycled;
+            }
+        }
+        
         final T stateMachine;
         try {
-            if(constParamTypes==null || constParamTypes.length==0) {
-                stateMachine = ReflectUtils.newInstance(constructor);
-            } else { 
-                stateMachine = ReflectUtils.newInstance(constructor, extraParams);
-            }
-        } catch(SquirrelRuntimeException e) {
-            throw new IllegalStateException(
-                    "New state machine instance failed.", e.getTargetException());
+            stateMachine = isDefaultConstructor ? constructor.newInstance() : constructor.newInstance(extraParams);
+        } catch(InvocationTargetException e) {
+            throw new IllegalStateException("New state machine instance failed.", e.getTargetException());
+        } catch(Exception e) {
+            throw new IllegalStateException("New state machine instance failed.", e);
         }
                 
         final AbstractStateMachine<T, S, E, C> stateMachineImpl = (AbstractStateMachine<T, S, E, C>)stateMachine;
-        stateMachineImpl.prePostConstruct(initialStateId, states, configuration, new Runnable() {
+        stateMachineImpl.prePostConstruct(initialStateId, states, configuration, 
+                newInitializer(stateMachineImpl, configuration));
+        
+        if(postConstructMethod!=null && extraParamTypes.length==extraParams.length) {
+            try {
+                postConstructMethod.invoke(stateMachine, extraParams);
+            } catch(InvocationTargetException e) {
+                throw new IllegalStateException(
+                        "Invoke state machine postConstruct method failed.", e.getTargetException());
+            } catch(Exception e) {
+                throw new IllegalStateException("Invoke state machine postConstruct method failed.", e);
+            }
+        } 
+        postProcessStateMachine(stateMachine);
+        if(pool!=null) {
+            stateMachineImpl.markRecyclable(this, configuration);
+        }
+
+        return stateMachine;
+    }
+    
+    private Runnable newInitializer(final AbstractStateMachine<T, S, E, C> stateMachineImpl, 
+            final StateMachineConfiguration configuration) {
+        return new Runnable() {
             @Override
             public void run() {
                 stateMachineImpl.setStartEvent(startEvent);
                 stateMachineImpl.setFinishEvent(finishEvent);
                 stateMachineImpl.setTerminateEvent(terminateEvent);
                 stateMachineImpl.setExtraParamTypes(extraParamTypes);
+                stateMachineImpl.setCoalescingPolicies(coalescingPolicies);
                 
                 stateMachineImpl.setTypeOfStateMachine(stateMachineImplClazz);
                 stateMachineImpl.setTypeOfState(stateClazz);
                 stateMachineImpl.setTypeOfEvent(eventClazz);
                 stateMachineImpl.setTypeOfContext(contextClazz);
                 stateMachineImpl.setScriptManager(scriptManager);
+                if(configuration.isStateResidencyTrackingEnabled()) {
+                    stateMachineImpl.setResidencyStatistics(residencyStatistics, residencyStateIndexes);
+                }
             }
-        });
-        
-        if(postConstructMethod!=null && extraParamTypes.length==extraParams.length) {
-            try {
-                ReflectUtils.invoke(postConstructMethod, stateMachine, extraParams);
-            } catch(SquirrelRuntimeException e) {
-                throw new IllegalStateException(
-                        "Invoke state machine postConstruct method failed.", e.getTargetException());
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    private T recycleStateMachine(BlockingQueue<T> pool, S initialStateId, StateMachineConfiguration configuration) {
+        T stateMachine;
+        while((stateMachine=pool.poll())!=null) {
+            AbstractStateMachine<T, S, E, C> stateMachineImpl = (AbstractStateMachine<T, S, E, C>)stateMachine;
+            // instance created with another configuration is dropped
+            if(stateMachineImpl.isRecyclableWith(configuration)) {
+                stateMachineImpl.recycle(initialStateId, states, configuration, 
+                        newInitializer(stateMachineImpl, configuration));
+                return stateMachine;
             }
-        } 
-        postProcessStateMachine((Class<T>)stateMachineImplClazz, stateMachine);
-
-        return stateMachine;
+        }
+        return null;
+    }
+    
+    @Override
+    public void setInstancePoolSize(int maximumPoolSize) {
+        Preconditions.checkArgument(maximumPoolSize>=0, "Maximum pool size cannot be negative.");
+        instancePool = maximumPoolSize>0 ? new ArrayBlockingQueue<T>(maximumPoolSize) : null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean releaseStateMachine(T stateMachine) {
+        BlockingQueue<T> pool = instancePool;
+        if(pool==null || !(stateMachine instanceof AbstractStateMachine)) {
+            return false;
+        }
+        return ((AbstractStateMachine<T, S, E, C>)stateMachine).release(this) && pool.offer(stateMachine);
     }
 
     private boolean isValidState(S initialStateId) {
         return initialStateId!=null && states.get(initialStateId) != null;
     }
     
-    private T postProcessStateMachine(Class<T> clz, T component) {
+    private T postProcessStateMachine(T component) {
         if(component!=null) {
-            List<SquirrelPostProcessor<? super T>> postProcessors = 
-                    SquirrelPostProcessorProvider.getInstance().getCallablePostProcessors(clz);
-            for(SquirrelPostProcessor<? super T> postProcessor : postProcessors) {
+            for(SquirrelPostProcessor<? super T> postProcessor : getPostProcessors()) {
                 postProcessor.postProcess(component);
             }
         }
         return component;
     }
     
+    /**
+     * @return callable post processors of state machine implementation class, which are only re-scanned 
+     * when post processor registry was changed
+     */
+    @SuppressWarnings("unchecked")
+    private List<SquirrelPostProcessor<? super T>> getPostProcessors() {
+        SquirrelPostProcessorProvider provider = SquirrelPostProcessorProvider.getInstance();
+        PostProcessorChain<T> chain = postProcessorChain;
+        if(chain==null || chain.provider!=provider || chain.version!=provider.getRegistryVersion()) {
+            int version = provider.getRegistryVersion();
+            List<SquirrelPostProcessor<? super T>> postProcessors = 
+                    provider.getCallablePostProcessors((Class<T>)stateMachineImplClazz);
+            chain = new PostProcessorChain<T>(provider, version, postProcessors);
+            postProcessorChain = chain;
+        }
+        return chain.postProcessors;
+    }
+    
+    private static class PostProcessorChain<T> {
+        final SquirrelPostProcessorProvider provider;
+        
+        final int version;
+        
+        final List<SquirrelPostProcessor<? super T>> postProcessors;
+        
+        PostProcessorChain(SquirrelPostProcessorProvider provider, int version, 
+                List<SquirrelPostProcessor<? super T>> postProcessors) {
+            this.provider = provider;
+            this.version = version;
+            this.postProcessors = Collections.unmodifiableList(postProcessors);
+        }
+    }
+    
     @Override
     public MutableState<T, S, E, C> defineState(S stateId) {
         checkState();
@@ -923,6 +1158,13 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
         checkState();
         this.terminateEvent = terminateEvent;
     }
+
+    @Override
+    public void defineEventCoalescing(E event, EventCoalescingPolicy policy) {
+        checkState();
+        Preconditions.checkArgument(event!=null && policy!=null, "Coalesced event and policy cannot be null.");
+        coalescingPolicies.put(event, policy);
+    }
     
     void setScanAnnotations(boolean isScanAnnotations) {
         this.isScanAnnotations = isScanAnnotations;
@@ -933,4 +1175,9 @@ public class StateMachineBuilderImpl<T extends StateMachine<T, S, E, C>, S, E, C
         checkState();
         this.defaultConfiguration = configure;
     }
+
+    @Override
+    public StateResidencyStatistics<S> getStateResidencyStatistics() {
+        return residencyStatistics;
+    }
 }
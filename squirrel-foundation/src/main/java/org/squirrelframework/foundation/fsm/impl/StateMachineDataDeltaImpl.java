@@ -0,0 +1,164 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineData.Field;
+
+import com.google.common.collect.Maps;
+
+class StateMachineDataDeltaImpl<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineData.Delta<T, S, E, C> {
+
+    private static final long serialVersionUID = -3427195328541763307L;
+
+    private final long sinceVersion;
+
+    private final long version;
+
+    private final EnumSet<Field> changedFields = EnumSet.noneOf(Field.class);
+
+    private String identifier;
+
+    private S currentState;
+
+    private S lastState;
+
+    private S initialState;
+
+    private Object startContext;
+
+    private LinkedHashMap<S, S> lastActiveChildStates;
+
+    private LinkedHashMap<S, List<S>> subStates;
+
+    private LinkedHashMap<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateData;
+
+    StateMachineDataDeltaImpl(long sinceVersion, long version) {
+        this.sinceVersion = sinceVersion;
+        this.version = version;
+    }
+
+    void identifier(String identifier) {
+        changedFields.add(Field.IDENTIFIER);
+        this.identifier = identifier;
+    }
+
+    void currentState(S currentState) {
+        changedFields.add(Field.CURRENT_STATE);
+        this.currentState = currentState;
+    }
+
+    void lastState(S lastState) {
+        changedFields.add(Field.LAST_STATE);
+        this.lastState = lastState;
+    }
+
+    void initialState(S initialState) {
+        changedFields.add(Field.INITIAL_STATE);
+        this.initialState = initialState;
+    }
+
+    void startContext(Object startContext) {
+        changedFields.add(Field.START_CONTEXT);
+        this.startContext = startContext;
+    }
+
+    void lastActiveChildStateFor(S parentState, S childState) {
+        if(lastActiveChildStates==null) {
+            lastActiveChildStates = Maps.newLinkedHashMap();
+        }
+        lastActiveChildStates.put(parentState, childState);
+    }
+
+    void subStatesOn(S parallelState, List<S> subStateList) {
+        if(subStates==null) {
+            subStates = Maps.newLinkedHashMap();
+        }
+        subStates.put(parallelState, subStateList);
+    }
+
+    void linkedStateDataOn(S linkedState, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C> data) {
+        if(linkedStateData==null) {
+            linkedStateData = Maps.newLinkedHashMap();
+        }
+        linkedStateData.put(linkedState, data);
+    }
+
+    @Override
+    public long sinceVersion() {
+        return sinceVersion;
+    }
+
+    @Override
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public Set<Field> changedFields() {
+        return Collections.unmodifiableSet(changedFields);
+    }
+
+    @Override
+    public String identifier() {
+        return identifier;
+    }
+
+    @Override
+    public S currentState() {
+        return currentState;
+    }
+
+    @Override
+    public S lastState() {
+        return lastState;
+    }
+
+    @Override
+    public S initialState() {
+        return initialState;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public C startContext() {
+        return (C)startContext;
+    }
+
+    @Override
+    public Map<S, S> lastActiveChildStates() {
+        return lastActiveChildStates!=null ? Collections.unmodifiableMap(lastActiveChildStates) :
+            Collections.<S, S>emptyMap();
+    }
+
+    @Override
+    public Map<S, List<S>> subStates() {
+        return subStates!=null ? Collections.unmodifiableMap(subStates) :
+            Collections.<S, List<S>>emptyMap();
+    }
+
+    @Override
+    public Map<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> linkedStateData() {
+        return linkedStateData!=null ? Collections.unmodifiableMap(linkedStateData) :
+            Collections.<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>>emptyMap();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return changedFields.isEmpty() && lastActiveChildStates().isEmpty() &&
+                subStates().isEmpty() && linkedStateData().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "Delta["+sinceVersion+"->"+version+"] fields="+changedFields+" history="+lastActiveChildStates()+
+                " subStates="+subStates()+" linkedStates="+linkedStateData().keySet();
+    }
+}
@@ -2,18 +2,26 @@ package org.squirrelframework.foundation.fsm.impl;
 
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.squirrelframework.foundation.fsm.*;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
@@ -32,9 +40,10 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
 
     private S initialState;
 
-    private final Map<S, S> lastActiveChildStateStore = Maps.newHashMap();
+    // stores are empty shared sentinels until first written
+    private Map<S, S> lastActiveChildStateStore = Collections.emptyMap();
 
-    private final ListMultimap<S, S> parallelStatesStore = ArrayListMultimap.create();
+    private ListMultimap<S, S> parallelStatesStore = ImmutableListMultimap.of();
 
     private Class<? extends T> stateMachineType;
 
@@ -51,10 +60,39 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
     private final transient Map<S, ImmutableState<T, S, E, C>> states;
 
     private Map<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> linkStateDataStore;
+    
+    // pending timers recorded by saved data, replaced on write so that it can be shared with forked data
+    private Map<S, PendingTimer> pendingTimerStore = Collections.emptyMap();
+    
+    // version of data and the version when each field or key is last modified, which are used to dump delta
+    private long version = 0;
+    
+    private long[] fieldVersions = new long[Field.values().length];
+    
+    private Map<S, Version> lastActiveChildStateVersions = Collections.emptyMap();
+    
+    private Map<S, Version> parallelStateVersions = Collections.emptyMap();
+    
+    private Map<S, Version> linkedStateVersions;
+    
+    // stores which may be shared with forked data or empty sentinels, and must be copied before first write
+    private static final int SHARED_LAST_ACTIVE_CHILD_STATES = 1;
+    
+    private static final int SHARED_PARALLEL_STATES = 2;
+    
+    private static final int SHARED_LINKED_STATES = 4;
+    
+    private static final int SHARED_ALL = 7;
+    
+    private int sharedStores = SHARED_ALL;
 
     public StateMachineDataImpl(Map<S, ImmutableState<T, S, E, C>> states) {
         this.states = Collections.unmodifiableMap(states);
     }
+    
+    private StateMachineDataImpl(StateMachineDataImpl<T, S, E, C> src) {
+        this.states = src.states;
+    }
 
     public StateMachineDataImpl() {
         this.states = null;
@@ -68,42 +106,21 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
         return states;
     }
     
-    private void clear() {
-        currentState = null;
-        lastState = null;
-        initialState = null;
-        stateMachineType = null;
-        stateType = null;
-        eventType = null;
-        contextType = null;
-        identifier = null;
-        startContext = null;
-        if(lastActiveChildStateStore!=null) {
-            lastActiveChildStateStore.clear();
-        }
-        if(parallelStatesStore!=null) {
-            parallelStatesStore.clear();
-        }
-        if(linkStateDataStore!=null) {
-            linkStateDataStore.clear();
-        }
-    }
-
     @Override
     public void dump(StateMachineData.Reader<T, S, E, C> src) {
-        clear();
-        
-        this.write().typeOfStateMachine(src.typeOfStateMachine());
-        this.write().typeOfState(src.typeOfState());
-        this.write().typeOfEvent(src.typeOfEvent());
-        this.write().typeOfContext(src.typeOfContext());
+        // type of state machine data can only be written once through writer
+        this.stateMachineType = src.typeOfStateMachine();
+        this.stateType = src.typeOfState();
+        this.eventType = src.typeOfEvent();
+        this.contextType = src.typeOfContext();
 
+        // only the changed data are written so that delta of data can be tracked
         this.write().identifier(src.identifier());
         this.write().currentState(src.currentState());
         this.write().lastState(src.lastState());
         this.write().initialState(src.initialState());
         // write start context of state machine
-        this.write().startContext(src.startContext());
+        startContextValue(src.startContext());
 
         for (S state : src.activeParentStates()) {
             S lastActiveChildState = src.lastActiveChildStateOf(state);
@@ -111,21 +128,241 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
                 this.write().lastActiveChildStateFor(state, lastActiveChildState);
             }
         }
+        for (S state : Lists.newArrayList(lastActiveChildStateStore.keySet())) {
+            if (src.lastActiveChildStateOf(state) == null) {
+                own(SHARED_LAST_ACTIVE_CHILD_STATES);
+                lastActiveChildStateStore.remove(state);
+                touch(lastActiveChildStateVersions, state);
+            }
+        }
 
         for (S state : src.parallelStates()) {
-            List<S> subStates = src.subStatesOn(state);
-            if (subStates != null && !subStates.isEmpty()) {
-                for (S subState : subStates) {
-                    // ignore parallel state check in subStateFor as no states
-                    // for reference
-                    // this.write().subStateFor(state, subState);
-                    parallelStatesStore.put(state, subState);
+            // ignore parallel state check in subStateFor as no states for reference
+            replaceSubStates(state, src.subStatesOn(state));
+        }
+        for (S state : Lists.newArrayList(parallelStatesStore.keySet())) {
+            if (src.subStatesOn(state).isEmpty()) {
+                replaceSubStates(state, Collections.<S>emptyList());
+            }
+        }
+
+        if (linkStateDataStore != null && !linkStateDataStore.isEmpty()) {
+            own(SHARED_LINKED_STATES);
+            for (S state : linkStateDataStore.keySet()) {
+                touch(getLinkedStateVersions(), state);
+            }
+            linkStateDataStore.clear();
+        }
+        
+        if (!src.pendingTimerStates().isEmpty() || !pendingTimerStore.isEmpty()) {
+            Map<S, PendingTimer> pendingTimers = Maps.newHashMap();
+            for (S state : src.pendingTimerStates()) {
+                pendingTimers.put(state, src.pendingTimerOf(state));
+            }
+            pendingTimerStore = pendingTimers;
+        }
+    }
+    
+    /**
+     * Fork data in constant time. Forked data shares stores with this data until either of them is
+     * written, and the written store is copied at that time.
+     * 
+     * @return forked data which can be written in isolation
+     */
+    StateMachineDataImpl<T, S, E, C> fork() {
+        StateMachineDataImpl<T, S, E, C> forked = new StateMachineDataImpl<T, S, E, C>(this);
+        sharedStores = SHARED_ALL;
+        forked.adopt(this);
+        forked.fieldVersions = fieldVersions.clone();
+        return forked;
+    }
+    
+    /**
+     * Replace content of this data with forked data by swapping store references.
+     * 
+     * @param forked data forked from this data
+     */
+    void commit(StateMachineDataImpl<T, S, E, C> forked) {
+        adopt(forked);
+        forked.sharedStores = SHARED_ALL;
+    }
+    
+    private void adopt(StateMachineDataImpl<T, S, E, C> src) {
+        this.stateMachineType = src.stateMachineType;
+        this.stateType = src.stateType;
+        this.eventType = src.eventType;
+        this.contextType = src.contextType;
+        this.identifier = src.identifier;
+        this.currentState = src.currentState;
+        this.lastState = src.lastState;
+        this.initialState = src.initialState;
+        this.startContext = src.startContext;
+        this.lastActiveChildStateStore = src.lastActiveChildStateStore;
+        this.parallelStatesStore = src.parallelStatesStore;
+        this.linkStateDataStore = src.linkStateDataStore;
+        this.pendingTimerStore = src.pendingTimerStore;
+        this.version = src.version;
+        this.fieldVersions = src.fieldVersions;
+        this.lastActiveChildStateVersions = src.lastActiveChildStateVersions;
+        this.parallelStateVersions = src.parallelStateVersions;
+        this.linkedStateVersions = src.linkedStateVersions;
+        this.sharedStores = src.sharedStores;
+    }
+    
+    private void own(int store) {
+        if ((sharedStores & store) == 0) {
+            return;
+        }
+        sharedStores &= ~store;
+        if (store == SHARED_LAST_ACTIVE_CHILD_STATES) {
+            lastActiveChildStateStore = Maps.newHashMap(lastActiveChildStateStore);
+            lastActiveChildStateVersions = copyOf(lastActiveChildStateVersions);
+        } else if (store == SHARED_PARALLEL_STATES) {
+            parallelStatesStore = ArrayListMultimap.create(parallelStatesStore);
+            parallelStateVersions = copyOf(parallelStateVersions);
+        } else if (store == SHARED_LINKED_STATES) {
+            if (linkStateDataStore != null) 
+                linkStateDataStore = Maps.newHashMap(linkStateDataStore);
+            if (linkedStateVersions != null) 
+                linkedStateVersions = copyOf(linkedStateVersions);
+        }
+    }
+    
+    private static <K> Map<K, Version> copyOf(Map<K, Version> versions) {
+        Map<K, Version> result = Maps.newHashMapWithExpectedSize(versions.size());
+        for (Map.Entry<K, Version> entry : versions.entrySet()) {
+            Version keyVersion = new Version();
+            keyVersion.value = entry.getValue().value;
+            result.put(entry.getKey(), keyVersion);
+        }
+        return result;
+    }
+    
+    private void replaceSubStates(S parentStateId, List<S> subStates) {
+        List<S> currentSubStates = parallelStatesStore.get(parentStateId);
+        if (!currentSubStates.equals(subStates)) {
+            own(SHARED_PARALLEL_STATES);
+            parallelStatesStore.replaceValues(parentStateId, Lists.newArrayList(subStates));
+            touch(parallelStateVersions, parentStateId);
+        }
+    }
+    
+    private long nextVersion() {
+        return ++version;
+    }
+    
+    private boolean touch(Field field, Object oldValue, Object newValue) {
+        if (Objects.equal(oldValue, newValue)) {
+            return false;
+        }
+        fieldVersions[field.ordinal()] = nextVersion();
+        return true;
+    }
+    
+    private void touch(Map<S, Version> versions, S key) {
+        Version keyVersion = versions.get(key);
+        if (keyVersion == null) {
+            keyVersion = new Version();
+            versions.put(key, keyVersion);
+        }
+        keyVersion.value = nextVersion();
+    }
+    
+    private Map<S, Version> getLinkedStateVersions() {
+        own(SHARED_LINKED_STATES);
+        if (linkedStateVersions == null) {
+            linkedStateVersions = Maps.newHashMap();
+        }
+        return linkedStateVersions;
+    }
+    
+    @Override
+    public long version() {
+        return version;
+    }
+    
+    @Override
+    public StateMachineData.Delta<T, S, E, C> dumpDelta(long sinceVersion) {
+        StateMachineDataDeltaImpl<T, S, E, C> delta = new StateMachineDataDeltaImpl<T, S, E, C>(sinceVersion, version);
+        if (fieldVersions[Field.IDENTIFIER.ordinal()] > sinceVersion) {
+            delta.identifier(identifier);
+        }
+        if (fieldVersions[Field.CURRENT_STATE.ordinal()] > sinceVersion) {
+            delta.currentState(currentState);
+        }
+        if (fieldVersions[Field.LAST_STATE.ordinal()] > sinceVersion) {
+            delta.lastState(lastState);
+        }
+        if (fieldVersions[Field.INITIAL_STATE.ordinal()] > sinceVersion) {
+            delta.initialState(initialState);
+        }
+        if (fieldVersions[Field.START_CONTEXT.ordinal()] > sinceVersion) {
+            delta.startContext(startContext);
+        }
+        for (Map.Entry<S, Version> entry : lastActiveChildStateVersions.entrySet()) {
+            if (entry.getValue().value > sinceVersion) {
+                delta.lastActiveChildStateFor(entry.getKey(), lastActiveChildStateStore.get(entry.getKey()));
+            }
+        }
+        for (Map.Entry<S, Version> entry : parallelStateVersions.entrySet()) {
+            if (entry.getValue().value > sinceVersion) {
+                delta.subStatesOn(entry.getKey(), ImmutableList.copyOf(parallelStatesStore.get(entry.getKey())));
+            }
+        }
+        if (linkedStateVersions != null) {
+            for (Map.Entry<S, Version> entry : linkedStateVersions.entrySet()) {
+                if (entry.getValue().value > sinceVersion) {
+                    delta.linkedStateDataOn(entry.getKey(), linkedStateDataOf(entry.getKey()));
                 }
             }
         }
+        return delta;
+    }
+    
+    @Override
+    public void applyDelta(StateMachineData.Delta<T, S, E, C> delta) {
+        Set<Field> changedFields = delta.changedFields();
+        if (changedFields.contains(Field.IDENTIFIER)) {
+            identifier(delta.identifier());
+        }
+        if (changedFields.contains(Field.CURRENT_STATE)) {
+            currentState(delta.currentState());
+        }
+        if (changedFields.contains(Field.LAST_STATE)) {
+            lastState(delta.lastState());
+        }
+        if (changedFields.contains(Field.INITIAL_STATE)) {
+            initialState(delta.initialState());
+        }
+        if (changedFields.contains(Field.START_CONTEXT)) {
+            startContextValue(delta.startContext());
+        }
+        for (Map.Entry<S, S> entry : delta.lastActiveChildStates().entrySet()) {
+            if (entry.getValue() != null) {
+                lastActiveChildStateFor(entry.getKey(), entry.getValue());
+            } else if (lastActiveChildStateStore.containsKey(entry.getKey())) {
+                own(SHARED_LAST_ACTIVE_CHILD_STATES);
+                lastActiveChildStateStore.remove(entry.getKey());
+                touch(lastActiveChildStateVersions, entry.getKey());
+            }
+        }
+        for (Map.Entry<S, List<S>> entry : delta.subStates().entrySet()) {
+            replaceSubStates(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> entry :
+                delta.linkedStateData().entrySet()) {
+            if (entry.getValue() != null) {
+                linkedStateDataOn(entry.getKey(), entry.getValue());
+            } else if (linkStateDataStore != null && linkStateDataStore.containsKey(entry.getKey())) {
+                own(SHARED_LINKED_STATES);
+                linkStateDataStore.remove(entry.getKey());
+                touch(getLinkedStateVersions(), entry.getKey());
+            }
+        }
     }
 
     private Map<S, StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C>> getLinkedStateData() {
+        own(SHARED_LINKED_STATES);
         if (linkStateDataStore == null) {
             linkStateDataStore = Maps.newHashMap();
         }
@@ -144,46 +381,76 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
 
     @Override
     public void currentState(S currentStateId) {
-        this.currentState = currentStateId;
+        if(touch(Field.CURRENT_STATE, currentState, currentStateId))
+            this.currentState = currentStateId;
     }
 
     @Override
     public void lastState(S lastStateId) {
-        this.lastState = lastStateId;
+        if(touch(Field.LAST_STATE, lastState, lastStateId))
+            this.lastState = lastStateId;
     }
 
     @Override
     public void initialState(S initialStateId) {
-        this.initialState = initialStateId;
+        if(touch(Field.INITIAL_STATE, initialState, initialStateId))
+            this.initialState = initialStateId;
     }
 
     @Override
     public void startContext(C context) {
         if(context!=null && context instanceof Serializable)
+            startContextValue(context);
+    }
+    
+    private void startContextValue(Object context) {
+        if(touch(Field.START_CONTEXT, startContext, context))
             startContext = context;
     }
 
     @Override
     public void lastActiveChildStateFor(S parentStateId, S childStateId) {
-        lastActiveChildStateStore.put(parentStateId, childStateId);
+        if(lastActiveChildStateStore.containsKey(parentStateId) && 
+                Objects.equal(lastActiveChildStateStore.get(parentStateId), childStateId))
+            return;
+        own(SHARED_LAST_ACTIVE_CHILD_STATES);
+        S oldChildStateId = lastActiveChildStateStore.put(parentStateId, childStateId);
+        if(!Objects.equal(oldChildStateId, childStateId))
+            touch(lastActiveChildStateVersions, parentStateId);
     }
 
     @Override
     public void subStateFor(S parentStateId, S subStateId) {
         if (rawStateFrom(parentStateId) != null
                 && rawStateFrom(parentStateId).isParallelState()) {
+            own(SHARED_PARALLEL_STATES);
             parallelStatesStore.put(parentStateId, subStateId);
+            touch(parallelStateVersions, parentStateId);
         } else {
             logger.warn("Cannot set sub states on none parallel state {}.",
                     parentStateId);
         }
     }
 
+    /**
+     * Put sub state without parallel state check, which is used to restore data without states
+     * for reference.
+     */
+    void putSubState(S parentStateId, S subStateId) {
+        own(SHARED_PARALLEL_STATES);
+        parallelStatesStore.put(parentStateId, subStateId);
+        touch(parallelStateVersions, parentStateId);
+    }
+
     @Override
     public void removeSubState(S parentStateId, S subStateId) {
         if (rawStateFrom(parentStateId) != null
                 && rawStateFrom(parentStateId).isParallelState()) {
-            parallelStatesStore.remove(parentStateId, subStateId);
+            if(parallelStatesStore.containsEntry(parentStateId, subStateId)) {
+                own(SHARED_PARALLEL_STATES);
+                parallelStatesStore.remove(parentStateId, subStateId);
+                touch(parallelStateVersions, parentStateId);
+            }
         } else {
             logger.warn("Cannot remove sub states on none parallel state {}.",
                     parentStateId);
@@ -193,13 +460,18 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
     @Override
     public void removeSubStatesOn(S parentStateId) {
         if (rawStateFrom(parentStateId).isParallelState()) {
-            parallelStatesStore.removeAll(parentStateId);
+            if(parallelStatesStore.containsKey(parentStateId)) {
+                own(SHARED_PARALLEL_STATES);
+                parallelStatesStore.removeAll(parentStateId);
+                touch(parallelStateVersions, parentStateId);
+            }
         }
     }
     
     @Override
     public void identifier(String id) {
-        this.identifier = id;
+        if(touch(Field.IDENTIFIER, identifier, id))
+            this.identifier = id;
     }
 
     @Override
@@ -345,5 +617,51 @@ public class StateMachineDataImpl<T extends StateMachine<T, S, E, C>, S, E, C>
     public void linkedStateDataOn(S linkedState,
             StateMachineData.Reader<? extends StateMachine<?, S, E, C>, S, E, C> linkStateData) {
         getLinkedStateData().put(linkedState, linkStateData);
+        touch(getLinkedStateVersions(), linkedState);
+    }
+    
+    @Override
+    public Collection<S> pendingTimerStates() {
+        return Collections.unmodifiableCollection(pendingTimerStore.keySet());
+    }
+
+    @Override
+    public PendingTimer pendingTimerOf(S timedState) {
+        return pendingTimerStore.get(timedState);
+    }
+
+    @Override
+    public void pendingTimerFor(S timedState, PendingTimer timer) {
+        Map<S, PendingTimer> pendingTimers = Maps.newHashMap(pendingTimerStore);
+        if (timer != null) {
+            pendingTimers.put(timedState, timer);
+        } else {
+            pendingTimers.remove(timedState);
+        }
+        pendingTimerStore = pendingTimers;
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // fields absent from data serialized by earlier versions are left null, and their stores are owned
+        if (fieldVersions == null) {
+            fieldVersions = new long[Field.values().length];
+        } else if (fieldVersions.length < Field.values().length) {
+            fieldVersions = Arrays.copyOf(fieldVersions, Field.values().length);
+        }
+        if (lastActiveChildStateVersions == null) {
+            lastActiveChildStateVersions = Maps.newHashMap();
+        }
+        if (parallelStateVersions == null) {
+            parallelStateVersions = Maps.newHashMap();
+        }
+        if (pendingTimerStore == null) {
+            pendingTimerStore = Collections.emptyMap();
+        }
+    }
+    
+    private static class Version implements Serializable {
+        private static final long serialVersionUID = 2956437209712547601L;
+        private long value;
     }
 }
@@ -0,0 +1,454 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.impl.FileStateMachineEventLog.RecordHandler;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Background compactor of {@link FileStateMachineEventLog}. Each compaction folds the closed log segments
+ * into per-partition binary snapshots of the not terminated state machines, then deletes the folded
+ * segments and the previous snapshots. Snapshot set of a compaction is only visible to recovery after all
+ * its partitions are written, and recovery loads the latest snapshot set then replays only the log tail.
+ * <p>
+ * Partitions are folded in parallel. Bytes read from segments and written to snapshots are throttled by
+ * a shared rate limiter so that compaction does not starve event log appends of disk bandwidth.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class StateMachineEventLogCompactor<T extends StateMachine<T, S, E, C>, S, E, C> implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StateMachineEventLogCompactor.class);
+
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    static final String SNAPSHOT_SUFFIX = ".snap";
+
+    static final String SNAPSHOT_DONE_SUFFIX = ".done";
+
+    private final FileStateMachineEventLog eventLog;
+
+    private final StateMachineBuilder<T, S, E, C> builder;
+
+    private final Object[] extraParams;
+
+    private final int partitions;
+
+    private final RateLimiter rateLimiter;
+
+    private final ExecutorService partitionExecutor;
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> scheduledCompaction;
+
+    /**
+     * @param eventLog compacted event log
+     * @param builder builder of logged state machines
+     * @param partitions number of partitions folded in parallel
+     * @param maxBytesPerSecond max bytes read and written by compaction per second, non-positive means unlimited
+     * @param extraParams extra parameters to create state machine instance
+     */
+    public StateMachineEventLogCompactor(FileStateMachineEventLog eventLog, StateMachineBuilder<T, S, E, C> builder,
+            int partitions, long maxBytesPerSecond, Object... extraParams) {
+        if(partitions<=0) {
+            throw new IllegalArgumentException("Number of partitions must be positive.");
+        }
+        this.eventLog = eventLog;
+        this.builder = builder;
+        this.extraParams = extraParams;
+        this.partitions = partitions;
+        this.rateLimiter = maxBytesPerSecond>0 ? RateLimiter.create(maxBytesPerSecond) : null;
+        this.partitionExecutor = Executors.newFixedThreadPool(
+                Math.min(partitions, Runtime.getRuntime().availableProcessors()), newThreadFactory());
+    }
+
+    /**
+     * Compact event log periodically in background
+     * @param period period between compactions
+     * @param unit time unit of period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if(scheduledCompaction!=null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory());
+        scheduledCompaction = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    logger.error("Compact event log failed.", e);
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Fold closed log segments into a new snapshot set
+     * @return sequence number covered by latest snapshot set, or 0 if nothing compacted
+     * @throws IOException if read log or write snapshot failed
+     */
+    public synchronized long compact() throws IOException {
+        File directory = eventLog.getDirectory();
+        Snapshot previous = latestSnapshot(directory);
+        long previousSequence = previous!=null ? previous.sequence : 0;
+
+        final List<File> foldedSegments = eventLog.closedSegments();
+        if(foldedSegments.isEmpty()) {
+            return previousSequence;
+        }
+        // dispatch records after previous snapshot to partitions
+        final List<List<Record>> partitionRecords = Lists.newArrayListWithCapacity(partitions);
+        for(int i=0; i<partitions; ++i) {
+            partitionRecords.add(Lists.<Record>newArrayList());
+        }
+        final long[] lastSequence = new long[] {previousSequence};
+        for(File segment : foldedSegments) {
+            throttle(segment.length());
+            FileStateMachineEventLog.replay(Lists.newArrayList(segment), previousSequence+1, new RecordHandler() {
+                @Override
+                public void handle(long sequence, byte type, String identifier, Object value, Object context) {
+                    partitionRecords.get(partitionOf(identifier, partitions)).add(
+                            new Record(type, identifier, value, context));
+                    lastSequence[0] = Math.max(lastSequence[0], sequence);
+                }
+            });
+        }
+        final long sequence = lastSequence[0];
+        if(sequence==previousSequence) {
+            deleteFoldedFiles(directory, foldedSegments, previousSequence);
+            return previousSequence;
+        }
+
+        // fold each partition into snapshot in parallel
+        List<StateMachineSnapshotFile<T, S, E, C>> previousFiles = openSnapshotFiles(previous);
+        try {
+            List<Future<Void>> futures = Lists.newArrayListWithCapacity(partitions);
+            for(int i=0; i<partitions; ++i) {
+                futures.add(partitionExecutor.submit(new PartitionCompaction(directory, i, sequence,
+                        previousFiles, partitionRecords.get(i))));
+            }
+            for(Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Event log compaction interrupted.", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+            throw new IOException("Event log compaction failed.", e.getCause());
+        } finally {
+            for(StateMachineSnapshotFile<T, S, E, C> file : previousFiles) {
+                file.close();
+            }
+        }
+        // snapshot set becomes visible once done marker created, and both must be durable before folded 
+        // segments are deleted
+        syncDirectory(directory);
+        File doneFile = new File(directory, snapshotName(sequence, -1));
+        if(!doneFile.createNewFile() && !doneFile.exists()) {
+            throw new IOException("Cannot create snapshot marker '"+doneFile+"'.");
+        }
+        FileChannel doneChannel = FileChannel.open(doneFile.toPath(), StandardOpenOption.WRITE);
+        try {
+            doneChannel.force(true);
+        } finally {
+            doneChannel.close();
+        }
+        syncDirectory(directory);
+        deleteFoldedFiles(directory, foldedSegments, sequence);
+        logger.debug("Compacted {} event log segments into snapshot {}.", foldedSegments.size(), sequence);
+        return sequence;
+    }
+
+    /**
+     * Force directory entries of created files to disk. Directory cannot be opened for sync on some 
+     * platforms, where entries are made durable by file system itself.
+     */
+    static void syncDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            logger.debug("Cannot open directory {} for sync.", directory);
+            return;
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Cannot sync directory {}.", directory);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void deleteFoldedFiles(File directory, List<File> foldedSegments, long sequence) {
+        for(File segment : foldedSegments) {
+            if(!segment.delete()) {
+                logger.warn("Cannot delete folded event log segment {}.", segment);
+            }
+        }
+        for(File file : snapshotFiles(directory)) {
+            if(sequenceOf(file)<sequence && !file.delete()) {
+                logger.warn("Cannot delete stale snapshot {}.", file);
+            }
+        }
+    }
+
+    private List<StateMachineSnapshotFile<T, S, E, C>> openSnapshotFiles(Snapshot snapshot) throws IOException {
+        List<StateMachineSnapshotFile<T, S, E, C>> result = Lists.newArrayList();
+        if(snapshot!=null) {
+            for(File file : snapshot.partitionFiles) {
+                throttle(file.length());
+                result.add(StateMachineSnapshotFile.<T, S, E, C>open(file));
+            }
+        }
+        return result;
+    }
+
+    private void throttle(long bytes) {
+        if(rateLimiter==null) return;
+        while(bytes>0) {
+            int permits = (int)Math.min(bytes, Integer.MAX_VALUE);
+            rateLimiter.acquire(Math.max(1, permits));
+            bytes -= permits;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(scheduledCompaction!=null) {
+            scheduledCompaction.cancel(false);
+            scheduler.shutdown();
+            scheduledCompaction = null;
+        }
+        partitionExecutor.shutdown();
+    }
+
+    private class PartitionCompaction implements Callable<Void> {
+
+        private final File directory;
+
+        private final int partition;
+
+        private final long sequence;
+
+        private final List<StateMachineSnapshotFile<T, S, E, C>> previousFiles;
+
+        private final List<Record> records;
+
+        PartitionCompaction(File directory, int partition, long sequence,
+                List<StateMachineSnapshotFile<T, S, E, C>> previousFiles, List<Record> records) {
+            this.directory = directory;
+            this.partition = partition;
+            this.sequence = sequence;
+            this.previousFiles = previousFiles;
+            this.records = records;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            Map<String, T> stateMachines = Maps.newLinkedHashMap();
+            for(StateMachineSnapshotFile<T, S, E, C> file : previousFiles) {
+                for(String identifier : file.identifiers()) {
+                    if(partitionOf(identifier, partitions)==partition) {
+                        stateMachines.put(identifier, restoreReplica(file.read(identifier), builder, extraParams));
+                    }
+                }
+            }
+            for(Record record : records) {
+                apply(stateMachines, record.type, record.identifier, record.value, record.context, builder, extraParams);
+            }
+            List<StateMachineData.Reader<T, S, E, C>> savedData = Lists.newArrayListWithCapacity(stateMachines.size());
+            for(T stateMachine : stateMachines.values()) {
+                savedData.add(stateMachine.dumpSavedData());
+            }
+            File snapshotFile = new File(directory, snapshotName(sequence, partition));
+            StateMachineSnapshotFile.exportData(savedData, snapshotFile, 1);
+            throttle(snapshotFile.length());
+            return null;
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final String identifier;
+        final Object value;
+        final Object context;
+
+        Record(byte type, String identifier, Object value, Object context) {
+            this.type = type;
+            this.identifier = identifier;
+            this.value = value;
+            this.context = context;
+        }
+    }
+
+    /**
+     * Complete snapshot set of a compaction
+     */
+    static class Snapshot {
+        final long sequence;
+        final List<File> partitionFiles;
+
+        Snapshot(long sequence, List<File> partitionFiles) {
+            this.sequence = sequence;
+            this.partitionFiles = partitionFiles;
+        }
+    }
+
+    static int partitionOf(String identifier, int partitions) {
+        return (identifier.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Restore state machine instance from saved data without replaying any action
+     */
+    static <T extends StateMachine<T, S, E, C>, S, E, C> T restore(StateMachineData.Reader<T, S, E, C> savedData,
+            StateMachineBuilder<T, S, E, C> builder, Object... extraParams) {
+        T stateMachine = builder.newStateMachine(savedData.initialState(), extraParams);
+        stateMachine.loadSavedData(savedData);
+        return stateMachine;
+    }
+
+    /**
+     * Restore state machine instance to be replayed, whose pending timers are kept by its data and only armed
+     * by {@link #armPendingTimers(Iterable)} after replay completed
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends StateMachine<T, S, E, C>, S, E, C> T restoreReplica(StateMachineData.Reader<T, S, E, C> savedData,
+            StateMachineBuilder<T, S, E, C> builder, Object... extraParams) {
+        T stateMachine = builder.newStateMachine(savedData.initialState(), extraParams);
+        if(stateMachine instanceof AbstractStateMachine) {
+            ((AbstractStateMachine<T, S, E, C>)stateMachine).loadSavedData(savedData, false);
+        } else {
+            stateMachine.loadSavedData(savedData);
+        }
+        return stateMachine;
+    }
+
+    /**
+     * Arm pending timers of replayed state machines, including timers of timed states entered by replay
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends StateMachine<T, S, E, C>, S, E, C> void armPendingTimers(Iterable<T> stateMachines) {
+        for(T stateMachine : stateMachines) {
+            if(stateMachine instanceof AbstractStateMachine) {
+                ((AbstractStateMachine<T, S, E, C>)stateMachine).armPendingTimers();
+            }
+        }
+    }
+
+    /**
+     * Apply log record on state machines through dummy execution
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends StateMachine<T, S, E, C>, S, E, C> void apply(Map<String, T> stateMachines, byte type,
+            String identifier, Object value, Object context, StateMachineBuilder<T, S, E, C> builder,
+            Object... extraParams) {
+        if(type==FileStateMachineEventLog.RECORD_START) {
+            T stateMachine = builder.newStateMachine((S)value, extraParams);
+            ((AbstractStateMachine<T, S, E, C>)stateMachine).replayStart(identifier, (C)context);
+            stateMachines.put(identifier, stateMachine);
+        } else if(type==FileStateMachineEventLog.RECORD_EVENT) {
+            T stateMachine = stateMachines.get(identifier);
+            if(stateMachine!=null) {
+                ((AbstractStateMachine<T, S, E, C>)stateMachine).replayEvent((E)value, (C)context);
+            } else {
+                logger.debug("Ignore event of state machine {} which is not started in log.", identifier);
+            }
+        } else if(type==FileStateMachineEventLog.RECORD_TERMINATE) {
+            stateMachines.remove(identifier);
+        }
+    }
+
+    /**
+     * @param directory event log directory
+     * @return latest complete snapshot set or null if not exist
+     */
+    static Snapshot latestSnapshot(File directory) {
+        long latestSequence = -1;
+        for(File file : snapshotFiles(directory)) {
+            if(file.getName().endsWith(SNAPSHOT_DONE_SUFFIX)) {
+                latestSequence = Math.max(latestSequence, sequenceOf(file));
+            }
+        }
+        if(latestSequence<0) {
+            return null;
+        }
+        List<File> partitionFiles = Lists.newArrayList();
+        for(File file : snapshotFiles(directory)) {
+            if(file.getName().endsWith(SNAPSHOT_SUFFIX) && sequenceOf(file)==latestSequence) {
+                partitionFiles.add(file);
+            }
+        }
+        return new Snapshot(latestSequence, partitionFiles);
+    }
+
+    static List<File> snapshotFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SNAPSHOT_PREFIX);
+            }
+        });
+        if(files==null) {
+            return Lists.newArrayList();
+        }
+        Arrays.sort(files);
+        return Lists.newArrayList(files);
+    }
+
+    static String snapshotName(long sequence, int partition) {
+        return partition<0 ? String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_DONE_SUFFIX) :
+            String.format("%s%020d-%d%s", SNAPSHOT_PREFIX, sequence, partition, SNAPSHOT_SUFFIX);
+    }
+
+    static long sequenceOf(File snapshotFile) {
+        String name = snapshotFile.getName();
+        return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), SNAPSHOT_PREFIX.length()+20));
+    }
+
+    private static ThreadFactory newThreadFactory() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "squirrel-event-log-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
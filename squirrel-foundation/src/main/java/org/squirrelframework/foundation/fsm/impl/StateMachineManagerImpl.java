@@ -0,0 +1,218 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineManager;
+import org.squirrelframework.foundation.fsm.StateMachineStatus;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * State machine manager which confines each state machine to the single thread of its shard. Instances
+ * and the map holding them are only accessed by shard thread, hence events are processed through
+ * {@link AbstractStateMachine#fireConfined(Object, Object)} without acquiring lock of the instance. Events
+ * scheduled by timer are processed on shard thread through mailbox of the instance as well.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class StateMachineManagerImpl<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineManager<T, S, E, C> {
+
+    private final List<Shard> shards;
+
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private volatile boolean isShutdown = false;
+
+    /**
+     * @param shardCount number of shard threads
+     */
+    public StateMachineManagerImpl(int shardCount) {
+        Preconditions.checkArgument(shardCount>0, "Shard count must be positive.");
+        this.shards = Lists.newArrayListWithCapacity(shardCount);
+        for(int i=0; i<shardCount; ++i) {
+            shards.add(new Shard(i));
+        }
+    }
+
+    private Shard shardOf(String identifier) {
+        return shards.get((identifier.hashCode() & Integer.MAX_VALUE) % shards.size());
+    }
+
+    private void checkRunning() {
+        Preconditions.checkState(!isShutdown, "State machine manager was shut down.");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public String add(final T stateMachine) {
+        checkRunning();
+        final String identifier = stateMachine.getIdentifier();
+        final Shard shard = shardOf(identifier);
+        shard.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(shard.stateMachines.put(identifier, stateMachine)==null) {
+                    size.incrementAndGet();
+                }
+                if(stateMachine instanceof AbstractStateMachine) {
+                    ((AbstractStateMachine<T, S, E, C>)stateMachine).setMailbox(shard.new Mailbox(identifier));
+                }
+            }
+        });
+        return identifier;
+    }
+
+    @Override
+    public Future<S> submit(final String identifier, final E event, final C context) {
+        checkRunning();
+        final Shard shard = shardOf(identifier);
+        return shard.executor.submit(new Callable<S>() {
+            @Override
+            public S call() {
+                return shard.process(identifier, event, context);
+            }
+        });
+    }
+
+    @Override
+    public Future<Boolean> remove(final String identifier) {
+        checkRunning();
+        final Shard shard = shardOf(identifier);
+        return shard.executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return shard.remove(identifier)!=null;
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public void shutdown() {
+        isShutdown = true;
+        for(Shard shard : shards) {
+            shard.executor.shutdown();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Shard shard : shards) {
+            if(!shard.executor.awaitTermination(deadline-System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class Shard {
+
+        final ThreadPoolExecutor executor;
+
+        // only accessed by shard thread
+        final Map<String, T> stateMachines = Maps.newHashMap();
+
+        Shard(final int index) {
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "squirrel-state-machine-shard-"+index);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        S process(String identifier, E event, C context) {
+            T stateMachine = stateMachines.get(identifier);
+            if(stateMachine==null) {
+                throw new IllegalArgumentException("State machine '"+identifier+"' not found.");
+            }
+            try {
+                if(stateMachine instanceof AbstractStateMachine) {
+                    ((AbstractStateMachine<T, S, E, C>)stateMachine).fireConfined(event, context);
+                } else {
+                    stateMachine.fire(event, context);
+                }
+                return stateMachine.getCurrentState();
+            } finally {
+                if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
+                    remove(identifier);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T remove(String identifier) {
+            T stateMachine = stateMachines.remove(identifier);
+            if(stateMachine!=null) {
+                size.decrementAndGet();
+                if(stateMachine instanceof AbstractStateMachine) {
+                    ((AbstractStateMachine<T, S, E, C>)stateMachine).setMailbox(null);
+                }
+            }
+            return stateMachine;
+        }
+
+        /**
+         * Executor which runs task on shard thread as long as state machine is still held by shard
+         */
+        class Mailbox implements Executor {
+            private final String identifier;
+
+            Mailbox(String identifier) {
+                this.identifier = identifier;
+            }
+
+            @Override
+            public void execute(final Runnable task) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T stateMachine = stateMachines.get(identifier);
+                        if(stateMachine==null) {
+                            return;
+                        }
+                        try {
+                            task.run();
+                        } finally {
+                            if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
+                                remove(identifier);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+import org.squirrelframework.foundation.fsm.StateMachineRepository;
+import org.squirrelframework.foundation.fsm.StateMachineStatus;
+import org.squirrelframework.foundation.fsm.StateMachineStore;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+
+/**
+ * Weight bounded least recently used state machine repository. Active state machines are kept in
+ * segments of access ordered maps. When weight of a segment exceeds its capacity, least recently used
+ * state machines which are neither processing event nor receiving scheduled event from timer are
+ * passivated into store. Passivation happens under segment lock, so that a concurrent access of the same
+ * identifier always reactivates the latest stored data.
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class StateMachineRepositoryImpl<T extends StateMachine<T, S, E, C>, S, E, C>
+    implements StateMachineRepository<T, S, E, C> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    // segments are only split when each of them keeps enough state machines for its own LRU order to matter
+    private static final int MIN_SEGMENT_WEIGHT = 64;
+
+    private final StateMachineBuilder<T, S, E, C> builder;
+
+    private final StateMachineStore<T, S, E, C> store;
+
+    private final Weigher<String, ? super T> weigher;
+
+    private final Object[] extraParams;
+
+    private final List<Segment> segments;
+
+    /**
+     * @param builder builder to create reactivated state machine
+     * @param store store of passivated state machine data
+     * @param maximumSize max number of state machines kept in memory
+     * @param extraParams extra parameters to create state machine instance
+     */
+    public StateMachineRepositoryImpl(StateMachineBuilder<T, S, E, C> builder,
+            StateMachineStore<T, S, E, C> store, long maximumSize, Object... extraParams) {
+        this(builder, store, maximumSize, new Weigher<String, T>() {
+            @Override
+            public int weigh(String identifier, T stateMachine) {
+                return 1;
+            }
+        }, extraParams);
+    }
+
+    /**
+     * @param builder builder to create reactivated state machine
+     * @param store store of passivated state machine data
+     * @param maximumWeight max total weight of state machines kept in memory
+     * @param weigher weigher of active state machine
+     * @param extraParams extra parameters to create state machine instance
+     */
+    public StateMachineRepositoryImpl(StateMachineBuilder<T, S, E, C> builder,
+            StateMachineStore<T, S, E, C> store, long maximumWeight,
+            Weigher<String, ? super T> weigher, Object... extraParams) {
+        Preconditions.checkArgument(maximumWeight>0, "Maximum weight must be positive.");
+        this.builder = Preconditions.checkNotNull(builder);
+        this.store = Preconditions.checkNotNull(store);
+        this.weigher = Preconditions.checkNotNull(weigher);
+        this.extraParams = extraParams;
+        int segmentCount = (int)Math.max(1, Math.min(MAX_SEGMENTS, maximumWeight/MIN_SEGMENT_WEIGHT));
+        this.segments = Lists.newArrayListWithCapacity(segmentCount);
+        for(int i=0; i<segmentCount; ++i) {
+            segments.add(new Segment(maximumWeight/segmentCount + (i<maximumWeight%segmentCount ? 1 : 0)));
+        }
+    }
+
+    private Segment segmentOf(String identifier) {
+        return segments.get((identifier.hashCode() & Integer.MAX_VALUE) % segments.size());
+    }
+
+    @Override
+    public T get(String identifier) {
+        Segment segment = segmentOf(identifier);
+        segment.lock.lock();
+        try {
+            Entry entry = segment.activate(identifier);
+            if(entry==null) {
+                return null;
+            }
+            segment.evict();
+            return entry.stateMachine;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public S fire(String identifier, E event, C context) {
+        Segment segment = segmentOf(identifier);
+        Entry entry;
+        segment.lock.lock();
+        try {
+            entry = segment.activate(identifier);
+            if(entry==null) {
+                throw new IllegalArgumentException("State machine '"+identifier+"' not found.");
+            }
+            entry.pins++;
+        } finally {
+            segment.lock.unlock();
+        }
+
+        T stateMachine = entry.stateMachine;
+        try {
+            stateMachine.fire(event, context);
+            return stateMachine.getCurrentState();
+        } finally {
+            segment.lock.lock();
+            try {
+                entry.pins--;
+                if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
+                    if(segment.entries.get(identifier)==entry) {
+                        segment.remove(identifier);
+                    }
+                    store.remove(identifier);
+                } else {
+                    segment.reweigh(entry);
+                }
+                segment.evict();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void save(T stateMachine) {
+        String identifier = stateMachine.getIdentifier();
+        Segment segment = segmentOf(identifier);
+        segment.lock.lock();
+        try {
+            store.store(stateMachine.dumpSavedData());
+            Entry entry = segment.entries.get(identifier);
+            if(entry==null || entry.stateMachine!=stateMachine) {
+                if(entry!=null) {
+                    segment.remove(identifier);
+                }
+                segment.put(identifier, stateMachine);
+            }
+            segment.evict();
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String identifier) {
+        Segment segment = segmentOf(identifier);
+        segment.lock.lock();
+        try {
+            boolean isActive = segment.remove(identifier)!=null;
+            return store.remove(identifier) || isActive;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void passivateAll() {
+        for(Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                Iterator<Map.Entry<String, Entry>> iterator = segment.entries.entrySet().iterator();
+                while(iterator.hasNext()) {
+                    Entry entry = iterator.next().getValue();
+                    if(entry.pins==0 && segment.passivate(entry)) {
+                        iterator.remove();
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int activeSize() {
+        int size = 0;
+        for(Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private class Entry {
+        final T stateMachine;
+        int weight;
+        int pins;
+
+        Entry(T stateMachine, int weight) {
+            this.stateMachine = stateMachine;
+            this.weight = weight;
+        }
+    }
+
+    private class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        final long capacity;
+
+        long weight;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        Entry activate(String identifier) {
+            Entry entry = entries.get(identifier);
+            if(entry==null) {
+                StateMachineData.Reader<T, S, E, C> savedData = store.load(identifier);
+                if(savedData!=null) {
+                    entry = put(identifier, StateMachineEventLogCompactor.restore(savedData, builder, extraParams));
+                }
+            }
+            return entry;
+        }
+
+        Entry put(String identifier, T stateMachine) {
+            Entry entry = new Entry(stateMachine, weigh(identifier, stateMachine));
+            entries.put(identifier, entry);
+            weight += entry.weight;
+            return entry;
+        }
+
+        Entry remove(String identifier) {
+            Entry entry = entries.remove(identifier);
+            if(entry!=null) {
+                weight -= entry.weight;
+            }
+            return entry;
+        }
+
+        void reweigh(Entry entry) {
+            int newWeight = weigh(entry.stateMachine.getIdentifier(), entry.stateMachine);
+            weight += newWeight - entry.weight;
+            entry.weight = newWeight;
+        }
+
+        /**
+         * Passivate least recently used state machines which are not processing event
+         */
+        void evict() {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while(weight>capacity && iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if(entry.pins==0 && passivate(entry)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Store state machine data and stop its timers, which are re-armed from stored data on reactivation. 
+         * State machine processing event or receiving scheduled event from timer is kept active.
+         * @return false if state machine cannot be passivated now
+         */
+        @SuppressWarnings("unchecked")
+        boolean passivate(Entry entry) {
+            if(entry.stateMachine instanceof AbstractStateMachine) {
+                if(!((AbstractStateMachine<T, S, E, C>)entry.stateMachine).passivateInto(store)) {
+                    return false;
+                }
+            } else {
+                store.store(entry.stateMachine.dumpSavedData());
+            }
+            weight -= entry.weight;
+            return true;
+        }
+
+        private int weigh(String identifier, T stateMachine) {
+            int result = weigher.weigh(identifier, stateMachine);
+            Preconditions.checkState(result>=0, "Weight of state machine cannot be negative.");
+            return result;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineBuilder;
+import org.squirrelframework.foundation.fsm.StateMachineData;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Memory-mapped file which holds snapshots of large amount of state machines. Snapshots are exported in
+ * parallel, each partition serializes its state machines with {@link BinaryStateMachineDataSerializer}
+ * into a local chunk, reserves a file region for the chunk and writes it through a mapped buffer.
+ * Snapshot file can be opened later to rehydrate state machine instance lazily by identifier.
+ * <p>
+ * File layout:
+ * <pre>
+ * header := magic(4) version(4)
+ * record := length(4) binaryData(length)
+ * index  := (idLength(4) idBytes offset(8))*
+ * footer := indexOffset(8) recordCount(4) maxRecordLength(4) magic(4)
+ * </pre>
+ *
+ * @author Henry.He
+ *
+ * @param <T> type of State Machine
+ * @param <S> type of State
+ * @param <E> type of Event
+ * @param <C> type of Context
+ */
+public class StateMachineSnapshotFile<T extends StateMachine<T, S, E, C>, S, E, C> implements Closeable {
+
+    static final int MAGIC = 0x53515346; // SQSF
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int FOOTER_SIZE = 20;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final Map<String, Long> recordOffsets;
+
+    private final long dataEnd;
+
+    private final int maxRecordLength;
+
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+
+    private final BinaryStateMachineDataSerializer<T, S, E, C> serializer =
+            new BinaryStateMachineDataSerializer<T, S, E, C>();
+
+    private StateMachineSnapshotFile(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        long fileSize = channel.size();
+        if(fileSize < HEADER_SIZE+FOOTER_SIZE) {
+            throw new IllegalArgumentException("Not a state machine snapshot file.");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, fileSize-FOOTER_SIZE, FOOTER_SIZE);
+        if(header.getInt()!=MAGIC || footer.getInt(FOOTER_SIZE-4)!=MAGIC) {
+            throw new IllegalArgumentException("Not a state machine snapshot file.");
+        }
+        int version = header.getInt();
+        if(version!=VERSION) {
+            throw new IllegalArgumentException("Unsupported state machine snapshot file version "+version+".");
+        }
+        dataEnd = footer.getLong();
+        int recordCount = footer.getInt();
+        maxRecordLength = footer.getInt();
+
+        recordOffsets = Maps.newHashMapWithExpectedSize(recordCount);
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, dataEnd, fileSize-FOOTER_SIZE-dataEnd);
+        for(int i=0; i<recordCount; ++i) {
+            byte[] idBytes = new byte[index.getInt()];
+            index.get(idBytes);
+            recordOffsets.put(new String(idBytes, UTF8), index.getLong());
+        }
+        segments = new AtomicReferenceArray<MappedByteBuffer>((int)((dataEnd+SEGMENT_SIZE-1)/SEGMENT_SIZE));
+    }
+
+    /**
+     * Open snapshot file for lazy loading. Only the index is read eagerly.
+     * @param snapshotFile snapshot file
+     * @return opened snapshot file
+     * @throws IOException if snapshot file cannot be read
+     */
+    public static <T extends StateMachine<T, S, E, C>, S, E, C> StateMachineSnapshotFile<T, S, E, C> open(
+            File snapshotFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+        try {
+            return new StateMachineSnapshotFile<T, S, E, C>(file);
+        } catch(IOException e) {
+            file.close();
+            throw e;
+        } catch(RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Export snapshots of state machines into snapshot file in parallel with one partition per processor
+     * @param stateMachines exported state machines
+     * @param snapshotFile target snapshot file, which will be overwritten if exists
+     * @return number of exported snapshots
+     * @throws IOException if write snapshot file failed
+     */
+    public static <T extends StateMachine<T, S, E, C>, S, E, C> int exportStateMachines(
+            Collection<? extends T> stateMachines, File snapshotFile) throws IOException {
+        return exportStateMachines(stateMachines, snapshotFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static <T extends StateMachine<T, S, E, C>, S, E, C> int exportStateMachines(
+            Collection<? extends T> stateMachines, File snapshotFile, int parallelism) throws IOException {
+        return export(stateMachines, snapshotFile, parallelism, new Function<T, StateMachineData.Reader<T, S, E, C>>() {
+            @Override
+            public StateMachineData.Reader<T, S, E, C> apply(T stateMachine) {
+                return stateMachine.dumpSavedData();
+            }
+        });
+    }
+
+    /**
+     * Export state machine data into snapshot file in parallel with one partition per processor
+     * @param savedData exported state machine data
+     * @param snapshotFile target snapshot file, which will be overwritten if exists
+     * @return number of exported snapshots
+     * @throws IOException if write snapshot file failed
+     */
+    public static <T extends StateMachine<T, S, E, C>, S, E, C> int exportData(
+            Collection<? extends StateMachineData.Reader<T, S, E, C>> savedData, File snapshotFile) throws IOException {
+        return exportData(savedData, snapshotFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static <T extends StateMachine<T, S, E, C>, S, E, C> int exportData(
+            Collection<? extends StateMachineData.Reader<T, S, E, C>> savedData, File snapshotFile,
+            int parallelism) throws IOException {
+        return export(savedData, snapshotFile, parallelism,
+                new Function<StateMachineData.Reader<T, S, E, C>, StateMachineData.Reader<T, S, E, C>>() {
+            @Override
+            public StateMachineData.Reader<T, S, E, C> apply(StateMachineData.Reader<T, S, E, C> data) {
+                return data;
+            }
+        });
+    }
+
+    private static <X, T extends StateMachine<T, S, E, C>, S, E, C> int export(Collection<? extends X> sources,
+            File snapshotFile, int parallelism, final Function<X, StateMachineData.Reader<T, S, E, C>> dataFunction)
+                    throws IOException {
+        // write into temp file of the same directory, so that existing snapshot is only replaced when complete
+        File tempFile = new File(snapshotFile.getAbsoluteFile().getParentFile(), snapshotFile.getName()+TEMP_SUFFIX);
+        boolean isMoved = false;
+        try {
+            int recordCount = writeSnapshot(sources, tempFile, parallelism, dataFunction);
+            Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            isMoved = true;
+            return recordCount;
+        } finally {
+            if(!isMoved) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private static <X, T extends StateMachine<T, S, E, C>, S, E, C> int writeSnapshot(Collection<? extends X> sources,
+            File tempFile, int parallelism, Function<X, StateMachineData.Reader<T, S, E, C>> dataFunction)
+                    throws IOException {
+        List<? extends X> sourceList = ImmutableList.copyOf(sources);
+        int partitionSize = Math.max(1, (sourceList.size()+Math.max(1, parallelism)-1) / Math.max(1, parallelism));
+        List<? extends List<? extends X>> partitions = Lists.partition(sourceList, partitionSize);
+
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            // temp file may be left by previous failed export
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            final AtomicLong writePosition = new AtomicLong(HEADER_SIZE);
+            List<PartitionWriter<X, T, S, E, C>> writers = Lists.newArrayListWithCapacity(partitions.size());
+            for(List<? extends X> partition : partitions) {
+                writers.add(new PartitionWriter<X, T, S, E, C>(partition, dataFunction, channel, writePosition));
+            }
+            if(writers.size()<=1) {
+                for(PartitionWriter<X, T, S, E, C> writer : writers) {
+                    writer.call();
+                }
+            } else {
+                ExecutorService executorService = Executors.newFixedThreadPool(writers.size());
+                try {
+                    for(Future<Void> future : executorService.invokeAll(writers)) {
+                        future.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Snapshot export interrupted.", e);
+                } catch (ExecutionException e) {
+                    if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+                    if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                    throw new IOException(e.getCause());
+                } finally {
+                    executorService.shutdownNow();
+                }
+            }
+
+            // write index and footer after all the records
+            ChunkBuffer index = new ChunkBuffer(CHUNK_SIZE);
+            int recordCount = 0, maxRecordLength = 0;
+            for(PartitionWriter<X, T, S, E, C> writer : writers) {
+                for(int i=0; i<writer.identifiers.size(); ++i) {
+                    byte[] idBytes = writer.identifiers.get(i).getBytes(UTF8);
+                    index.writeInt(idBytes.length);
+                    index.write(idBytes, 0, idBytes.length);
+                    index.writeLong(writer.offsets.get(i));
+                }
+                recordCount += writer.identifiers.size();
+                maxRecordLength = Math.max(maxRecordLength, writer.maxRecordLength);
+            }
+            long indexOffset = writePosition.get();
+            index.writeLong(indexOffset);
+            index.writeInt(recordCount);
+            index.writeInt(maxRecordLength);
+            index.writeInt(MAGIC);
+            index.writeTo(channel, indexOffset);
+
+            ChunkBuffer header = new ChunkBuffer(HEADER_SIZE);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeTo(channel, 0);
+
+            channel.truncate(indexOffset+index.size());
+            // mapped regions were forced when written, and file size is forced along with metadata
+            channel.force(true);
+            return recordCount;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return identifiers of all the state machines in snapshot file
+     */
+    public Set<String> identifiers() {
+        return Collections.unmodifiableSet(recordOffsets.keySet());
+    }
+
+    public int size() {
+        return recordOffsets.size();
+    }
+
+    public boolean contains(String identifier) {
+        return recordOffsets.containsKey(identifier);
+    }
+
+    /**
+     * Read saved data of state machine from snapshot file
+     * @param identifier state machine identifier
+     * @return saved data of state machine or null if not found
+     */
+    public StateMachineData.Reader<T, S, E, C> read(String identifier) {
+        Long offset = recordOffsets.get(identifier);
+        if(offset==null) return null;
+        int segmentIndex = (int)(offset/SEGMENT_SIZE);
+        ByteBuffer buffer = segment(segmentIndex).duplicate();
+        buffer.position((int)(offset-segmentIndex*SEGMENT_SIZE));
+        int length = buffer.getInt();
+        buffer.limit(buffer.position()+length);
+        return serializer.readFrom(buffer);
+    }
+
+    /**
+     * Rehydrate state machine instance from snapshot file through {@link StateMachine#loadSavedData}
+     * @param identifier state machine identifier
+     * @param builder builder of state machine
+     * @return rehydrated state machine instance or null if not found
+     */
+    public T load(String identifier, StateMachineBuilder<T, S, E, C> builder) {
+        StateMachineData.Reader<T, S, E, C> savedData = read(identifier);
+        if(savedData==null) return null;
+        T stateMachine = builder.newStateMachine(savedData.initialState());
+        stateMachine.loadSavedData(savedData);
+        return stateMachine;
+    }
+
+    /**
+     * Records never span segments as each segment overlaps the next one by max record length.
+     */
+    private MappedByteBuffer segment(int segmentIndex) {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if(segment==null) {
+            long start = segmentIndex*SEGMENT_SIZE;
+            long end = Math.min(dataEnd, start+SEGMENT_SIZE+4+maxRecordLength);
+            try {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, start, end-start);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot map snapshot file segment "+segmentIndex+".", e);
+            }
+            if(!segments.compareAndSet(segmentIndex, null, segment)) {
+                segment = segments.get(segmentIndex);
+            }
+        }
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class PartitionWriter<X, T extends StateMachine<T, S, E, C>, S, E, C> implements Callable<Void> {
+
+        private final List<? extends X> sources;
+
+        private final Function<X, StateMachineData.Reader<T, S, E, C>> dataFunction;
+
+        private final FileChannel channel;
+
+        private final AtomicLong writePosition;
+
+        private final BinaryStateMachineDataSerializer<T, S, E, C> serializer =
+                new BinaryStateMachineDataSerializer<T, S, E, C>();
+
+        private final List<String> identifiers = Lists.newArrayList();
+
+        private final List<Long> offsets = Lists.newArrayList();
+
+        private int maxRecordLength = 0;
+
+        PartitionWriter(List<? extends X> sources, Function<X, StateMachineData.Reader<T, S, E, C>> dataFunction,
+                FileChannel channel, AtomicLong writePosition) {
+            this.sources = sources;
+            this.dataFunction = dataFunction;
+            this.channel = channel;
+            this.writePosition = writePosition;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            ChunkBuffer chunk = new ChunkBuffer(CHUNK_SIZE);
+            int chunkStart = 0; // index of first record in current chunk
+            for(X source : sources) {
+                StateMachineData.Reader<T, S, E, C> data = dataFunction.apply(source);
+                if(data.identifier()==null) {
+                    throw new IllegalArgumentException("Cannot export state machine data without identifier.");
+                }
+                int recordStart = chunk.size();
+                chunk.writeInt(0);
+                serializer.writeTo(data, chunk);
+                int recordLength = chunk.size()-recordStart-4;
+                chunk.patchInt(recordStart, recordLength);
+                maxRecordLength = Math.max(maxRecordLength, recordLength);
+                identifiers.add(data.identifier());
+                offsets.add((long)recordStart);
+                if(chunk.size()>=CHUNK_SIZE) {
+                    flush(chunk, chunkStart);
+                    chunkStart = offsets.size();
+                }
+            }
+            flush(chunk, chunkStart);
+            return null;
+        }
+
+        private void flush(ChunkBuffer chunk, int chunkStart) throws IOException {
+            if(chunk.size()==0) return;
+            long position = writePosition.getAndAdd(chunk.size());
+            chunk.writeTo(channel, position);
+            for(int i=chunkStart; i<offsets.size(); ++i) {
+                offsets.set(i, position+offsets.get(i));
+            }
+            chunk.reset();
+        }
+    }
+
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        ChunkBuffer(int size) {
+            super(size);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int)(value >>> 32));
+            writeInt((int)value);
+        }
+
+        void patchInt(int position, int value) {
+            buf[position]   = (byte)(value >>> 24);
+            buf[position+1] = (byte)(value >>> 16);
+            buf[position+2] = (byte)(value >>> 8);
+            buf[position+3] = (byte)value;
+        }
+
+        void writeTo(FileChannel channel, long position) throws IOException {
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, position, count);
+            region.put(buf, 0, count);
+            // FileChannel.force does not cover changes made through mapped buffer
+            region.force();
+        }
+    }
+}
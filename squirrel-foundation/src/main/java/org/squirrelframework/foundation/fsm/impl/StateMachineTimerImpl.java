@@ -0,0 +1,549 @@
+package org.squirrelframework.foundation.fsm.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.squirrelframework.foundation.fsm.StateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineStatus;
+import org.squirrelframework.foundation.fsm.StateMachineTimer;
+import org.squirrelframework.foundation.fsm.Timeout;
+import org.squirrelframework.foundation.util.Pair;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hierarchical timing wheel which fires scheduled events to state machines. Each level of wheel has same
+ * number of buckets, and one bucket of upper level spans a whole round of lower level. Single worker thread
+ * advances lowest level by one bucket per tick, and when lower level completes a round, timeouts in next
+ * bucket of upper level are cascaded down. Scheduling only appends timeout to a lock free queue, and cancelled
+ * timeout is unlinked from its bucket immediately, so both are O(1) and no task is kept in a heap.
+ * <p>
+ * Events expired in the same tick are grouped by state machine and queued into event queue of their state
+ * machine by worker thread, so that they keep due order. Queued events are then processed in batches of
+ * state machines on delivery executor, which is a bounded pool owned by timer by default. When the pool is
+ * saturated, batches are processed by worker thread itself, which slows down ticking instead of dropping
+ * events. State machine confined to a thread by {@link StateMachineManagerImpl} is processed through its 
+ * mailbox instead.
+ * <p>
+ * Worker thread is started on first schedule, and {@link #shutdown()} stops and joins it, cancels all the
+ * pending timeouts and shuts down the default delivery executor.
+ *
+ * @author Henry.He
+ *
+ */
+public class StateMachineTimerImpl implements StateMachineTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StateMachineTimerImpl.class);
+
+    private static final int DELIVERY_BATCH_SIZE = 64;
+
+    // capacity of task queue of default delivery executor
+    private static final int DELIVERY_QUEUE_SIZE = 1024;
+
+    private final long tickDuration;
+
+    private final int wheelBits;
+
+    private final int mask;
+
+    private final Bucket[][] wheels;
+
+    private final Executor deliveryExecutor;
+
+    // delivery executor created by timer, which is shut down together with timer
+    private final boolean ownsDeliveryExecutor;
+
+    private final Queue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+
+    private volatile long startTime = 0;
+
+    private volatile Thread worker = null;
+
+    private volatile boolean stopped = false;
+
+    // ticks elapsed since timer started, only accessed by worker thread
+    private long currentTick = 0;
+
+    /**
+     * Create timer with 10 milliseconds tick and four levels of 256 buckets, whose expired events are processed
+     * on default delivery executor
+     */
+    public StateMachineTimerImpl() {
+        this(10, TimeUnit.MILLISECONDS, 256, 4);
+    }
+
+    /**
+     * Create timer with 10 milliseconds tick and four levels of 256 buckets
+     * @param deliveryExecutor executor processing expired events, so that timeout storm is processed in parallel. 
+     * Direct executor processes them on worker thread, which blocks ticking until they are processed.
+     */
+    public StateMachineTimerImpl(Executor deliveryExecutor) {
+        this(10, TimeUnit.MILLISECONDS, 256, 4, deliveryExecutor);
+    }
+
+    /**
+     * @param tickDuration duration of one tick, which is precision of timer
+     * @param unit time unit of tick duration
+     * @param ticksPerWheel number of buckets of each level, rounded up to power of two
+     * @param levels number of levels, timeout beyond span of top level is cascaded again until due
+     */
+    public StateMachineTimerImpl(long tickDuration, TimeUnit unit, int ticksPerWheel, int levels) {
+        this(tickDuration, unit, ticksPerWheel, levels, newDeliveryExecutor(), true);
+    }
+
+    /**
+     * @param tickDuration duration of one tick, which is precision of timer
+     * @param unit time unit of tick duration
+     * @param ticksPerWheel number of buckets of each level, rounded up to power of two
+     * @param levels number of levels, timeout beyond span of top level is cascaded again until due
+     * @param deliveryExecutor executor processing expired events, direct executor blocks ticking until they 
+     * are processed. Executor is owned by caller and not shut down together with timer.
+     */
+    public StateMachineTimerImpl(long tickDuration, TimeUnit unit, int ticksPerWheel, int levels, 
+            Executor deliveryExecutor) {
+        this(tickDuration, unit, ticksPerWheel, levels, deliveryExecutor, false);
+    }
+
+    private StateMachineTimerImpl(long tickDuration, TimeUnit unit, int ticksPerWheel, int levels, 
+            Executor deliveryExecutor, boolean ownsDeliveryExecutor) {
+        Preconditions.checkArgument(tickDuration>0 && ticksPerWheel>1 && levels>0,
+                "Tick duration, ticks per wheel and levels must be positive.");
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.wheelBits = 32-Integer.numberOfLeadingZeros(ticksPerWheel-1);
+        Preconditions.checkArgument(wheelBits*levels<63, "Span of timer overflows.");
+        this.mask = (1<<wheelBits)-1;
+        this.wheels = new Bucket[levels][mask+1];
+        for(Bucket[] wheel : wheels) {
+            for(int i=0; i<wheel.length; ++i) {
+                wheel[i] = new Bucket();
+            }
+        }
+        Preconditions.checkArgument(deliveryExecutor!=null, "Delivery executor cannot be null.");
+        this.deliveryExecutor = deliveryExecutor;
+        this.ownsDeliveryExecutor = ownsDeliveryExecutor;
+    }
+
+    @Override
+    public <E, C> Timeout schedule(StateMachine<?, ?, E, C> stateMachine, E event, C context,
+            long delay, long period, TimeUnit unit) {
+        Preconditions.checkArgument(stateMachine instanceof AbstractStateMachine,
+                "Timer only supports state machine extended from AbstractStateMachine.");
+        if(worker==null) {
+            start();
+        }
+        WheelTimeout timeout = new WheelTimeout((AbstractStateMachine<?, ?, ?, ?>)stateMachine, event, context,
+                System.nanoTime()+unit.toNanos(delay)-startTime, period>0 ? unit.toNanos(period) : 0);
+        pendingTimeouts.add(timeout);
+        if(stopped) {
+            // raced with shutdown after worker drained pending timeouts
+            timeout.cancel();
+            throw new IllegalStateException("Timer is already shut down.");
+        }
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if(stopped) {
+            throw new IllegalStateException("Timer is already shut down.");
+        }
+        if(worker!=null) {
+            return;
+        }
+        startTime = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "squirrel-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void shutdown() {
+        Thread current;
+        synchronized (this) {
+            if(stopped) {
+                return;
+            }
+            stopped = true;
+            current = worker;
+        }
+        if(current!=null && current!=Thread.currentThread()) {
+            current.interrupt();
+            boolean interrupted = false;
+            while(current.isAlive()) {
+                try {
+                    current.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<WheelTimeout> timeouts = new ArrayList<WheelTimeout>();
+        for(Bucket[] wheel : wheels) {
+            for(Bucket bucket : wheel) {
+                bucket.flush(timeouts);
+            }
+        }
+        WheelTimeout timeout;
+        while((timeout=pendingTimeouts.poll())!=null) {
+            timeouts.add(timeout);
+        }
+        for(WheelTimeout pending : timeouts) {
+            pending.cancel();
+        }
+        if(ownsDeliveryExecutor) {
+            ((ThreadPoolExecutor)deliveryExecutor).shutdown();
+        }
+    }
+
+    private void runWorker() {
+        List<WheelTimeout> timeouts = new ArrayList<WheelTimeout>();
+        List<WheelTimeout> expired = new ArrayList<WheelTimeout>();
+        while(waitForNextTick()) {
+            cascadeTimeouts(timeouts);
+            transferPendingTimeouts();
+            wheels[0][(int)(currentTick & mask)].flush(timeouts);
+            for(WheelTimeout timeout : timeouts) {
+                // counted before expired, so that state machine is not passivated while event is delivered
+                if(!timeout.stateMachine.enterScheduledDelivery()) {
+                    // passivated state machine keeps timeout in its saved data
+                    timeout.cancel();
+                } else if(timeout.period>0 ? timeout.state==WheelTimeout.ST_INIT : timeout.expire()) {
+                    expired.add(timeout);
+                } else {
+                    timeout.stateMachine.exitScheduledDelivery(1);
+                }
+            }
+            timeouts.clear();
+            if(!expired.isEmpty()) {
+                deliver(expired);
+                for(WheelTimeout timeout : expired) {
+                    if(timeout.period>0) {
+                        // fixed rate, missed periods are fired on following ticks
+                        timeout.deadline += timeout.period;
+                        pendingTimeouts.add(timeout);
+                    }
+                }
+                expired.clear();
+            }
+            currentTick++;
+        }
+    }
+
+    /**
+     * @return false if timer is shut down while waiting
+     */
+    private boolean waitForNextTick() {
+        long deadline = tickDuration * (currentTick+1);
+        while(!stopped) {
+            long sleepTime = deadline - (System.nanoTime()-startTime);
+            if(sleepTime<=0) {
+                return true;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepTime);
+            } catch (InterruptedException e) {
+                // only interrupted by shutdown, which is checked by loop
+            }
+        }
+        return false;
+    }
+
+    private void cascadeTimeouts(List<WheelTimeout> timeouts) {
+        for(int level=1; level<wheels.length; ++level) {
+            int shift = wheelBits*level;
+            if((currentTick & ((1L<<shift)-1))!=0) {
+                break;
+            }
+            wheels[level][(int)((currentTick>>shift) & mask)].flush(timeouts);
+            for(WheelTimeout timeout : timeouts) {
+                place(timeout);
+            }
+            timeouts.clear();
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        WheelTimeout timeout;
+        while((timeout=pendingTimeouts.poll())!=null) {
+            place(timeout);
+        }
+    }
+
+    private void place(WheelTimeout timeout) {
+        // timeout already passed is expired on current tick
+        long deadlineTick = Math.max(timeout.deadline/tickDuration, currentTick);
+        long ticks = deadlineTick-currentTick;
+        int level = 0;
+        while(level<wheels.length-1 && ticks>=(1L<<(wheelBits*(level+1)))) {
+            level++;
+        }
+        long span = 1L<<(wheelBits*(level+1));
+        if(ticks>=span) {
+            // beyond top level, parked in farthest bucket and placed again when cascaded
+            deadlineTick = currentTick+span-1;
+        }
+        wheels[level][(int)((deadlineTick>>(wheelBits*level)) & mask)].add(timeout);
+    }
+
+    private static final Comparator<WheelTimeout> DEADLINE_ORDER = new Comparator<WheelTimeout>() {
+        @Override
+        public int compare(WheelTimeout o1, WheelTimeout o2) {
+            return Long.compare(o1.deadline, o2.deadline);
+        }
+    };
+
+    private void deliver(List<WheelTimeout> expired) {
+        Map<AbstractStateMachine<?, ?, ?, ?>, List<WheelTimeout>> batches =
+                new LinkedHashMap<AbstractStateMachine<?, ?, ?, ?>, List<WheelTimeout>>();
+        for(WheelTimeout timeout : expired) {
+            List<WheelTimeout> batch = batches.get(timeout.stateMachine);
+            if(batch==null) {
+                batch = new ArrayList<WheelTimeout>();
+                batches.put(timeout.stateMachine, batch);
+            }
+            batch.add(timeout);
+        }
+        DeliveryTask task = new DeliveryTask();
+        for(Map.Entry<AbstractStateMachine<?, ?, ?, ?>, List<WheelTimeout>> batch : batches.entrySet()) {
+            AbstractStateMachine<?, ?, ?, ?> stateMachine = batch.getKey();
+            List<WheelTimeout> timeouts = batch.getValue();
+            if(stateMachine.getStatus()==StateMachineStatus.TERMINATED) {
+                for(WheelTimeout timeout : timeouts) {
+                    timeout.cancel();
+                }
+                stateMachine.exitScheduledDelivery(timeouts.size());
+                continue;
+            }
+            Collections.sort(timeouts, DEADLINE_ORDER);
+            List<Pair<Object, Object>> events = new ArrayList<Pair<Object, Object>>(timeouts.size());
+            for(WheelTimeout timeout : timeouts) {
+                events.add(new Pair<Object, Object>(timeout.event, timeout.context));
+            }
+            if(!stateMachine.queueScheduledEvents(events)) {
+                logger.warn("Scheduled events discarded as state machine '{}' is not running.", 
+                        stateMachine.getIdentifier());
+                stateMachine.exitScheduledDelivery(timeouts.size());
+                continue;
+            }
+            Executor mailbox = stateMachine.getMailbox();
+            if(mailbox!=null) {
+                DeliveryTask confinedTask = new DeliveryTask();
+                confinedTask.add(stateMachine, events.get(0).second(), timeouts.size());
+                dispatch(mailbox, confinedTask);
+            } else {
+                task.add(stateMachine, events.get(0).second(), timeouts.size());
+                if(task.size()>=DELIVERY_BATCH_SIZE) {
+                    dispatch(deliveryExecutor, task);
+                    task = new DeliveryTask();
+                }
+            }
+        }
+        if(task.size()>0) {
+            dispatch(deliveryExecutor, task);
+        }
+    }
+
+    /**
+     * @return bounded pool of daemon threads, which processes task on calling thread when saturated
+     */
+    static ThreadPoolExecutor newDeliveryExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(DELIVERY_QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "squirrel-timer-delivery-"+count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void dispatch(Executor executor, DeliveryTask task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.error("Processing scheduled events of "+task.size()+" state machines was rejected.", e);
+            task.exitDeliveries();
+        }
+    }
+
+    /**
+     * Process events queued by timer for a batch of state machines
+     */
+    private static class DeliveryTask implements Runnable {
+        private final List<Pair<AbstractStateMachine<?, ?, ?, ?>, Object>> stateMachines =
+                new ArrayList<Pair<AbstractStateMachine<?, ?, ?, ?>, Object>>();
+
+        // number of deliveries entered by each state machine
+        private final List<Integer> deliveries = new ArrayList<Integer>();
+
+        void add(AbstractStateMachine<?, ?, ?, ?> stateMachine, Object startContext, int deliveryCount) {
+            stateMachines.add(new Pair<AbstractStateMachine<?, ?, ?, ?>, Object>(stateMachine, startContext));
+            deliveries.add(deliveryCount);
+        }
+
+        int size() {
+            return stateMachines.size();
+        }
+
+        void exitDeliveries() {
+            for(int i=0; i<stateMachines.size(); ++i) {
+                stateMachines.get(i).first().exitScheduledDelivery(deliveries.get(i));
+            }
+        }
+
+        @Override
+        public void run() {
+            for(int i=0; i<stateMachines.size(); ++i) {
+                Pair<AbstractStateMachine<?, ?, ?, ?>, Object> entry = stateMachines.get(i);
+                try {
+                    entry.first().processScheduledEvents(entry.second());
+                } catch (Exception e) {
+                    logger.error("Process scheduled events of state machine '"+entry.first().getIdentifier()+"' failed.", e);
+                } finally {
+                    entry.first().exitScheduledDelivery(deliveries.get(i));
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+        // doubly linked list of timeouts, guarded by bucket itself
+        private WheelTimeout head, tail;
+
+        synchronized void add(WheelTimeout timeout) {
+            // publish bucket before checking state, so that either cancel sees the bucket or add sees cancellation
+            timeout.bucket = this;
+            if(timeout.state==WheelTimeout.ST_CANCELLED) {
+                timeout.bucket = null;
+                return;
+            }
+            if(head==null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        synchronized void flush(List<WheelTimeout> timeouts) {
+            WheelTimeout timeout = head;
+            while(timeout!=null) {
+                WheelTimeout next = timeout.next;
+                timeout.prev = timeout.next = null;
+                timeout.bucket = null;
+                timeouts.add(timeout);
+                timeout = next;
+            }
+            head = tail = null;
+        }
+
+        synchronized void remove(WheelTimeout timeout) {
+            if(timeout.bucket!=this) {
+                return;
+            }
+            if(timeout.prev!=null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if(timeout.next!=null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private static class WheelTimeout implements Timeout {
+        static final int ST_INIT = 0, ST_CANCELLED = 1, ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+        final AbstractStateMachine<?, ?, ?, ?> stateMachine;
+
+        final Object event;
+
+        final Object context;
+
+        final long period;
+
+        // nanoseconds since timer started, only accessed by worker thread
+        long deadline;
+
+        volatile int state = ST_INIT;
+
+        volatile Bucket bucket;
+
+        // guarded by bucket
+        WheelTimeout prev, next;
+
+        WheelTimeout(AbstractStateMachine<?, ?, ?, ?> stateMachine, Object event, Object context,
+                long deadline, long period) {
+            this.stateMachine = stateMachine;
+            this.event = event;
+            this.context = context;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        boolean expire() {
+            return STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED);
+        }
+
+        @Override
+        public boolean cancel() {
+            if(!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            // timeout still pending is dropped when transferred by worker
+            Bucket current = bucket;
+            if(current!=null) {
+                current.remove(this);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state==ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state==ST_EXPIRED;
+        }
+    }
+}
@@ -1,19 +1,11 @@
 package org.squirrelframework.foundation.fsm.impl;
 
-import java.util.Map;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-import org.squirrelframework.foundation.component.SquirrelConfiguration;
 import org.squirrelframework.foundation.fsm.Action;
 import org.squirrelframework.foundation.fsm.AnonymousAction;
 import org.squirrelframework.foundation.fsm.ImmutableTimedState;
 import org.squirrelframework.foundation.fsm.MutableTimedState;
 import org.squirrelframework.foundation.fsm.StateMachine;
 
-import com.google.common.collect.Maps;
-
 public class TimedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends StateImpl<T, S, E, C> 
     implements ImmutableTimedState<T, S, E, C>, MutableTimedState<T, S, E, C> {
     
@@ -25,25 +17,11 @@ public class TimedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends
     
     private C autoFireContext;
     
-    private final ScheduledExecutorService scheduler = SquirrelConfiguration.getScheduler();
-    
-    // TODO-hhe: not a good way to store runtime data in state definition
-    private transient final Map<String, Future<?>> futures = Maps.newConcurrentMap();
-    
     private Action<T, S, E, C> lastEntryAction = new AnonymousAction<T, S, E, C>() {
         @Override
-        public void execute(S from, S to, E event, C context, final T stateMachine) {
-            final Runnable scheduledTask = new Runnable() {
-                @Override
-                public void run() {
-                    stateMachine.fire(autoFireEvent, autoFireContext);
-                }
-            };
-            final Future<?> future = (timeInterval<=0) ? 
-                scheduler.schedule(scheduledTask, initialDelay, TimeUnit.MILLISECONDS) :
-                scheduler.scheduleAtFixedRate(scheduledTask, 
-                        initialDelay, timeInterval, TimeUnit.MILLISECONDS);
-            futures.put(getKey(stateMachine), future);
+        public void execute(S from, S to, E event, C context, T stateMachine) {
+            ((AbstractStateMachine<T, S, E, C>)stateMachine).armTimedState(TimedStateImpl.this, 
+                    System.currentTimeMillis()+initialDelay, timeInterval);
         }
         
         @Override
@@ -60,10 +38,7 @@ public class TimedStateImpl<T extends StateMachine<T, S, E, C>, S, E, C> extends
     private Action<T, S, E, C> firstExitAction = new AnonymousAction<T, S, E, C>() {
         @Override
         public void execute(S from, S to, E event, C context, T stateMachine) {
-            Future<?> future = futures.remove(getKey(stateMachine));
-            if(future!=null) {
-                future.cancel(false);
-            }
+            ((AbstractStateMachine<T, S, E, C>)stateMachine).disarmTimedState(getStateId());
         }
         
         @Override
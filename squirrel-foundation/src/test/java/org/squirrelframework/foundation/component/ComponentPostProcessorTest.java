@@ -92,4 +92,25 @@ public class ComponentPostProcessorTest {
         SquirrelPostProcessorProvider.getInstance().unregister(Student.class);
         SquirrelPostProcessorProvider.getInstance().unregister(Student.class);
     }
+
+    @Test
+    public void testCallablePostProcessorsInvalidatedByRegistration() {
+        SquirrelPostProcessor<Object> pp = new SquirrelPostProcessor<Object>() {
+            @Override
+            public void postProcess(Object p) {}
+        };
+        List<SquirrelPostProcessor<? super Student>> studentPostProcessors = SquirrelPostProcessorProvider.
+                getInstance().getCallablePostProcessors(Student.class);
+        assertThat(studentPostProcessors, empty());
+        assertThat(SquirrelPostProcessorProvider.getInstance().getCallablePostProcessors(Student.class), 
+                sameInstance(studentPostProcessors));
+        
+        SquirrelPostProcessorProvider.getInstance().register(Person.class, pp);
+        studentPostProcessors = SquirrelPostProcessorProvider.getInstance().getCallablePostProcessors(Student.class);
+        assertThat(studentPostProcessors.size(), is(1));
+        
+        SquirrelPostProcessorProvider.getInstance().unregister(Person.class);
+        studentPostProcessors = SquirrelPostProcessorProvider.getInstance().getCallablePostProcessors(Student.class);
+        assertThat(studentPostProcessors, empty());
+    }
 }
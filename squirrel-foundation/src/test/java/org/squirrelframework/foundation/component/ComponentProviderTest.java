@@ -136,4 +136,21 @@ public class ComponentProviderTest {
 
         SquirrelProvider.getInstance().newInstance(Person.class);
     }
+
+    @Test
+    public void testCachedResolutionInvalidatedByRegistration() {
+        assertThat(SquirrelProvider.getInstance().getImplementation(Person.class), equalTo((Object)PersonImpl.class));
+        Person p = SquirrelProvider.getInstance().newInstance(Person.class, new Class[]{String.class}, new Object[]{"Henry"});
+        assertThat(p, instanceOf(PersonImpl.class));
+        
+        SquirrelProvider.getInstance().register(PersonImpl.class, StudentImpl.class);
+        assertThat(SquirrelProvider.getInstance().getImplementation(Person.class), equalTo((Object)StudentImpl.class));
+        p = SquirrelProvider.getInstance().newInstance(Person.class);
+        assertThat(p, instanceOf(StudentImpl.class));
+        
+        SquirrelProvider.getInstance().unregister(PersonImpl.class);
+        p = SquirrelProvider.getInstance().newInstance(Person.class, new Class[]{String.class}, new Object[]{"Alex"});
+        assertThat(p.getClass(), equalTo((Object)PersonImpl.class));
+        assertThat(p.getName(), equalTo("Alex"));
+    }
 }
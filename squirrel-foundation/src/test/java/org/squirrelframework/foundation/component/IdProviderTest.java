@@ -0,0 +1,64 @@
+package org.squirrelframework.foundation.component;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class IdProviderTest {
+
+    @Test
+    public void testDefaultIdProviderIsUnique() throws Exception {
+        final int threads = 8, idsPerThread = 5000;
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for(int t=0; t<threads; ++t) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i=0; i<idsPerThread; ++i) {
+                            ids.add(IdProvider.Default.getInstance().get());
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        assertThat(ids.size(), equalTo(threads*idsPerThread));
+    }
+
+    @Test
+    public void testDefaultIdPrefixedBySaltOfProcess() {
+        String id = IdProvider.Default.getInstance().get();
+        String nextId = IdProvider.Default.getInstance().get();
+        assertThat(nextId.substring(0, 10), equalTo(id.substring(0, 10)));
+        assertThat(Long.parseLong(nextId.substring(10), Character.MAX_RADIX),
+                equalTo(Long.parseLong(id.substring(10), Character.MAX_RADIX)+1));
+    }
+
+    @Test
+    public void testNextIdIsIncreasingOnSameThread() {
+        long previous = IdProvider.Default.nextId();
+        for(int i=0; i<5000; ++i) {
+            long next = IdProvider.Default.nextId();
+            assertThat(next>previous, is(true));
+            previous = next;
+        }
+        assertThat(previous>System.currentTimeMillis()-60000L<<20, is(true));
+    }
+
+    @Test
+    public void testNumericIdIsDecimalNextId() {
+        long previous = Long.parseLong(IdProvider.Numeric.getInstance().get());
+        long next = Long.parseLong(IdProvider.Numeric.getInstance().get());
+        assertThat(next, equalTo(previous+1));
+    }
+}
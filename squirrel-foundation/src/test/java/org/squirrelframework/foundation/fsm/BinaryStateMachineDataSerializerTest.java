@@ -0,0 +1,150 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PEvent;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PState;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.ParallelStateMachine;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer;
+import org.squirrelframework.foundation.fsm.impl.StateMachineDataImpl;
+
+import com.google.common.collect.Lists;
+
+public class BinaryStateMachineDataSerializerTest {
+
+    @Transitions({
+        @Transit(from="Pending", to="Approved", on="Approve"),
+        @Transit(from="Approved", to="Closed", on="Close")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=String.class)
+    static class OrderStateMachine extends AbstractUntypedStateMachine {
+    }
+
+    @Test
+    public void testParallelStateData() {
+        ParallelStateMachine stateMachine = StateMachineBuilderFactory.create(ParallelStateMachine.class,
+                PState.class, PEvent.class, Integer.class).newStateMachine(PState.A);
+        stateMachine.start();
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        stateMachine.fire(PEvent.A1b2A1c, 1);
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> savedData = stateMachine.dumpSavedData();
+
+        BinaryStateMachineDataSerializer<ParallelStateMachine, PState, PEvent, Integer> serializer =
+                new BinaryStateMachineDataSerializer<ParallelStateMachine, PState, PEvent, Integer>();
+        byte[] bytes = serializer.toByteArray(savedData);
+        assertThat(bytes.length, lessThan(ObjectSerializableSupport.serialize(savedData).length()/4));
+
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> loadedData = serializer.fromByteArray(bytes);
+        assertThat(loadedData.typeOfStateMachine(), equalTo((Object)ParallelStateMachine.class));
+        assertThat(loadedData.typeOfState(), equalTo(PState.class));
+        assertThat(loadedData.identifier(), equalTo(savedData.identifier()));
+        assertThat(loadedData.currentState(), equalTo(PState.A));
+        assertThat(loadedData.lastActiveChildStateOf(PState.A1), equalTo(PState.A1b));
+        assertThat(loadedData.subStatesOn(PState.A), contains(PState.A2b, PState.A1c));
+        stateMachine.terminate();
+
+        stateMachine = StateMachineBuilderFactory.create(ParallelStateMachine.class,
+                PState.class, PEvent.class, Integer.class).newStateMachine(PState.A);
+        stateMachine.loadSavedData(loadedData);
+        stateMachine.fire(PEvent.A2b2A2c, 1);
+        assertThat(stateMachine.getCurrentState(), is(equalTo(PState.C)));
+        stateMachine.terminate();
+    }
+
+    @Test
+    public void testUntypedStateDataThroughStreamAndBuffer() throws Exception {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(OrderStateMachine.class);
+        UntypedStateMachine stateMachine = builder.newStateMachine("Pending");
+        stateMachine.start("order-1");
+        stateMachine.fire("Approve");
+
+        BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object> serializer =
+                new BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object>();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        serializer.writeTo(stateMachine.dumpSavedData(), output);
+        serializer.writeTo(stateMachine.dumpSavedData(), output);
+        ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+        for(int i=0; i<2; ++i) {
+            StateMachineData.Reader<UntypedStateMachine, Object, Object, Object> loadedData = serializer.readFrom(input);
+            assertThat(loadedData.currentState(), equalTo((Object)"Approved"));
+            assertThat(loadedData.lastState(), equalTo((Object)"Pending"));
+            assertThat(loadedData.startContext(), equalTo((Object)"order-1"));
+        }
+        assertThat(input.read(), equalTo(-1));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        serializer.writeTo(stateMachine.dumpSavedData(), buffer);
+        buffer.flip();
+        UntypedStateMachine restored = builder.newStateMachine("Pending");
+        restored.loadSavedData(serializer.readFrom(buffer));
+        assertThat(buffer.hasRemaining(), is(false));
+        restored.fire("Close");
+        assertThat(restored.getCurrentState(), equalTo((Object)"Closed"));
+
+        String value = serializer.serialize(stateMachine.dumpSavedData());
+        assertThat(serializer.deserialize(value).currentState(), equalTo((Object)"Approved"));
+    }
+
+    @Test
+    public void testVersion1RecordWithoutPendingTimers() {
+        UntypedStateMachine stateMachine = StateMachineBuilderFactory.create(OrderStateMachine.class).newStateMachine("Pending");
+        stateMachine.start("order-1");
+        BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object> serializer =
+                new BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object>();
+        byte[] bytes = serializer.toByteArray(stateMachine.dumpSavedData());
+        // version 1 record ends before count of pending timers
+        assertThat(bytes[bytes.length-1], equalTo((byte)0));
+        byte[] version1Bytes = Arrays.copyOf(bytes, bytes.length-1);
+        version1Bytes[1] = 1;
+        StateMachineData.Reader<UntypedStateMachine, Object, Object, Object> loadedData = serializer.fromByteArray(version1Bytes);
+        assertThat(loadedData.currentState(), equalTo((Object)"Pending"));
+        assertThat(loadedData.pendingTimerStates().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testSimpleValuesRoundTrip() {
+        UntypedStateMachine stateMachine = StateMachineBuilderFactory.create(OrderStateMachine.class).newStateMachine("Pending");
+        stateMachine.start("order-1");
+        StateMachineData<UntypedStateMachine, Object, Object, Object> data =
+                new StateMachineDataImpl<UntypedStateMachine, Object, Object, Object>();
+        data.dump(stateMachine.dumpSavedData());
+        BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object> serializer =
+                new BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object>();
+        List<Object> values = Lists.<Object>newArrayList((short)-3, (byte)7, 'x', 1.5f, Float.NaN, -0.0d,
+                Double.NaN, Double.POSITIVE_INFINITY, new BigInteger("123456789012345678901234567890"),
+                new BigDecimal("-1.2345E-30"), new Date(1234567890123L), new AtomicInteger(5),
+                new Timestamp(1234567890123L));
+        for(Object value : values) {
+            data.write().startContext(value);
+            Object loadedValue = serializer.fromByteArray(serializer.toByteArray(data.read())).startContext();
+            assertThat(loadedValue.getClass(), equalTo((Object)value.getClass()));
+            assertThat(loadedValue.toString(), equalTo(value.toString()));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnsupportedVersion() {
+        new BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object>().fromByteArray(
+                new byte[]{0x5A, BinaryStateMachineDataSerializer.CURRENT_VERSION+1});
+    }
+}
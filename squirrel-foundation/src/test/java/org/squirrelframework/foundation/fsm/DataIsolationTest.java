@@ -0,0 +1,82 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.exception.TransitionException;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PEvent;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PState;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.ParallelStateMachine;
+
+public class DataIsolationTest {
+
+    private ParallelStateMachine stateMachine;
+
+    @Before
+    public void setup() {
+        StateMachineBuilder<ParallelStateMachine, PState, PEvent, Integer> builder =
+                StateMachineBuilderFactory.create(ParallelStateMachine.class, PState.class, PEvent.class, Integer.class);
+        builder.onEntry(PState.B).perform(new AnonymousAction<ParallelStateMachine, PState, PEvent, Integer>() {
+            @Override
+            public void execute(PState from, PState to, PEvent event, Integer context, ParallelStateMachine stateMachine) {
+                if(context!=null && context<0) {
+                    throw new IllegalArgumentException("Enter B rejected.");
+                }
+            }
+        });
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create().enableDataIsolate(true));
+        stateMachine = builder.newStateMachine(PState.A);
+    }
+
+    @After
+    public void teardown() {
+        if(stateMachine.getStatus()!=StateMachineStatus.ERROR) {
+            stateMachine.terminate();
+        }
+    }
+
+    @Test
+    public void testCommitIsolatedData() {
+        stateMachine.start();
+        long version = stateMachine.dumpDelta(0).version();
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> before = stateMachine.dumpSavedData();
+
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        assertThat(stateMachine.getSubStatesOn(PState.A), contains(PState.A2b, PState.A1b));
+        // saved data dumped before transition is not affected by committed data
+        assertThat(before.subStatesOn(PState.A), contains(PState.A1a, PState.A2b));
+
+        stateMachine.fire(PEvent.A2B, 1);
+        assertThat(stateMachine.getCurrentState(), equalTo(PState.B));
+        assertThat(stateMachine.getSubStatesOn(PState.A).isEmpty(), is(true));
+
+        StateMachineData.Delta<ParallelStateMachine, PState, PEvent, Integer> delta = stateMachine.dumpDelta(version);
+        assertThat(delta.currentState(), equalTo(PState.B));
+        assertThat(delta.subStates().get(PState.A).isEmpty(), is(true));
+
+        stateMachine.fire(PEvent.B2A, 1);
+        assertThat(stateMachine.getSubStatesOn(PState.A), contains(PState.A1b, PState.A2b));
+    }
+
+    @Test
+    public void testDiscardIsolatedDataOnException() {
+        stateMachine.start();
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        long version = stateMachine.dumpDelta(0).version();
+
+        try {
+            stateMachine.fire(PEvent.A2B, -1);
+        } catch (TransitionException e) {
+            assertThat(e.getTargetException().getMessage(), equalTo("Enter B rejected."));
+        }
+        assertThat(stateMachine.getStatus(), equalTo(StateMachineStatus.ERROR));
+        assertThat(stateMachine.getCurrentState(), equalTo(PState.A));
+        assertThat(stateMachine.getSubStatesOn(PState.A), contains(PState.A2b, PState.A1b));
+        assertThat(stateMachine.dumpDelta(version).isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,208 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.SquirrelSingletonProvider;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.ScheduledExecutorTimer;
+import org.squirrelframework.foundation.fsm.impl.StateMachineTimerImpl;
+
+import com.google.common.collect.Lists;
+
+public class DelayedEventTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class DelayedStateMachine extends AbstractUntypedStateMachine {
+        final List<Integer> processed = new CopyOnWriteArrayList<Integer>();
+        final Set<String> processingThreads = ConcurrentHashMap.newKeySet();
+        volatile CountDownLatch latch = new CountDownLatch(1);
+
+        protected void record(String from, String to, String event, Integer context) {
+            processed.add(context);
+            processingThreads.add(Thread.currentThread().getName());
+            latch.countDown();
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(DelayedStateMachine.class);
+        builder.internalTransition().within("A").on("Tick").callMethod("record");
+        builder.externalTransition().from("A").to("B").on("Finish");
+        builder.defineFinalState("B");
+    }
+
+    @After
+    public void teardown() {
+        SquirrelSingletonProvider.getInstance().get(StateMachineTimer.class).shutdown();
+        SquirrelSingletonProvider.getInstance().unregister(StateMachineTimer.class);
+    }
+
+    private DelayedStateMachine newStateMachine() {
+        DelayedStateMachine stateMachine = builder.newUntypedStateMachine("A");
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    @Test
+    public void testFireDelayed() throws Exception {
+        DelayedStateMachine stateMachine = newStateMachine();
+        long start = System.nanoTime();
+        Timeout timeout = stateMachine.fireDelayed("Tick", 1, 50, TimeUnit.MILLISECONDS);
+        assertThat(stateMachine.processed.isEmpty(), is(true));
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(50), is(true));
+        assertThat(timeout.isExpired(), is(true));
+        assertThat(timeout.cancel(), is(false));
+    }
+
+    @Test
+    public void testCancelDelayedEvent() throws Exception {
+        DelayedStateMachine stateMachine = newStateMachine();
+        stateMachine.latch = new CountDownLatch(2);
+        Timeout cancelled = stateMachine.fireDelayed("Tick", 1, 30, TimeUnit.MILLISECONDS);
+        stateMachine.fireDelayed("Tick", 2, 60, TimeUnit.MILLISECONDS);
+        assertThat(cancelled.cancel(), is(true));
+        assertThat(cancelled.cancel(), is(false));
+        assertThat(cancelled.isCancelled(), is(true));
+        assertThat(stateMachine.latch.await(300, TimeUnit.MILLISECONDS), is(false));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(2)));
+        assertThat(cancelled.isExpired(), is(false));
+    }
+
+    @Test
+    public void testFireAtPastTime() throws Exception {
+        DelayedStateMachine stateMachine = newStateMachine();
+        stateMachine.fireAt("Tick", 1, System.currentTimeMillis()-1000);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void testDelayedEventsDeliveredInDueOrder() throws Exception {
+        List<DelayedStateMachine> stateMachines = Lists.newArrayList();
+        for(int i=0; i<200; ++i) {
+            DelayedStateMachine stateMachine = newStateMachine();
+            stateMachine.latch = new CountDownLatch(3);
+            stateMachine.fireDelayed("Tick", 3, 60, TimeUnit.MILLISECONDS);
+            stateMachine.fireDelayed("Tick", 1, 20, TimeUnit.MILLISECONDS);
+            stateMachine.fireDelayed("Tick", 2, 40, TimeUnit.MILLISECONDS);
+            stateMachines.add(stateMachine);
+        }
+        for(DelayedStateMachine stateMachine : stateMachines) {
+            assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2, 3)));
+        }
+    }
+
+    @Test
+    public void testDelayedEventToTerminatedStateMachineDiscarded() throws Exception {
+        DelayedStateMachine stateMachine = newStateMachine();
+        Timeout timeout = stateMachine.fireDelayed("Tick", 1, 20, TimeUnit.MILLISECONDS);
+        stateMachine.fire("Finish", 0);
+        assertThat(stateMachine.latch.await(200, TimeUnit.MILLISECONDS), is(false));
+        assertThat(timeout.isExpired(), is(true));
+        assertThat(stateMachine.processed.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDelayedEventsProcessedOffWorkerThreadByDefault() throws Exception {
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, new StateMachineTimerImpl());
+        DelayedStateMachine stateMachine = newStateMachine();
+        stateMachine.fireDelayed("Tick", 1, 20, TimeUnit.MILLISECONDS);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(stateMachine.processingThreads.iterator().next().startsWith("squirrel-timer-delivery-"), is(true));
+    }
+
+    @Test
+    public void testDelayedEventsProcessedOnDeliveryExecutor() throws Exception {
+        ExecutorService deliveryExecutor = Executors.newFixedThreadPool(4);
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class,
+                new StateMachineTimerImpl(deliveryExecutor));
+        List<DelayedStateMachine> stateMachines = Lists.newArrayList();
+        for(int i=0; i<500; ++i) {
+            DelayedStateMachine stateMachine = newStateMachine();
+            stateMachine.latch = new CountDownLatch(3);
+            stateMachine.fireDelayed("Tick", 3, 40, TimeUnit.MILLISECONDS);
+            stateMachine.fireDelayed("Tick", 1, 20, TimeUnit.MILLISECONDS);
+            stateMachine.fireDelayed("Tick", 2, 20, TimeUnit.MILLISECONDS);
+            stateMachines.add(stateMachine);
+        }
+        Set<String> processingThreads = ConcurrentHashMap.newKeySet();
+        for(DelayedStateMachine stateMachine : stateMachines) {
+            assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2, 3)));
+            processingThreads.addAll(stateMachine.processingThreads);
+        }
+        deliveryExecutor.shutdown();
+        for(String thread : processingThreads) {
+            assertThat(thread.startsWith("pool-"), is(true));
+        }
+    }
+
+    @Test
+    public void testShutdownCancelsPendingEvents() throws Exception {
+        StateMachineTimer timer = new StateMachineTimerImpl(1, TimeUnit.MILLISECONDS, 16, 3);
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, timer);
+        checkShutdownCancelsPendingEvents(timer);
+    }
+
+    @Test
+    public void testShutdownCancelsPendingEventsOfScheduledExecutorTimer() throws Exception {
+        StateMachineTimer timer = new ScheduledExecutorTimer();
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, timer);
+        checkShutdownCancelsPendingEvents(timer);
+    }
+
+    private void checkShutdownCancelsPendingEvents(StateMachineTimer timer) throws Exception {
+        DelayedStateMachine stateMachine = newStateMachine();
+        Timeout fired = stateMachine.fireDelayed("Tick", 1, 0, TimeUnit.MILLISECONDS);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        while(!fired.isExpired()) {
+            Thread.sleep(1);
+        }
+        Timeout pending = stateMachine.fireDelayed("Tick", 2, 100, TimeUnit.MILLISECONDS);
+        timer.shutdown();
+        assertThat(pending.isCancelled(), is(true));
+        assertThat(fired.isCancelled(), is(false));
+        Thread.sleep(200);
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1)));
+        try {
+            timer.schedule(stateMachine, "Tick", 3, 0, 0, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testScheduledExecutorTimerNotReconfigureSharedScheduler() throws Exception {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        StateMachineTimer timer = new ScheduledExecutorTimer(scheduler);
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, timer);
+        assertThat(scheduler.getRemoveOnCancelPolicy(), is(false));
+        DelayedStateMachine stateMachine = newStateMachine();
+        Timeout pending = stateMachine.fireDelayed("Tick", 1, 1, TimeUnit.SECONDS);
+        timer.shutdown();
+        assertThat(pending.isCancelled(), is(true));
+        assertThat(scheduler.isShutdown(), is(false));
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,83 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+
+import com.google.common.collect.Lists;
+
+public class EventCoalescingTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class CoalescingStateMachine extends AbstractUntypedStateMachine {
+        final List<String> processed = Lists.newArrayList();
+
+        protected void record(String from, String to, String event, Integer context) {
+            processed.add(event+":"+context);
+        }
+
+        protected void burst(String from, String to, String event, Integer context) {
+            fire("Refresh", 1);
+            fire("PriceUpdate", 10);
+            fire("Refresh", 2);
+            fire("Other", 0);
+            fire("Other", 0);
+            fire("PriceUpdate", 20);
+            fire("Refresh", 3);
+            fire("PriceUpdate", 30);
+        }
+
+        protected void prioritized(String from, String to, String event, Integer context) {
+            fire("Refresh", 1);
+            fire("Refresh", 2, EventPriority.CONTROL);
+            fire("Refresh", 3);
+        }
+    }
+
+    private CoalescingStateMachine stateMachine;
+
+    @Before
+    public void setup() {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(CoalescingStateMachine.class);
+        for(String event : Lists.newArrayList("Refresh", "PriceUpdate", "Other")) {
+            builder.internalTransition().within("A").on(event).callMethod("record");
+        }
+        builder.internalTransition().within("A").on("Burst").callMethod("burst");
+        builder.internalTransition().within("A").on("Prioritized").callMethod("prioritized");
+        builder.defineEventCoalescing("Refresh", EventCoalescingPolicy.KEEP_PENDING);
+        builder.defineEventCoalescing("PriceUpdate", EventCoalescingPolicy.REPLACE_PENDING);
+        stateMachine = builder.newUntypedStateMachine("A");
+    }
+
+    @Test
+    public void testPendingEventsCoalesced() {
+        stateMachine.fire("Burst", 0);
+        assertThat(stateMachine.processed, equalTo((List<String>)Lists.newArrayList(
+                "Refresh:1", "PriceUpdate:30", "Other:0", "Other:0")));
+
+        // processed events are no longer coalesced
+        stateMachine.processed.clear();
+        stateMachine.fire("Burst", 0);
+        assertThat(stateMachine.processed, equalTo((List<String>)Lists.newArrayList(
+                "Refresh:1", "PriceUpdate:30", "Other:0", "Other:0")));
+    }
+
+    @Test
+    public void testEventsOfDifferentPriorityNotCoalesced() {
+        stateMachine.fire("Prioritized", 0);
+        assertThat(stateMachine.processed, equalTo((List<String>)Lists.newArrayList("Refresh:2", "Refresh:1")));
+    }
+
+    @Test
+    public void testIdleStateMachineProcessesEveryEvent() {
+        stateMachine.fire("Refresh", 1);
+        stateMachine.fire("Refresh", 2);
+        assertThat(stateMachine.processed, equalTo((List<String>)Lists.newArrayList("Refresh:1", "Refresh:2")));
+    }
+}
@@ -0,0 +1,71 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+
+import com.google.common.collect.Lists;
+
+public class EventPriorityTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class PrioritizedStateMachine extends AbstractUntypedStateMachine {
+        final List<Integer> processed = Lists.newArrayList();
+
+        protected void count(String from, String to, String event, Integer context) {
+            processed.add(context);
+        }
+
+        protected void mixed(String from, String to, String event, Integer context) {
+            fire("Count", 1, EventPriority.BULK);
+            fire("Count", 2, EventPriority.BULK);
+            fire("Count", 3);
+            fire("Count", 4, EventPriority.CONTROL);
+            fireImmediate("Count", 5);
+        }
+
+        protected void flood(String from, String to, String event, Integer context) {
+            fire("Count", 100, EventPriority.BULK);
+            for(int i=1; i<=5; ++i) {
+                fire("Count", i);
+            }
+        }
+    }
+
+    private PrioritizedStateMachine newStateMachine(StateMachineConfiguration configuration) {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(PrioritizedStateMachine.class);
+        builder.internalTransition().within("A").on("Count").callMethod("count");
+        builder.internalTransition().within("A").on("Mixed").callMethod("mixed");
+        builder.internalTransition().within("A").on("Flood").callMethod("flood");
+        builder.setStateMachineConfiguration(configuration);
+        return builder.newUntypedStateMachine("A");
+    }
+
+    @Test
+    public void testHigherClassDrainedFirstInFiringOrder() {
+        PrioritizedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create());
+        stateMachine.fire("Mixed", 0);
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(4, 5, 3, 1, 2)));
+    }
+
+    @Test
+    public void testLowerClassNotStarved() {
+        PrioritizedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create()
+                .setEventQueueStarvationLimit(2));
+        stateMachine.fire("Flood", 0);
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2, 100, 3, 4, 5)));
+    }
+
+    @Test
+    public void testDropOldestOfLowestClass() {
+        PrioritizedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create()
+                .setEventQueueCapacity(3).setEventQueueOverflowPolicy(EventQueueOverflowPolicy.DROP_OLDEST));
+        stateMachine.fire("Mixed", 0);
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(4, 5, 3)));
+    }
+}
@@ -0,0 +1,156 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+
+import com.google.common.collect.Lists;
+
+public class EventQueueOverflowTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class QueuedStateMachine extends AbstractUntypedStateMachine {
+        final List<Integer> processed = new CopyOnWriteArrayList<Integer>();
+        final AtomicInteger rejected = new AtomicInteger(0);
+        int queuedEventSize = 0;
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch hold = new CountDownLatch(0);
+
+        protected void count(String from, String to, String event, Integer context) {
+            processed.add(context);
+        }
+
+        protected void fill(String from, String to, String event, Integer context) {
+            for(int i=1; i<=context; ++i) {
+                try {
+                    fire("Count", i);
+                } catch(IllegalStateException e) {
+                    rejected.incrementAndGet();
+                }
+            }
+            queuedEventSize = getQueuedEventSize();
+        }
+
+        protected void fillRepeated(String from, String to, String event, Integer context) {
+            for(Integer value : Lists.newArrayList(1, 2, 1, 3)) {
+                try {
+                    fire("Count", value);
+                } catch(IllegalStateException e) {
+                    rejected.incrementAndGet();
+                }
+            }
+        }
+
+        protected void hold(String from, String to, String event, Integer context) throws Exception {
+            entered.countDown();
+            hold.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private QueuedStateMachine newStateMachine(StateMachineConfiguration configuration) {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(QueuedStateMachine.class);
+        builder.internalTransition().within("A").on("Count").callMethod("count");
+        builder.internalTransition().within("A").on("Fill").callMethod("fill");
+        builder.internalTransition().within("A").on("FillRepeated").callMethod("fillRepeated");
+        builder.internalTransition().within("A").on("Hold").callMethod("hold");
+        builder.setStateMachineConfiguration(configuration.setEventQueueCapacity(2));
+        QueuedStateMachine stateMachine = builder.newUntypedStateMachine("A");
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    @Test
+    public void testRejectWhenQueueFull() {
+        QueuedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create());
+        stateMachine.fire("Fill", 5);
+        assertThat(stateMachine.rejected.get(), equalTo(3));
+        assertThat(stateMachine.queuedEventSize, equalTo(2));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2)));
+        assertThat(stateMachine.getQueuedEventSize(), equalTo(0));
+    }
+
+    @Test
+    public void testDropOldestWhenQueueFull() {
+        QueuedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create()
+                .setEventQueueOverflowPolicy(EventQueueOverflowPolicy.DROP_OLDEST));
+        stateMachine.fire("Fill", 5);
+        assertThat(stateMachine.rejected.get(), equalTo(0));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(4, 5)));
+    }
+
+    @Test
+    public void testCoalesceWhenQueueFull() {
+        QueuedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create()
+                .setEventQueueOverflowPolicy(EventQueueOverflowPolicy.COALESCE));
+        stateMachine.fire("FillRepeated", 0);
+        assertThat(stateMachine.rejected.get(), equalTo(1));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2)));
+    }
+
+    @Test
+    public void testBlockRejectedOnProcessingThread() {
+        QueuedStateMachine stateMachine = newStateMachine(StateMachineConfiguration.create()
+                .setEventQueueOverflowPolicy(EventQueueOverflowPolicy.BLOCK)
+                .setEventQueueBlockTimeout(10, TimeUnit.SECONDS));
+        long start = System.currentTimeMillis();
+        stateMachine.fire("Fill", 3);
+        assertThat(System.currentTimeMillis()-start<5000, is(true));
+        assertThat(stateMachine.rejected.get(), equalTo(1));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2)));
+    }
+
+    @Test
+    public void testBlockProducerUntilQueueHasRoom() throws Exception {
+        checkBlockedProducerReleased(StateMachineConfiguration.create()
+                .setEventQueueOverflowPolicy(EventQueueOverflowPolicy.BLOCK)
+                .setEventQueueBlockTimeout(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBlockWithoutTimeoutUntilConsumerDrainsQueue() throws Exception {
+        checkBlockedProducerReleased(StateMachineConfiguration.create()
+                .setEventQueueOverflowPolicy(EventQueueOverflowPolicy.BLOCK));
+    }
+
+    private void checkBlockedProducerReleased(StateMachineConfiguration configuration) throws Exception {
+        final QueuedStateMachine stateMachine = newStateMachine(configuration);
+        stateMachine.hold = new CountDownLatch(1);
+        Thread processor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stateMachine.fire("Hold", 0);
+            }
+        });
+        processor.start();
+        assertThat(stateMachine.entered.await(5, TimeUnit.SECONDS), is(true));
+        stateMachine.fire("Count", 1);
+        stateMachine.fire("Count", 2);
+        assertThat(stateMachine.getQueuedEventSize(), equalTo(2));
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stateMachine.fire("Count", 3);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertThat(producer.isAlive(), is(true));
+
+        stateMachine.hold.countDown();
+        producer.join(5000);
+        processor.join(5000);
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(1, 2, 3)));
+        assertThat(stateMachine.getQueuedEventSize(), equalTo(0));
+    }
+}
@@ -166,6 +166,37 @@ public class ExtensionMethodCallTest {
         }
     }
     
+    static class UntypedStateMachineOverride extends UntypedStateMachineBase {
+        
+        @Override
+        protected void exitA(String from, String to, String event) {
+            logger.append("overriddenExitA");
+        }
+        
+        protected void entryB(String from, String to, Integer event) {
+            logger.append("mismatchedEntryB");
+        }
+        
+        protected void afterEntryAny(String from, String to, String event) {
+            logger.append("overriddenAfterEntryAny");
+        }
+    }
+    
+    @Test
+    public void testExtensionMethodDeclaredInSubclass() {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(UntypedStateMachineOverride.class);
+        UntypedStateMachineBase fsm = builder.newUntypedStateMachine("A");
+        fsm.start();
+        fsm.consumeLog();
+        fsm.fire("ToB", 91);
+        assertThat(fsm.consumeLog(), is(equalTo(
+                "beforeExitAny.leftA.overriddenExitA.afterExitAny." +
+                "fromAToB.transitFromAToBOnToBWhenExcellect.transitFromAToBOnToB." +
+                "transitFromAnyToBOnToB.transitFromAToAnyOnToB.transitFromAToB.onToB." +
+                "beforeEntryAny.enterB.entryB.overriddenAfterEntryAny")));
+        fsm.terminate();
+    }
+    
     @Test
     public void testExtensionMethodCallSequence() {
         UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(UntypedStateMachineBase.class);
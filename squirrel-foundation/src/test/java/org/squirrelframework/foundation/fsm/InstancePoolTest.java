@@ -0,0 +1,162 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.StateMachine.StartEvent;
+import org.squirrelframework.foundation.fsm.StateMachine.StartListener;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+
+public class InstancePoolTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class PooledStateMachine extends AbstractUntypedStateMachine {
+        protected void transitFromAToB(String from, String to, String event, Integer context) {
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(PooledStateMachine.class);
+        builder.externalTransition().from("A").to("B").on("ToB").callMethod("transitFromAToB");
+        builder.defineFinalState("B");
+        builder.setInstancePoolSize(2);
+    }
+
+    @Test
+    public void testReleasedInstanceIsRecycled() {
+        UntypedStateMachine stateMachine = builder.newStateMachine("A");
+        int initialListenerSize = stateMachine.getListenerSize();
+        final AtomicInteger started = new AtomicInteger(0);
+        stateMachine.addStartListener(new StartListener<UntypedStateMachine, Object, Object, Object>() {
+            @Override
+            public void started(StartEvent<UntypedStateMachine, Object, Object, Object> event) {
+                started.incrementAndGet();
+            }
+        });
+        stateMachine.fire("ToB", 1);
+        assertThat(stateMachine.isTerminated(), is(true));
+        assertThat(started.get(), equalTo(1));
+        String identifier = stateMachine.getIdentifier();
+
+        assertThat(builder.releaseStateMachine(stateMachine), is(true));
+        assertThat(builder.releaseStateMachine(stateMachine), is(false));
+        try {
+            stateMachine.fire("ToB", 1);
+            fail();
+        } catch(IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("The state machine instance was released."));
+        }
+        try {
+            stateMachine.start();
+            fail();
+        } catch(IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("The state machine instance was released."));
+        }
+
+        UntypedStateMachine recycled = builder.newStateMachine("A");
+        assertThat(recycled, sameInstance(stateMachine));
+        assertThat(recycled.getStatus(), equalTo(StateMachineStatus.INITIALIZED));
+        assertThat(recycled.getIdentifier(), not(equalTo(identifier)));
+        assertThat(recycled.getCurrentState(), nullValue());
+        assertThat(recycled.getListenerSize(), equalTo(initialListenerSize));
+
+        recycled.fire("ToB", 1);
+        assertThat(recycled.getCurrentState(), equalTo((Object)"B"));
+        assertThat(recycled.isTerminated(), is(true));
+        assertThat(started.get(), equalTo(1));
+    }
+
+    @Test
+    public void testReleaseActiveInstance() {
+        UntypedStateMachine stateMachine = builder.newStateMachine("A");
+        stateMachine.start();
+        try {
+            builder.releaseStateMachine(stateMachine);
+            fail();
+        } catch(IllegalStateException e) {
+            assertThat(e.getMessage(), equalTo("Cannot release state machine under IDLE status."));
+        }
+        stateMachine.terminate();
+        assertThat(builder.releaseStateMachine(stateMachine), is(true));
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        UntypedStateMachine[] stateMachines = new UntypedStateMachine[3];
+        for(int i=0; i<stateMachines.length; ++i) {
+            stateMachines[i] = builder.newStateMachine("A");
+            stateMachines[i].fire("ToB", i);
+        }
+        assertThat(builder.releaseStateMachine(stateMachines[0]), is(true));
+        assertThat(builder.releaseStateMachine(stateMachines[1]), is(true));
+        assertThat(builder.releaseStateMachine(stateMachines[2]), is(false));
+
+        UntypedStateMachine first = builder.newStateMachine("A");
+        UntypedStateMachine second = builder.newStateMachine("A");
+        UntypedStateMachine third = builder.newStateMachine("A");
+        assertThat(first, sameInstance(stateMachines[0]));
+        assertThat(second, sameInstance(stateMachines[1]));
+        assertThat(third==stateMachines[2], is(false));
+    }
+
+    @Test
+    public void testInstanceCreatedBeforePoolEnabled() {
+        UntypedStateMachineBuilder anotherBuilder = StateMachineBuilderFactory.create(PooledStateMachine.class);
+        anotherBuilder.externalTransition().from("A").to("B").on("ToB");
+        anotherBuilder.defineFinalState("B");
+        UntypedStateMachine stateMachine = anotherBuilder.newStateMachine("A");
+        stateMachine.fire("ToB", 1);
+        assertThat(anotherBuilder.releaseStateMachine(stateMachine), is(false));
+        anotherBuilder.setInstancePoolSize(1);
+        assertThat(anotherBuilder.releaseStateMachine(stateMachine), is(false));
+    }
+
+    @Test
+    public void testConcurrentRecycle() throws Exception {
+        final Set<Object> inUse = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        final AtomicInteger conflicts = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(4);
+        for(int t=0; t<4; ++t) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i=0; i<500; ++i) {
+                            UntypedStateMachine stateMachine = builder.newStateMachine("A");
+                            if(!inUse.add(stateMachine)) {
+                                conflicts.incrementAndGet();
+                            }
+                            stateMachine.fire("ToB", i);
+                            if(!stateMachine.isTerminated()) {
+                                conflicts.incrementAndGet();
+                            }
+                            inUse.remove(stateMachine);
+                            builder.releaseStateMachine(stateMachine);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        latch.await();
+        assertThat(conflicts.get(), equalTo(0));
+    }
+}
@@ -0,0 +1,79 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.ActionExecutionService.BeforeExecActionEvent;
+import org.squirrelframework.foundation.fsm.ActionExecutionService.BeforeExecActionListener;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PEvent;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PState;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.ParallelStateMachine;
+import org.squirrelframework.foundation.fsm.impl.AbstractStateMachine;
+
+public class LightweightInstanceTest {
+
+    private final StateMachineConfiguration configuration = StateMachineConfiguration.create().enableLightweightInstance(true);
+
+    @Test
+    public void testLightweightInstanceBehavior() {
+        StateMachineBuilder<ParallelStateMachine, PState, PEvent, Integer> builder =
+                StateMachineBuilderFactory.create(ParallelStateMachine.class, PState.class, PEvent.class, Integer.class);
+        builder.setStateMachineConfiguration(configuration);
+        ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+        assertThat(stateMachine.getExecutorListenerSize(), equalTo(0));
+
+        stateMachine.start();
+        assertThat(stateMachine.consumeLog(), equalTo("enterTotal.enterA.enterA1.enterA1a.enterA2.enterA2b"));
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        assertThat(stateMachine.consumeLog(), equalTo("exitA1a.transitA1a2A1b.enterA1b"));
+        assertThat(stateMachine.getSubStatesOn(PState.A), contains(PState.A2b, PState.A1b));
+
+        final AtomicInteger executedActions = new AtomicInteger(0);
+        stateMachine.addExecActionListener(new BeforeExecActionListener<ParallelStateMachine, PState, PEvent, Integer>() {
+            @Override
+            public void beforeExecute(BeforeExecActionEvent<ParallelStateMachine, PState, PEvent, Integer> event) {
+                executedActions.incrementAndGet();
+            }
+        });
+        stateMachine.fire(PEvent.A2B, 1);
+        assertThat(stateMachine.getCurrentState(), equalTo(PState.B));
+        assertThat(executedActions.get()>0, equalTo(true));
+        stateMachine.terminate();
+    }
+
+    @Test
+    public void testNestedFireOnSameThread() {
+        final UntypedStateMachineBuilder innerBuilder = StateMachineBuilderFactory.create(
+                StateMachineEventLogTest.LoggedStateMachine.class);
+        innerBuilder.setStateMachineConfiguration(configuration);
+        final UntypedStateMachine inner = innerBuilder.newStateMachine("A");
+
+        final StringBuilder log = new StringBuilder();
+        UntypedStateMachineBuilder outerBuilder = StateMachineBuilderFactory.create(
+                StateMachineEventLogTest.LoggedStateMachine.class);
+        outerBuilder.setStateMachineConfiguration(configuration);
+        outerBuilder.onExit("A").perform(new UntypedAnonymousAction() {
+            @Override
+            public void execute(Object from, Object to, Object event, Object context, UntypedStateMachine stateMachine) {
+                inner.fire("ToB", 1);
+                log.append("exitA");
+            }
+        });
+        outerBuilder.onEntry("B").perform(new UntypedAnonymousAction() {
+            @Override
+            public void execute(Object from, Object to, Object event, Object context, UntypedStateMachine stateMachine) {
+                log.append(".enterB");
+            }
+        });
+        UntypedStateMachine outer = outerBuilder.newStateMachine("A");
+        outer.fire("ToB", 1);
+        assertThat(log.toString(), equalTo("exitA.enterB"));
+        assertThat(outer.getCurrentState(), equalTo((Object)"B"));
+        assertThat(inner.getCurrentState(), equalTo((Object)"B"));
+        assertThat(((AbstractStateMachine<?, ?, ?, ?>)outer).getExecutorListenerSize(), equalTo(0));
+    }
+}
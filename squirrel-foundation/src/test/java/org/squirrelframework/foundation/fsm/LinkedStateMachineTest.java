@@ -2,6 +2,7 @@ package org.squirrelframework.foundation.fsm;
 
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 import java.io.BufferedInputStream;
@@ -14,16 +15,27 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.squirrelframework.foundation.fsm.StateMachine.TransitionDeclinedEvent;
 import org.squirrelframework.foundation.fsm.annotation.State;
 import org.squirrelframework.foundation.fsm.annotation.States;
 import org.squirrelframework.foundation.fsm.annotation.Transit;
 import org.squirrelframework.foundation.fsm.annotation.Transitions;
 import org.squirrelframework.foundation.fsm.impl.AbstractStateMachine;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class LinkedStateMachineTest {
 
@@ -158,6 +170,10 @@ public class LinkedStateMachineTest {
         public void transitA12A2(LState from, LState to, LEvent event,
                 Integer context) {
             logger.append("transitA12A2");
+            if(context!=null && context<0) {
+                transitEntered.countDown();
+                Uninterruptibles.awaitUninterruptibly(transitReleased);
+            }
         }
 
         public void transitA22A3(LState from, LState to, LEvent event,
@@ -223,6 +239,8 @@ public class LinkedStateMachineTest {
         }
     }
 
+    static CountDownLatch transitEntered, transitReleased;
+    
     TestStateMachine stateMachine;
     
     TestStateMachine stateMachine2;
@@ -277,6 +295,52 @@ public class LinkedStateMachineTest {
                 equalTo("start1.enterA.start2.enterA1.terminate2.leftA1.leftA.transitA2B.enterB"));
     }
 
+    @Test
+    public void testDeclinedEventHandledByOuterState() {
+        final List<LEvent> declinedEvents = Lists.newArrayList();
+        stateMachine.addTransitionDeclinedListener(
+                new StateMachine.TransitionDeclinedListener<TestStateMachine, LState, LEvent, Integer>() {
+            @Override
+            public void transitionDeclined(TransitionDeclinedEvent<TestStateMachine, LState, LEvent, Integer> event) {
+                declinedEvents.add(event.getCause());
+            }
+        });
+        stateMachine.fire(LEvent.C2D, 0);
+        assertThat(stateMachine.getCurrentState(), equalTo(LState.A1));
+        assertThat(declinedEvents, contains(LEvent.C2D));
+        assertThat(logger.toString(), equalTo("start1.enterA.start2.enterA1"));
+    }
+
+    @Test
+    public void testDelegatedWhileLinkedStateMachineProcessing() throws Exception {
+        transitEntered = new CountDownLatch(1);
+        transitReleased = new CountDownLatch(1);
+        stateMachine.start(0);
+        @SuppressWarnings("unchecked")
+        final StateMachine<?, LState, LEvent, Integer> linkedStateMachine = 
+                ((ImmutableLinkedState<TestStateMachine, LState, LEvent, Integer>)stateMachine.getRawStateFrom(LState.A))
+                .getLinkedStateMachine(stateMachine);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                linkedStateMachine.fire(LEvent.A12A2, -1);
+            }
+        });
+        thread.start();
+        assertThat(transitEntered.await(5, TimeUnit.SECONDS), equalTo(true));
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                transitReleased.countDown();
+            }
+        }, 200);
+        // linked state machine declines event in its next state, which is then processed by outer state
+        stateMachine.fire(LEvent.A2B, 0);
+        thread.join();
+        assertThat(stateMachine.getCurrentState(), equalTo(LState.B));
+        assertThat(linkedStateMachine.getStatus(), equalTo(StateMachineStatus.TERMINATED));
+    }
+
     @Test
     public void testInitialLinkedState2() {
         stateMachine.fire(LEvent.A2B, 0);
@@ -328,4 +392,38 @@ public class LinkedStateMachineTest {
         } 
 
     }
+    
+    @Test
+    public void testBinarySavedData() {
+        stateMachine.fire(LEvent.A12A2, 0);
+        BinaryStateMachineDataSerializer<TestStateMachine, LState, LEvent, Integer> serializer = 
+                new BinaryStateMachineDataSerializer<TestStateMachine, LState, LEvent, Integer>();
+        byte[] bytes = serializer.toByteArray(stateMachine.dumpSavedData());
+        stateMachine.terminate(null);
+
+        setup();
+        StateMachineData.Reader<TestStateMachine, LState, LEvent, Integer> loadedSavedData = 
+                serializer.fromByteArray(bytes);
+        assertThat(loadedSavedData.linkedStates(), contains(LState.A));
+        stateMachine.loadSavedData(loadedSavedData);
+        stateMachine.fire(LEvent.A22A3, 0);
+        assertThat(stateMachine.getCurrentState(), equalTo(LState.A3));
+    }
+
+    @Test
+    public void testLinkedStateMachineDiscardedWithInstance() {
+        @SuppressWarnings("unchecked")
+        ImmutableLinkedState<TestStateMachine, LState, LEvent, Integer> linkedState = 
+                (ImmutableLinkedState<TestStateMachine, LState, LEvent, Integer>)stateMachine.getRawStateFrom(LState.A);
+        stateMachine.fire(LEvent.A12A2, 0);
+        WeakReference<Object> linkedStateMachine = new WeakReference<Object>(
+                linkedState.getLinkedStateMachine(stateMachine));
+        // instance discarded without exiting linked state, e.g. passivated or replaced by restored instance
+        stateMachine = null;
+        for(int i=0; i<100 && linkedStateMachine.get()!=null; ++i) {
+            System.gc();
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+        assertThat(linkedStateMachine.get(), nullValue());
+    }
 }
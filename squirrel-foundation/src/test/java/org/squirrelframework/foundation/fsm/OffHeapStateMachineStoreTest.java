@@ -0,0 +1,144 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.IdProvider;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PEvent;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PState;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.ParallelStateMachine;
+import org.squirrelframework.foundation.fsm.impl.OffHeapStateMachineStore;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class OffHeapStateMachineStoreTest {
+
+    private StateMachineBuilder<ParallelStateMachine, PState, PEvent, Integer> builder;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(ParallelStateMachine.class, PState.class, PEvent.class, Integer.class);
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create().setIdProvider(
+                IdProvider.Numeric.getInstance()));
+    }
+
+    private void assertSameData(StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> actual,
+            ParallelStateMachine expected) {
+        assertThat(actual.identifier(), equalTo(expected.getIdentifier()));
+        assertThat(actual.currentState(), equalTo(expected.getCurrentState()));
+        assertThat(actual.lastState(), equalTo(expected.getLastState()));
+        assertThat(actual.initialState(), equalTo(expected.getInitialState()));
+        Set<PState> subStates = Sets.newHashSet(expected.getSubStatesOn(PState.A));
+        assertThat(Sets.<PState>newHashSet(actual.subStatesOn(PState.A)), equalTo(subStates));
+        assertThat(actual.lastActiveChildStateOf(PState.A1), equalTo(expected.getLastActiveChildStateOf(PState.A1)));
+    }
+
+    @Test
+    public void testMaterializeOnFire() {
+        OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer> store =
+                new OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer>(PState.class);
+        List<ParallelStateMachine> stateMachines = Lists.newArrayList();
+        for(int i=0; i<100; ++i) {
+            ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+            stateMachine.start();
+            store.store(stateMachine.dumpSavedData());
+            stateMachines.add(stateMachine);
+        }
+        assertThat(store.size(), equalTo(100));
+
+        PEvent[] events = {PEvent.A1a2A1b, PEvent.A2b2A2a, PEvent.A1b2A1c};
+        for(int i=0; i<stateMachines.size(); ++i) {
+            ParallelStateMachine stateMachine = stateMachines.get(i);
+            long id = Long.parseLong(stateMachine.getIdentifier());
+            for(int j=0; j<i%4; ++j) {
+                stateMachine.fire(events[j], j);
+                assertThat(store.fire(id, events[j], j, builder), equalTo(stateMachine.getCurrentState()));
+            }
+            assertSameData(store.load(id), stateMachine);
+        }
+
+        ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> restored =
+                store.load(stateMachines.get(3).getIdentifier());
+        stateMachine.loadSavedData(restored);
+        stateMachine.consumeLog();
+        stateMachine.fire(PEvent.A2a2A2b, 1);
+        assertThat(stateMachine.consumeLog(), equalTo("exitA2a.transitA2a2A2b.enterA2b"));
+    }
+
+    @Test
+    public void testRemoveAndOverflow() {
+        OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer> store =
+                new OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer>(PState.class, 8);
+        ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+        stateMachine.start();
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> savedData = stateMachine.dumpSavedData();
+        store.store(savedData);
+        assertSameData(store.load(stateMachine.getIdentifier()), stateMachine);
+
+        // exercise slot reuse and index removal with random ids
+        Random random = new Random(7);
+        Set<Long> storedIds = Sets.newHashSet(Long.parseLong(stateMachine.getIdentifier()));
+        for(int i=0; i<2000; ++i) {
+            ParallelStateMachine other = builder.newStateMachine(PState.B);
+            long id = Long.parseLong(other.getIdentifier());
+            other.start();
+            store.store(other.dumpSavedData());
+            storedIds.add(id);
+            if(random.nextBoolean()) {
+                Long removed = storedIds.iterator().next();
+                assertThat(store.remove(removed), is(true));
+                storedIds.remove(removed);
+            }
+        }
+        assertThat(store.size(), equalTo(storedIds.size()));
+        for(Long id : storedIds) {
+            assertThat(store.contains(id), is(true));
+            assertThat(store.load(id).identifier(), equalTo(String.valueOf(id)));
+        }
+        assertThat(store.load(Long.MAX_VALUE), nullValue());
+        assertThat(store.remove(Long.MAX_VALUE), is(false));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectNonNumericIdentifier() {
+        new OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer>(PState.class).contains("abc");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectDefaultIdentifier() {
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create());
+        ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+        stateMachine.start();
+        new OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer>(PState.class).store(
+                stateMachine.dumpSavedData());
+    }
+
+    @Test
+    public void testRejectTimedStateBeforeFiring() {
+        OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer> store =
+                new OffHeapStateMachineStore<ParallelStateMachine, PState, PEvent, Integer>(PState.class);
+        builder.defineTimedState(PState.B, 0, 1000, PEvent.B2A, null);
+        ParallelStateMachine stateMachine = builder.newStateMachine(PState.A);
+        stateMachine.start();
+        store.store(stateMachine.dumpSavedData());
+        long id = Long.parseLong(stateMachine.getIdentifier());
+        try {
+            // rejected even though fired transition does not enter timed state
+            store.fire(id, PEvent.A1a2A1b, 0, builder);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertSameData(store.load(id), stateMachine);
+    }
+}
@@ -0,0 +1,116 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PEvent;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.PState;
+import org.squirrelframework.foundation.fsm.ParallelStateMachineTest.ParallelStateMachine;
+import org.squirrelframework.foundation.fsm.StateMachineData.Field;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer;
+import org.squirrelframework.foundation.fsm.impl.StateMachineDataImpl;
+
+public class StateMachineDataDeltaTest {
+
+    private StateMachineBuilder<ParallelStateMachine, PState, PEvent, Integer> builder;
+
+    private ParallelStateMachine stateMachine;
+
+    private ParallelStateMachine replica;
+
+    private final BinaryStateMachineDataSerializer<ParallelStateMachine, PState, PEvent, Integer> serializer =
+            new BinaryStateMachineDataSerializer<ParallelStateMachine, PState, PEvent, Integer>();
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(ParallelStateMachine.class, PState.class, PEvent.class, Integer.class);
+        stateMachine = builder.newStateMachine(PState.A);
+        replica = builder.newStateMachine(PState.A);
+    }
+
+    @After
+    public void teardown() {
+        stateMachine.terminate();
+        replica.terminate();
+    }
+
+    @Test
+    public void testDeltaOnlyContainsChanges() {
+        stateMachine.start();
+        StateMachineData.Delta<ParallelStateMachine, PState, PEvent, Integer> fullDelta = stateMachine.dumpDelta(0);
+        assertThat(fullDelta.changedFields().contains(Field.IDENTIFIER), is(true));
+        assertThat(fullDelta.subStates().get(PState.A), contains(PState.A1a, PState.A2b));
+        assertThat(replica.applyDelta(serializer.deltaFromByteArray(serializer.toByteArray(fullDelta))), is(true));
+        assertThat(replica.getCurrentState(), equalTo(PState.A));
+        assertThat(replica.getSubStatesOn(PState.A), contains(PState.A1a, PState.A2b));
+        assertThat(replica.getIdentifier(), equalTo(stateMachine.getIdentifier()));
+
+        assertThat(stateMachine.dumpDelta(fullDelta.version()).isEmpty(), is(true));
+
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        StateMachineData.Delta<ParallelStateMachine, PState, PEvent, Integer> delta =
+                stateMachine.dumpDelta(fullDelta.version());
+        assertThat(delta.sinceVersion(), equalTo(fullDelta.version()));
+        assertThat(delta.changedFields().contains(Field.IDENTIFIER), is(false));
+        assertThat(delta.changedFields().contains(Field.INITIAL_STATE), is(false));
+        assertThat(delta.subStates().keySet(), contains(PState.A));
+        assertThat(delta.lastActiveChildStates().keySet().contains(PState.Total), is(false));
+
+        byte[] deltaBytes = serializer.toByteArray(delta);
+        assertThat(deltaBytes.length < serializer.toByteArray(stateMachine.dumpSavedData()).length, is(true));
+        replica.applyDelta(serializer.deltaFromByteArray(deltaBytes));
+        assertThat(replica.getSubStatesOn(PState.A), contains(PState.A2b, PState.A1b));
+
+        replica.consumeLog();
+        replica.fire(PEvent.A1b2A1c, 1);
+        assertThat(replica.consumeLog(), equalTo("exitA1b.transitA1b2A1c.enterA1c"));
+    }
+
+    @Test
+    public void testDeltaRemovesSubStates() {
+        stateMachine.start();
+        long version = stateMachine.dumpDelta(0).version();
+        replica.applyDelta(stateMachine.dumpDelta(0));
+        stateMachine.fire(PEvent.A1a2A1b, 1);
+        stateMachine.fire(PEvent.A1b2A1c, 1);
+        stateMachine.fire(PEvent.A2b2A2c, 1);
+        assertThat(stateMachine.getCurrentState(), equalTo(PState.C));
+
+        StateMachineData.Delta<ParallelStateMachine, PState, PEvent, Integer> delta = stateMachine.dumpDelta(version);
+        assertThat(delta.subStates().get(PState.A).isEmpty(), is(true));
+        replica.applyDelta(delta);
+        assertThat(replica.getCurrentState(), equalTo(PState.C));
+        assertThat(replica.getSubStatesOn(PState.A).isEmpty(), is(true));
+        assertThat(replica.dumpSavedData().lastActiveChildStateOf(PState.A1),
+                equalTo(stateMachine.dumpSavedData().lastActiveChildStateOf(PState.A1)));
+    }
+
+    @Test
+    public void testDeserializeDataWithoutVersions() throws Exception {
+        stateMachine.start();
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> savedData = stateMachine.dumpSavedData();
+        // data serialized before versions and pending timers were tracked has no such fields
+        for(String name : new String[] {"fieldVersions", "lastActiveChildStateVersions", "parallelStateVersions", 
+                "pendingTimerStore"}) {
+            java.lang.reflect.Field field = StateMachineDataImpl.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(savedData, null);
+        }
+        StateMachineData.Reader<ParallelStateMachine, PState, PEvent, Integer> loadedData =
+                ObjectSerializableSupport.deserialize(ObjectSerializableSupport.serialize(savedData));
+        ((StateMachineDataImpl<ParallelStateMachine, PState, PEvent, Integer>)loadedData).write().lastState(PState.B);
+        assertThat(((StateMachineDataImpl<ParallelStateMachine, PState, PEvent, Integer>)loadedData)
+                .dumpDelta(0).changedFields().contains(Field.LAST_STATE), is(true));
+
+        assertThat(loadedData.pendingTimerStates().isEmpty(), is(true));
+        replica.loadSavedData(loadedData);
+        replica.fire(PEvent.A1a2A1b, 1);
+        assertThat(replica.getSubStatesOn(PState.A), containsInAnyOrder(PState.A1b, PState.A2b));
+    }
+}
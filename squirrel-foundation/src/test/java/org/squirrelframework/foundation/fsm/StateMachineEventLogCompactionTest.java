@@ -0,0 +1,149 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.squirrelframework.foundation.fsm.StateMachineEventLogTest.assertStateWithin;
+import static org.squirrelframework.foundation.fsm.StateMachineEventLogTest.crashTimer;
+import static org.squirrelframework.foundation.fsm.StateMachineEventLogTest.newTimedBuilder;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.StateMachineEventLog.AppendMode;
+import org.squirrelframework.foundation.fsm.StateMachineEventLogTest.LoggedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.FileStateMachineEventLog;
+import org.squirrelframework.foundation.fsm.impl.StateMachineEventLogCompactor;
+
+import com.google.common.collect.Lists;
+
+public class StateMachineEventLogCompactionTest {
+
+    private File directory;
+
+    private FileStateMachineEventLog eventLog;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("squirrel", "-events");
+        directory.delete();
+        eventLog = new FileStateMachineEventLog(directory, AppendMode.AFTER_EXECUTION, 512, true);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        eventLog.close();
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private UntypedStateMachineBuilder newBuilder(StateMachineEventLog log) {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(LoggedStateMachine.class);
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create().setEventLog(log));
+        return builder;
+    }
+
+    private int countFiles(String prefix) {
+        int count = 0;
+        for(File file : directory.listFiles()) {
+            if(file.getName().startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testRecoverFromSnapshotAndLogTail() throws Exception {
+        UntypedStateMachineBuilder builder = newBuilder(eventLog);
+        String[] events = {"ToB", "ToC", "ToA"};
+        List<UntypedStateMachine> stateMachines = Lists.newArrayList();
+        for(int i=0; i<30; ++i) {
+            UntypedStateMachine stateMachine = builder.newStateMachine("A");
+            stateMachine.start(i);
+            for(int j=0; j<i%4; ++j) {
+                stateMachine.fire(events[j%3], j);
+            }
+            stateMachines.add(stateMachine);
+        }
+        stateMachines.get(0).terminate();
+        int segments = countFiles("segment-");
+        assertThat(segments>2, is(true));
+
+        StateMachineEventLogCompactor<UntypedStateMachine, Object, Object, Object> compactor =
+                new StateMachineEventLogCompactor<UntypedStateMachine, Object, Object, Object>(
+                        eventLog, newBuilder(null), 3, 1024*1024);
+        long coveredSequence = compactor.compact();
+        assertThat(coveredSequence>0, is(true));
+        assertThat(countFiles("segment-"), equalTo(1));
+        assertThat(countFiles("snapshot-"), equalTo(4));
+
+        // events after compaction are kept in log tail
+        stateMachines.get(1).fire("ToB", 0);
+        stateMachines.get(2).terminate();
+        // append more than one segment so that log tail is rolled regardless of identifier length
+        for(int i=3; i<stateMachines.size(); ++i) {
+            for(String event : events) {
+                stateMachines.get(i).fire(event, 0);
+            }
+        }
+        assertThat(compactor.compact()>coveredSequence, is(true));
+        stateMachines.get(3).fire("ToA", 0);
+        compactor.close();
+        eventLog.close();
+
+        eventLog = new FileStateMachineEventLog(directory, AppendMode.AFTER_EXECUTION, 512, true);
+        Map<String, UntypedStateMachine> recovered = eventLog.recover(newBuilder(null));
+        assertThat(recovered.size(), equalTo(28));
+        assertThat(recovered.containsKey(stateMachines.get(0).getIdentifier()), is(false));
+        assertThat(recovered.containsKey(stateMachines.get(2).getIdentifier()), is(false));
+        for(UntypedStateMachine stateMachine : stateMachines.subList(3, stateMachines.size())) {
+            UntypedStateMachine recoveredStateMachine = recovered.get(stateMachine.getIdentifier());
+            assertThat(recoveredStateMachine.getCurrentState(), equalTo(stateMachine.getCurrentState()));
+            assertThat(recoveredStateMachine.getStatus(), equalTo(StateMachineStatus.IDLE));
+        }
+        assertThat(recovered.get(stateMachines.get(1).getIdentifier()).getCurrentState(), equalTo((Object)"B"));
+
+        // new records continue after sequence covered by snapshot
+        UntypedStateMachine stateMachine = newBuilder(eventLog).newStateMachine("A");
+        stateMachine.start();
+        assertThat(eventLog.appendTerminate("unknown")>coveredSequence, is(true));
+    }
+
+    @Test
+    public void testRecoverTimedStateFromSnapshot() throws Exception {
+        UntypedStateMachineBuilder builder = newTimedBuilder(eventLog);
+        UntypedStateMachine timedStateMachine = builder.newStateMachine("A");
+        timedStateMachine.fire("ToT", 0);
+        // roll segments so that timed state is covered by snapshot
+        for(int i=0; i<10; ++i) {
+            UntypedStateMachine stateMachine = builder.newStateMachine("A");
+            stateMachine.fire("ToB", i);
+            stateMachine.fire("ToC", i);
+        }
+        assertThat(countFiles("segment-")>1, is(true));
+
+        StateMachineEventLogCompactor<UntypedStateMachine, Object, Object, Object> compactor =
+                new StateMachineEventLogCompactor<UntypedStateMachine, Object, Object, Object>(
+                        eventLog, newTimedBuilder(null), 2, 1024*1024);
+        assertThat(compactor.compact()>0, is(true));
+        compactor.close();
+        crashTimer();
+        eventLog.close();
+
+        eventLog = new FileStateMachineEventLog(directory, AppendMode.AFTER_EXECUTION, 512, true);
+        try {
+            UntypedStateMachine recovered = eventLog.recover(newTimedBuilder(null)).get(
+                    timedStateMachine.getIdentifier());
+            assertThat(recovered.getCurrentState(), equalTo((Object)"T"));
+            // pending timer is kept by snapshot and armed after recovery
+            assertStateWithin(recovered, "B", 1500);
+        } finally {
+            crashTimer();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.SquirrelSingletonProvider;
+import org.squirrelframework.foundation.fsm.StateMachineEventLog.AppendMode;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.FileStateMachineEventLog;
+
+import com.google.common.collect.Lists;
+
+public class StateMachineEventLogTest {
+
+    static final AtomicInteger actionCounter = new AtomicInteger(0);
+
+    @Transitions({
+        @Transit(from="A", to="B", on="ToB", callMethod="count"),
+        @Transit(from="B", to="C", on="ToC", callMethod="count"),
+        @Transit(from="C", to="A", on="ToA", callMethod="count")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class LoggedStateMachine extends AbstractUntypedStateMachine {
+        protected void count(String from, String to, String event, Integer context) {
+            actionCounter.incrementAndGet();
+        }
+    }
+
+    private File directory;
+
+    private FileStateMachineEventLog eventLog;
+
+    @Before
+    public void setup() throws Exception {
+        directory = File.createTempFile("squirrel", "-events");
+        directory.delete();
+        eventLog = new FileStateMachineEventLog(directory, AppendMode.BEFORE_EXECUTION, 4096, true);
+        actionCounter.set(0);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        eventLog.close();
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private UntypedStateMachineBuilder newBuilder(StateMachineEventLog log) {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(LoggedStateMachine.class);
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create().setEventLog(log));
+        return builder;
+    }
+
+    static UntypedStateMachineBuilder newTimedBuilder(StateMachineEventLog log) {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(LoggedStateMachine.class);
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create().setEventLog(log));
+        builder.defineTimedState("T", 500, 0, "Timeout", null);
+        builder.externalTransition().from("A").to("T").on("ToT");
+        builder.externalTransition().from("T").to("B").on("Timeout");
+        return builder;
+    }
+
+    /**
+     * Shutdown timer to simulate crash of process, so that only recovered state machines are timed
+     */
+    static void crashTimer() {
+        SquirrelSingletonProvider.getInstance().get(StateMachineTimer.class).shutdown();
+        SquirrelSingletonProvider.getInstance().unregister(StateMachineTimer.class);
+    }
+
+    static void assertStateWithin(UntypedStateMachine stateMachine, Object state, long timeoutInMillis) throws Exception {
+        long deadline = System.currentTimeMillis()+timeoutInMillis;
+        while(!state.equals(stateMachine.getCurrentState()) && System.currentTimeMillis()<deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(stateMachine.getCurrentState(), equalTo(state));
+    }
+
+    @Test
+    public void testRecoverByReplay() throws Exception {
+        final UntypedStateMachineBuilder builder = newBuilder(eventLog);
+        final String[] events = {"ToB", "ToC", "ToA"};
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<UntypedStateMachine>> futures = Lists.newArrayList();
+        for(int i=0; i<40; ++i) {
+            final int steps = i%5;
+            futures.add(executorService.submit(new Callable<UntypedStateMachine>() {
+                @Override
+                public UntypedStateMachine call() throws Exception {
+                    UntypedStateMachine stateMachine = builder.newStateMachine("A");
+                    stateMachine.start(steps);
+                    for(int j=0; j<steps; ++j) {
+                        stateMachine.fire(events[j%3], j);
+                    }
+                    return stateMachine;
+                }
+            }));
+        }
+        List<UntypedStateMachine> stateMachines = Lists.newArrayList();
+        for(Future<UntypedStateMachine> future : futures) {
+            stateMachines.add(future.get());
+        }
+        executorService.shutdown();
+        stateMachines.get(0).terminate();
+        eventLog.close();
+        assertThat(directory.listFiles().length>1, is(true));
+
+        int invokedActions = actionCounter.get();
+        eventLog = new FileStateMachineEventLog(directory, AppendMode.BEFORE_EXECUTION, 4096, true);
+        Map<String, UntypedStateMachine> recovered = eventLog.recover(newBuilder(eventLog));
+        assertThat(actionCounter.get(), equalTo(invokedActions));
+        assertThat(recovered.size(), equalTo(39));
+        for(UntypedStateMachine stateMachine : stateMachines.subList(1, stateMachines.size())) {
+            UntypedStateMachine recoveredStateMachine = recovered.get(stateMachine.getIdentifier());
+            assertThat(recoveredStateMachine.getCurrentState(), equalTo(stateMachine.getCurrentState()));
+            assertThat(recoveredStateMachine.getStatus(), equalTo(StateMachineStatus.IDLE));
+        }
+
+        // events fired on recovered state machine are appended to the same log
+        UntypedStateMachine stateMachine = recovered.get(stateMachines.get(5).getIdentifier());
+        stateMachine.fire("ToB", 0);
+        assertThat(actionCounter.get(), equalTo(invokedActions+1));
+        eventLog.close();
+
+        eventLog = new FileStateMachineEventLog(directory);
+        recovered = eventLog.recover(newBuilder(null));
+        assertThat(recovered.get(stateMachine.getIdentifier()).getCurrentState(), equalTo((Object)"B"));
+    }
+
+    @Test
+    public void testIgnoreTornRecord() throws Exception {
+        UntypedStateMachine stateMachine = newBuilder(eventLog).newStateMachine("A");
+        stateMachine.fire("ToB", 1);
+        stateMachine.fire("ToC", 2);
+        eventLog.close();
+
+        File[] segments = directory.listFiles();
+        FileOutputStream output = new FileOutputStream(segments[segments.length-1], true);
+        output.write(new byte[] {0, 0, 0, 64, 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 9, 1});
+        output.close();
+
+        eventLog = new FileStateMachineEventLog(directory);
+        Map<String, UntypedStateMachine> recovered = eventLog.recover(newBuilder(null));
+        assertThat(recovered.get(stateMachine.getIdentifier()).getCurrentState(), equalTo((Object)"C"));
+    }
+
+    @Test
+    public void testRecoverTimedState() throws Exception {
+        UntypedStateMachine stateMachine = newTimedBuilder(eventLog).newStateMachine("A");
+        stateMachine.fire("ToT", 1);
+        assertThat(stateMachine.getCurrentState(), equalTo((Object)"T"));
+        crashTimer();
+        eventLog.close();
+
+        eventLog = new FileStateMachineEventLog(directory);
+        try {
+            UntypedStateMachine recovered = eventLog.recover(newTimedBuilder(null)).get(stateMachine.getIdentifier());
+            assertThat(recovered.getCurrentState(), equalTo((Object)"T"));
+            // timer of timed state entered by replay is armed after recovery
+            assertStateWithin(recovered, "B", 1500);
+        } finally {
+            crashTimer();
+        }
+    }
+}
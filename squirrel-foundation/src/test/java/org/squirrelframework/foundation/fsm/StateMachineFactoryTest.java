@@ -0,0 +1,178 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.SquirrelPostProcessor;
+import org.squirrelframework.foundation.component.SquirrelPostProcessorProvider;
+import org.squirrelframework.foundation.component.SquirrelProvider;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.MvelScriptManagerImpl;
+
+public class StateMachineFactoryTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class NamedStateMachine extends AbstractUntypedStateMachine {
+        final String name;
+        String postConstructed;
+        String postProcessed;
+
+        NamedStateMachine(String name) {
+            if(name==null) {
+                throw new IllegalArgumentException("Name cannot be null.");
+            }
+            this.name = name;
+        }
+
+        void postConstruct(String name) {
+            this.postConstructed = name;
+        }
+    }
+
+    @Transitions({
+        @Transit(from="A", to="B", on="ToB", callMethod="fromAToB"),
+        @Transit(from="B", to="A", on="ToA")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class DeclaredStateMachine extends AbstractUntypedStateMachine {
+        int transitions = 0;
+
+        protected void fromAToB(String from, String to, String event, Integer context) {
+            transitions++;
+        }
+    }
+
+    @Transitions({
+        @Transit(from="A", to="B", on="ToB", whenMvel="ContextPositive:::context>0")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class MvelStateMachine extends AbstractUntypedStateMachine {
+    }
+
+    @After
+    public void teardown() {
+        SquirrelPostProcessorProvider.getInstance().unregister(NamedStateMachine.class);
+    }
+
+    private UntypedStateMachineBuilder newBuilder() {
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(NamedStateMachine.class, String.class);
+        builder.externalTransition().from("A").to("B").on("ToB");
+        return builder;
+    }
+
+    @Test
+    public void testConstructorAndPostConstructWithExtraParams() {
+        UntypedStateMachineBuilder builder = newBuilder();
+        for(int i=0; i<3; ++i) {
+            NamedStateMachine stateMachine = builder.newUntypedStateMachine("A", "fsm"+i);
+            assertThat(stateMachine.name, equalTo("fsm"+i));
+            assertThat(stateMachine.postConstructed, equalTo("fsm"+i));
+            stateMachine.fire("ToB", null);
+            assertThat(stateMachine.getCurrentState(), equalTo((Object)"B"));
+        }
+    }
+
+    @Test
+    public void testConstructorFailure() {
+        UntypedStateMachineBuilder builder = newBuilder();
+        try {
+            builder.newUntypedStateMachine("A", new Object[]{null});
+            fail();
+        } catch(IllegalStateException e) {
+            assertThat(e.getCause(), instanceOf(IllegalArgumentException.class));
+            assertThat(e.getCause().getMessage(), equalTo("Name cannot be null."));
+        }
+    }
+
+    @Test
+    public void testPostProcessorRegistryChangeAfterInstanceCreated() {
+        UntypedStateMachineBuilder builder = newBuilder();
+        NamedStateMachine stateMachine = builder.newUntypedStateMachine("A", "first");
+        assertThat(stateMachine.postProcessed, nullValue());
+
+        SquirrelPostProcessorProvider.getInstance().register(NamedStateMachine.class,
+                new SquirrelPostProcessor<NamedStateMachine>() {
+                    @Override
+                    public void postProcess(NamedStateMachine component) {
+                        component.postProcessed = component.name;
+                    }
+                });
+        stateMachine = builder.newUntypedStateMachine("A", "second");
+        assertThat(stateMachine.postProcessed, equalTo("second"));
+
+        SquirrelPostProcessorProvider.getInstance().unregister(NamedStateMachine.class);
+        stateMachine = builder.newUntypedStateMachine("A", "third");
+        assertThat(stateMachine.postProcessed, nullValue());
+    }
+
+    @Test
+    public void testDeclaredDefinitionSharedByBuilders() {
+        UntypedStateMachine first = StateMachineBuilderFactory.create(DeclaredStateMachine.class).newStateMachine("A");
+        UntypedStateMachine second = StateMachineBuilderFactory.create(DeclaredStateMachine.class).newStateMachine("A");
+        assertThat(second.getRawStateFrom("A"), sameInstance(first.getRawStateFrom("A")));
+
+        first.fire("ToB", 1);
+        second.start();
+        assertThat(first.getCurrentState(), equalTo((Object)"B"));
+        assertThat(second.getCurrentState(), equalTo((Object)"A"));
+        assertThat(((DeclaredStateMachine)first).transitions, equalTo(1));
+        assertThat(((DeclaredStateMachine)second).transitions, equalTo(0));
+
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(DeclaredStateMachine.class);
+        builder.externalTransition().from("B").to("C").on("ToC");
+        UntypedStateMachine third = builder.newStateMachine("A");
+        assertThat(third.getRawStateFrom("A"), not(sameInstance(first.getRawStateFrom("A"))));
+        third.fire("ToB", 1);
+        third.fire("ToC", 1);
+        assertThat(third.getCurrentState(), equalTo((Object)"C"));
+        first.fire("ToC", 1);
+        assertThat(first.getCurrentState(), equalTo((Object)"B"));
+    }
+
+    public static class CountingScriptManager extends MvelScriptManagerImpl {
+        static int evaluations = 0;
+
+        @Override
+        public boolean evalBoolean(String script, Object context) {
+            evaluations++;
+            return super.evalBoolean(script, context);
+        }
+    }
+
+    @Test
+    public void testDeclaredDefinitionNotSharedAcrossExecutionContexts() {
+        UntypedStateMachine first = StateMachineBuilderFactory.create(DeclaredStateMachine.class).newStateMachine("A");
+
+        UntypedStateMachineBuilder builder = StateMachineBuilderFactory.create(DeclaredStateMachine.class);
+        builder.setStateMachineConfiguration(StateMachineConfiguration.create());
+        UntypedStateMachine configured = builder.newStateMachine("A");
+        assertThat(configured.getRawStateFrom("A"), not(sameInstance(first.getRawStateFrom("A"))));
+
+        SquirrelProvider.getInstance().register(MvelScriptManager.class, CountingScriptManager.class);
+        UntypedStateMachine counted;
+        try {
+            counted = StateMachineBuilderFactory.create(MvelStateMachine.class).newStateMachine("A");
+        } finally {
+            SquirrelProvider.getInstance().unregister(MvelScriptManager.class);
+        }
+        UntypedStateMachine defaulted = StateMachineBuilderFactory.create(MvelStateMachine.class).newStateMachine("A");
+        assertThat(defaulted.getRawStateFrom("A"), not(sameInstance(counted.getRawStateFrom("A"))));
+        CountingScriptManager.evaluations = 0;
+        defaulted.fire("ToB", 1);
+        assertThat(defaulted.getCurrentState(), equalTo((Object)"B"));
+        assertThat(CountingScriptManager.evaluations, equalTo(0));
+        counted.fire("ToB", 1);
+        assertThat(counted.getCurrentState(), equalTo((Object)"B"));
+        assertThat(CountingScriptManager.evaluations, equalTo(1));
+    }
+}
@@ -0,0 +1,167 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.StateMachineManagerImpl;
+
+import com.google.common.collect.Lists;
+
+public class StateMachineManagerTest {
+
+    static final AtomicInteger actionCounter = new AtomicInteger(0);
+
+    static final ConcurrentMap<String, Set<String>> processingThreads = new ConcurrentHashMap<String, Set<String>>();
+
+    @Transitions({
+        @Transit(from="A", to="B", on="Next", callMethod="count"),
+        @Transit(from="B", to="C", on="Next", callMethod="count"),
+        @Transit(from="C", to="A", on="Next", callMethod="count"),
+        @Transit(from="A", to="B", on="Skip", callMethod="skip"),
+        @Transit(from="C", to="D", on="Finish", callMethod="count")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class ShardedStateMachine extends AbstractUntypedStateMachine {
+        protected void count(String from, String to, String event, Integer context) {
+            actionCounter.incrementAndGet();
+            processingThreads.putIfAbsent(getIdentifier(), ConcurrentHashMap.<String>newKeySet());
+            processingThreads.get(getIdentifier()).add(Thread.currentThread().getName());
+        }
+
+        protected void skip(String from, String to, String event, Integer context) {
+            fire("Next", context);
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    private StateMachineManager<UntypedStateMachine, Object, Object, Object> manager;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(ShardedStateMachine.class);
+        builder.defineFinalState("D");
+        manager = new StateMachineManagerImpl<UntypedStateMachine, Object, Object, Object>(4);
+        actionCounter.set(0);
+        processingThreads.clear();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        manager.shutdown();
+        manager.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private List<String> addStateMachines(int count) {
+        List<String> identifiers = Lists.newArrayList();
+        for(int i=0; i<count; ++i) {
+            identifiers.add(manager.add(builder.newStateMachine("A")));
+        }
+        return identifiers;
+    }
+
+    @Test
+    public void testConcurrentSubmitProcessedOnShardThread() throws Exception {
+        final List<String> identifiers = addStateMachines(40);
+        ExecutorService executorService = Executors.newFixedThreadPool(6);
+        List<Future<Void>> futures = Lists.newArrayList();
+        for(int i=0; i<6; ++i) {
+            final int offset = i;
+            futures.add(executorService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for(int j=0; j<identifiers.size()*3; ++j) {
+                        manager.submit(identifiers.get((j+offset*7)%identifiers.size()), "Next", j);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for(Future<Void> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+        for(String identifier : identifiers) {
+            // each state machine received 18 events which is multiple of 3 transitions cycle
+            assertThat(manager.submit(identifier, "Finish", 0).get(), equalTo((Object)"A"));
+        }
+        assertThat(actionCounter.get(), equalTo(40*18));
+        for(String identifier : identifiers) {
+            assertThat(processingThreads.get(identifier).size(), equalTo(1));
+        }
+        assertThat(manager.size(), equalTo(40));
+    }
+
+    @Test
+    public void testEventFiredByActionProcessedBeforeReturn() throws Exception {
+        String identifier = addStateMachines(1).get(0);
+        assertThat(manager.submit(identifier, "Skip", 0).get(), equalTo((Object)"C"));
+        assertThat(actionCounter.get(), equalTo(1));
+    }
+
+    @Test
+    public void testTerminatedStateMachineRemoved() throws Exception {
+        List<String> identifiers = addStateMachines(3);
+        String identifier = identifiers.get(0);
+        manager.submit(identifier, "Next", 0);
+        manager.submit(identifier, "Next", 0);
+        assertThat(manager.submit(identifier, "Finish", 0).get(), equalTo((Object)"D"));
+        // state machines are added on their own shards, wait until processed there
+        assertThat(manager.submit(identifiers.get(1), "Next", 0).get(), equalTo((Object)"B"));
+        assertThat(manager.submit(identifiers.get(2), "Next", 0).get(), equalTo((Object)"B"));
+        assertThat(manager.size(), equalTo(2));
+        try {
+            manager.submit(identifier, "Next", 0).get();
+            fail();
+        } catch(ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IllegalArgumentException.class));
+        }
+        assertThat(manager.remove(identifiers.get(1)).get(), is(true));
+        assertThat(manager.remove(identifiers.get(1)).get(), is(false));
+        assertThat(manager.size(), equalTo(1));
+    }
+
+    @Test
+    public void testDelayedEventProcessedOnShardThread() throws Exception {
+        UntypedStateMachine stateMachine = builder.newStateMachine("A");
+        String identifier = manager.add(stateMachine);
+        stateMachine.fireDelayed("Next", 0, 20, TimeUnit.MILLISECONDS);
+        for(int i=0; i<500 && actionCounter.get()==0; ++i) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertThat(actionCounter.get(), equalTo(1));
+        assertThat(processingThreads.get(identifier).iterator().next().startsWith("squirrel-state-machine-shard-"), is(true));
+        assertThat(manager.submit(identifier, "Next", 0).get(), equalTo((Object)"C"));
+        assertThat(processingThreads.get(identifier).size(), equalTo(1));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testSubmitAfterShutdown() throws Exception {
+        String identifier = addStateMachines(1).get(0);
+        manager.shutdown();
+        assertThat(manager.awaitTermination(5, TimeUnit.SECONDS), is(true));
+        manager.submit(identifier, "Next", 0);
+    }
+}
@@ -0,0 +1,212 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.SquirrelSingletonProvider;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.FileStateMachineStore;
+import org.squirrelframework.foundation.fsm.impl.MemoryStateMachineStore;
+import org.squirrelframework.foundation.fsm.impl.StateMachineRepositoryImpl;
+import org.squirrelframework.foundation.fsm.impl.StateMachineTimerImpl;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+public class StateMachineRepositoryTest {
+
+    static final AtomicInteger actionCounter = new AtomicInteger(0);
+
+    @Transitions({
+        @Transit(from="A", to="B", on="Next", callMethod="count"),
+        @Transit(from="B", to="C", on="Next", callMethod="count"),
+        @Transit(from="C", to="A", on="Next", callMethod="count"),
+        @Transit(from="C", to="D", on="Finish", callMethod="count")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class RepositoryStateMachine extends AbstractUntypedStateMachine {
+        protected void count(String from, String to, String event, Integer context) {
+            actionCounter.incrementAndGet();
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(RepositoryStateMachine.class);
+        builder.defineFinalState("D");
+        actionCounter.set(0);
+    }
+
+    private List<String> saveStateMachines(StateMachineRepository<UntypedStateMachine, Object, Object, Object> repository,
+            int count) {
+        List<String> identifiers = Lists.newArrayList();
+        for(int i=0; i<count; ++i) {
+            UntypedStateMachine stateMachine = builder.newStateMachine("A");
+            stateMachine.start();
+            repository.save(stateMachine);
+            identifiers.add(stateMachine.getIdentifier());
+        }
+        return identifiers;
+    }
+
+    @Test
+    public void testPassivateAndReactivate() {
+        MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object> store =
+                new MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object>();
+        StateMachineRepository<UntypedStateMachine, Object, Object, Object> repository =
+                new StateMachineRepositoryImpl<UntypedStateMachine, Object, Object, Object>(builder, store, 4);
+        List<String> identifiers = saveStateMachines(repository, 20);
+        assertThat(repository.activeSize(), equalTo(4));
+        assertThat(store.size(), equalTo(20));
+
+        for(int round=0; round<2; ++round) {
+            for(String identifier : identifiers) {
+                repository.fire(identifier, "Next", round);
+            }
+        }
+        assertThat(actionCounter.get(), equalTo(40));
+        assertThat(repository.activeSize(), equalTo(4));
+        for(String identifier : identifiers) {
+            UntypedStateMachine stateMachine = repository.get(identifier);
+            assertThat(stateMachine.getCurrentState(), equalTo((Object)"C"));
+            assertThat(stateMachine.getIdentifier(), equalTo(identifier));
+        }
+
+        assertThat(repository.fire(identifiers.get(0), "Finish", 0), equalTo((Object)"D"));
+        assertThat(store.contains(identifiers.get(0)), is(false));
+        assertThat(repository.get(identifiers.get(0)), nullValue());
+
+        assertThat(repository.remove(identifiers.get(1)), is(true));
+        assertThat(repository.get(identifiers.get(1)), nullValue());
+        repository.passivateAll();
+        assertThat(repository.activeSize(), equalTo(0));
+        assertThat(store.size(), equalTo(18));
+    }
+
+    @Test
+    public void testTimedStateFiredOnceAfterPassivation() throws Exception {
+        builder.defineTimedState("T", 200, 0, "Wake", null);
+        builder.externalTransition().from("A").to("T").on("Wait");
+        builder.externalTransition().from("T").to("A").on("Wake").callMethod("count");
+        MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object> store =
+                new MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object>();
+        StateMachineRepository<UntypedStateMachine, Object, Object, Object> repository =
+                new StateMachineRepositoryImpl<UntypedStateMachine, Object, Object, Object>(builder, store, 1);
+        String identifier = saveStateMachines(repository, 1).get(0);
+        assertThat(repository.fire(identifier, "Wait", 0), equalTo((Object)"T"));
+        // passivate waiting state machine, and reactivate it after its timer is due
+        saveStateMachines(repository, 1);
+        assertThat(store.contains(identifier), is(true));
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertThat(actionCounter.get(), equalTo(0));
+        UntypedStateMachine stateMachine = repository.get(identifier);
+        for(int i=0; i<500 && actionCounter.get()==0; ++i) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(actionCounter.get(), equalTo(1));
+        assertThat(stateMachine.getCurrentState(), equalTo((Object)"A"));
+    }
+
+    @Test
+    public void testNotPassivatedWhileTimerDelivering() throws Exception {
+        final List<Runnable> deliveries = new CopyOnWriteArrayList<Runnable>();
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, new StateMachineTimerImpl(
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        deliveries.add(command);
+                    }
+                }));
+        try {
+            builder.defineTimedState("T", 10, 0, "Wake", null);
+            builder.externalTransition().from("A").to("T").on("Wait");
+            builder.externalTransition().from("T").to("A").on("Wake").callMethod("count");
+            StateMachineRepository<UntypedStateMachine, Object, Object, Object> repository =
+                    new StateMachineRepositoryImpl<UntypedStateMachine, Object, Object, Object>(builder,
+                            new MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object>(), 4);
+            String identifier = saveStateMachines(repository, 1).get(0);
+            assertThat(repository.fire(identifier, "Wait", 0), equalTo((Object)"T"));
+            for(int i=0; i<500 && deliveries.isEmpty(); ++i) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertThat(deliveries.size(), equalTo(1));
+            // event queued by timer is not processed yet, which would be lost by passivation
+            repository.passivateAll();
+            assertThat(repository.activeSize(), equalTo(1));
+            deliveries.get(0).run();
+            assertThat(actionCounter.get(), equalTo(1));
+            repository.passivateAll();
+            assertThat(repository.activeSize(), equalTo(0));
+            assertThat(repository.get(identifier).getCurrentState(), equalTo((Object)"A"));
+        } finally {
+            SquirrelSingletonProvider.getInstance().get(StateMachineTimer.class).shutdown();
+            SquirrelSingletonProvider.getInstance().unregister(StateMachineTimer.class);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testFireUnknownStateMachine() {
+        new StateMachineRepositoryImpl<UntypedStateMachine, Object, Object, Object>(builder,
+                new MemoryStateMachineStore<UntypedStateMachine, Object, Object, Object>(), 4).fire("unknown", "Next", 0);
+    }
+
+    @Test
+    public void testConcurrentFireWithFileStore() throws Exception {
+        File directory = File.createTempFile("squirrel", "-store");
+        directory.delete();
+        try {
+            final StateMachineRepository<UntypedStateMachine, Object, Object, Object> repository =
+                    new StateMachineRepositoryImpl<UntypedStateMachine, Object, Object, Object>(builder,
+                            new FileStateMachineStore<UntypedStateMachine, Object, Object, Object>(directory), 8);
+            final List<String> identifiers = saveStateMachines(repository, 50);
+            ExecutorService executorService = Executors.newFixedThreadPool(8);
+            List<Future<Void>> futures = Lists.newArrayList();
+            for(int i=0; i<8; ++i) {
+                final int offset = i;
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for(int j=0; j<identifiers.size()*3; ++j) {
+                            repository.fire(identifiers.get((j+offset*7)%identifiers.size()), "Next", j);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> future : futures) {
+                future.get();
+            }
+            executorService.shutdown();
+            // each state machine received 24 events which is multiple of 3 transitions cycle
+            assertThat(actionCounter.get(), equalTo(50*24));
+            repository.passivateAll();
+            for(String identifier : identifiers) {
+                assertThat(repository.get(identifier).getCurrentState(), equalTo((Object)"A"));
+            }
+        } finally {
+            MoreFiles.deleteRecursively(directory.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+        }
+    }
+}
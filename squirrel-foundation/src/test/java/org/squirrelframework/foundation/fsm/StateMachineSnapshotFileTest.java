@@ -0,0 +1,125 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.StateMachineSnapshotFile;
+
+import com.google.common.collect.Lists;
+
+public class StateMachineSnapshotFileTest {
+
+    @Transitions({
+        @Transit(from="A", to="B", on="ToB"),
+        @Transit(from="B", to="C", on="ToC"),
+        @Transit(from="C", to="A", on="ToA")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class SnapshotStateMachine extends AbstractUntypedStateMachine {
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    private File snapshotFile;
+
+    @Before
+    public void setup() throws Exception {
+        builder = StateMachineBuilderFactory.create(SnapshotStateMachine.class);
+        snapshotFile = File.createTempFile("squirrel", ".snapshot");
+    }
+
+    @After
+    public void teardown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testExportAndLazyLoad() throws Exception {
+        List<UntypedStateMachine> stateMachines = Lists.newArrayList();
+        for(int i=0; i<5000; ++i) {
+            UntypedStateMachine stateMachine = builder.newStateMachine("A");
+            stateMachine.start();
+            for(int j=0; j<i%3; ++j) {
+                stateMachine.fire(j==0 ? "ToB" : "ToC");
+            }
+            stateMachines.add(stateMachine);
+        }
+        assertThat(StateMachineSnapshotFile.exportStateMachines(stateMachines, snapshotFile, 4), equalTo(5000));
+
+        StateMachineSnapshotFile<UntypedStateMachine, Object, Object, Object> snapshots =
+                StateMachineSnapshotFile.open(snapshotFile);
+        try {
+            assertThat(snapshots.size(), equalTo(5000));
+            for(int i=0; i<stateMachines.size(); i+=97) {
+                UntypedStateMachine original = stateMachines.get(i);
+                UntypedStateMachine restored = snapshots.load(original.getIdentifier(), builder);
+                assertThat(restored.getIdentifier(), equalTo(original.getIdentifier()));
+                assertThat(restored.getCurrentState(), equalTo(original.getCurrentState()));
+                assertThat(restored.getStatus(), equalTo(StateMachineStatus.IDLE));
+            }
+            UntypedStateMachine restored = snapshots.load(stateMachines.get(1).getIdentifier(), builder);
+            restored.fire("ToC");
+            assertThat(restored.getCurrentState(), equalTo((Object)"C"));
+            assertThat(snapshots.read("unknown"), is(nullValue()));
+        } finally {
+            snapshots.close();
+        }
+    }
+
+    @Test
+    public void testExportData() throws Exception {
+        List<StateMachineData.Reader<UntypedStateMachine, Object, Object, Object>> savedData = Lists.newArrayList();
+        UntypedStateMachine stateMachine = builder.newStateMachine("A");
+        stateMachine.start();
+        stateMachine.fire("ToB");
+        savedData.add(stateMachine.dumpSavedData());
+        StateMachineSnapshotFile.exportData(savedData, snapshotFile);
+
+        StateMachineSnapshotFile<UntypedStateMachine, Object, Object, Object> snapshots =
+                StateMachineSnapshotFile.open(snapshotFile);
+        try {
+            assertThat(snapshots.contains(stateMachine.getIdentifier()), is(true));
+            assertThat(snapshots.read(stateMachine.getIdentifier()).currentState(), equalTo((Object)"B"));
+        } finally {
+            snapshots.close();
+        }
+    }
+
+    @Test
+    public void testFailedExportKeepsExistingSnapshot() throws Exception {
+        List<StateMachineData.Reader<UntypedStateMachine, Object, Object, Object>> savedData = Lists.newArrayList();
+        UntypedStateMachine stateMachine = builder.newStateMachine("A");
+        stateMachine.start();
+        savedData.add(stateMachine.dumpSavedData());
+        StateMachineSnapshotFile.exportData(savedData, snapshotFile);
+
+        savedData.add(null);
+        try {
+            StateMachineSnapshotFile.exportData(savedData, snapshotFile);
+            fail();
+        } catch (NullPointerException e) {
+        }
+        assertThat(new File(snapshotFile.getParentFile(), snapshotFile.getName()+".tmp").exists(), is(false));
+        StateMachineSnapshotFile<UntypedStateMachine, Object, Object, Object> snapshots =
+                StateMachineSnapshotFile.open(snapshotFile);
+        try {
+            assertThat(snapshots.size(), equalTo(1));
+            assertThat(snapshots.read(stateMachine.getIdentifier()).currentState(), equalTo((Object)"A"));
+        } finally {
+            snapshots.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.exception.TransitionException;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.annotation.Transit;
+import org.squirrelframework.foundation.fsm.annotation.Transitions;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+
+public class StateResidencyTrackingTest {
+
+    @Transitions({
+        @Transit(from="A", to="B", on="ToB"),
+        @Transit(from="B", to="C", on="ToC"),
+        @Transit(from="C", to="A", on="ToA"),
+        @Transit(from="A", to="A", on="Stay"),
+        @Transit(from="A", to="C", on="Fail", callMethod="fail")
+    })
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class ResidencyStateMachine extends AbstractUntypedStateMachine {
+        protected void fail(String from, String to, String event, Integer context) {
+            throw new IllegalStateException("Transition failed.");
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    @Before
+    public void setUp() {
+        builder = StateMachineBuilderFactory.create(ResidencyStateMachine.class);
+    }
+
+    @Test
+    public void testResidencyRecordedOnStateExit() throws Exception {
+        UntypedStateMachine fsm = builder.newStateMachine("A",
+                StateMachineConfiguration.create().enableStateResidencyTracking(true));
+        fsm.start();
+        Thread.sleep(5);
+        fsm.fire("ToB");
+        fsm.fire("ToC");
+        fsm.fire("ToA");
+        fsm.fire("Stay");
+        fsm.fire("ToB");
+
+        StateResidencyStatistics<Object> statistics = builder.getStateResidencyStatistics();
+        assertThat(statistics.getHistogram("A"), notNullValue());
+        // external self transition exits and enters state again
+        assertThat(statistics.getHistogram("A").getCount(), equalTo(3L));
+        assertThat(statistics.getHistogram("A").getMaxTime(TimeUnit.MILLISECONDS), greaterThanOrEqualTo(5L));
+        assertThat(statistics.getHistogram("B").getCount(), equalTo(1L));
+        assertThat(statistics.getHistogram("C").getCount(), equalTo(1L));
+
+        fsm.terminate();
+        assertThat(statistics.getHistogram("B").getCount(), equalTo(2L));
+
+        statistics.reset();
+        assertThat(statistics.getHistogram("A").getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testResidencyRecordedForParentAndParallelStates() throws Exception {
+        UntypedStateMachineBuilder hierarchicalBuilder = StateMachineBuilderFactory.create(
+                ResidencyStateMachine.class);
+        hierarchicalBuilder.defineSequentialStatesOn("P", "P1", "P2");
+        hierarchicalBuilder.defineParallelStatesOn("R", "R1", "R2");
+        hierarchicalBuilder.defineSequentialStatesOn("R1", "R1a");
+        hierarchicalBuilder.defineSequentialStatesOn("R2", "R2a");
+        hierarchicalBuilder.externalTransition().from("P1").to("P2").on("Next");
+        hierarchicalBuilder.externalTransition().from("P").to("R").on("Split");
+        hierarchicalBuilder.externalTransition().from("R").to("P").on("Join");
+        UntypedStateMachine fsm = hierarchicalBuilder.newStateMachine("P",
+                StateMachineConfiguration.create().enableStateResidencyTracking(true));
+        fsm.start();
+        fsm.fire("Next");
+        fsm.fire("Split");
+        Thread.sleep(5);
+        fsm.fire("Join");
+
+        StateResidencyStatistics<Object> statistics = hierarchicalBuilder.getStateResidencyStatistics();
+        assertThat(statistics.getHistogram("P1").getCount(), equalTo(1L));
+        assertThat(statistics.getHistogram("P2").getCount(), equalTo(1L));
+        assertThat(statistics.getHistogram("P").getCount(), equalTo(1L));
+        for(String stateId : new String[] {"R", "R1", "R2", "R1a", "R2a"}) {
+            assertThat(statistics.getHistogram(stateId).getCount(), equalTo(1L));
+            assertThat(statistics.getHistogram(stateId).getMaxTime(TimeUnit.MILLISECONDS), greaterThanOrEqualTo(5L));
+        }
+
+        fsm.terminate();
+        assertThat(statistics.getHistogram("P").getCount(), equalTo(2L));
+        assertThat(statistics.getHistogram("P1").getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testResidencyNotRecordedForFailedTransition() {
+        UntypedStateMachine fsm = builder.newStateMachine("A",
+                StateMachineConfiguration.create().enableStateResidencyTracking(true));
+        fsm.start();
+        try {
+            fsm.fire("Fail");
+        } catch (TransitionException e) {
+        }
+        StateResidencyStatistics<Object> statistics = builder.getStateResidencyStatistics();
+        assertThat(statistics.getHistogram("A").getCount(), equalTo(0L));
+        assertThat(statistics.getHistogram("C").getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testResidencyNotRecordedByDefault() {
+        UntypedStateMachine fsm = builder.newStateMachine("A");
+        fsm.start();
+        fsm.fire("ToB");
+        fsm.fire("ToC");
+        assertThat(builder.getStateResidencyStatistics().getHistogram("A").getCount(), equalTo(0L));
+        assertThat(builder.getStateResidencyStatistics().getTrackedStates().contains("C"), is(true));
+    }
+
+    @Test
+    public void testPercentileWithinBucketBound() {
+        StateResidencyStatistics<String> statistics = new StateResidencyStatistics<String>();
+        for(int i=1; i<=100; ++i) {
+            statistics.record("X", TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        StateResidencyStatistics.Histogram histogram = statistics.getHistogram("X");
+        assertThat(histogram.getCount(), equalTo(100L));
+        assertThat(histogram.getPercentile(0.5, TimeUnit.MICROSECONDS), equalTo(64L));
+        assertThat(histogram.getPercentile(1.0, TimeUnit.MICROSECONDS), equalTo(100L));
+    }
+}
@@ -0,0 +1,238 @@
+package org.squirrelframework.foundation.fsm;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.squirrelframework.foundation.component.SquirrelSingletonProvider;
+import org.squirrelframework.foundation.fsm.StateMachineData.PendingTimer;
+import org.squirrelframework.foundation.fsm.annotation.StateMachineParameters;
+import org.squirrelframework.foundation.fsm.impl.AbstractUntypedStateMachine;
+import org.squirrelframework.foundation.fsm.impl.BinaryStateMachineDataSerializer;
+import org.squirrelframework.foundation.fsm.impl.ScheduledExecutorTimer;
+import org.squirrelframework.foundation.fsm.impl.StateMachineDataImpl;
+import org.squirrelframework.foundation.fsm.impl.StateMachineTimerImpl;
+
+import com.google.common.collect.Lists;
+
+public class TimedStateTest {
+
+    @StateMachineParameters(stateType=String.class, eventType=String.class, contextType=Integer.class)
+    static class TimedStateMachine extends AbstractUntypedStateMachine {
+        final AtomicInteger ticks = new AtomicInteger(0);
+        final List<Integer> processed = new CopyOnWriteArrayList<Integer>();
+        volatile CountDownLatch latch = new CountDownLatch(1);
+
+        protected void tick(String from, String to, String event, Integer context) {
+            ticks.incrementAndGet();
+            latch.countDown();
+        }
+
+        protected void record(String from, String to, String event, Integer context) {
+            processed.add(context);
+            latch.countDown();
+        }
+    }
+
+    private UntypedStateMachineBuilder builder;
+
+    @Before
+    public void setup() {
+        builder = StateMachineBuilderFactory.create(TimedStateMachine.class);
+        builder.defineTimedState("A", 0, 20, "Tick", null);
+        builder.internalTransition().within("A").on("Tick").callMethod("tick");
+        builder.internalTransition().within("A").on("Record").callMethod("record");
+        builder.externalTransition().from("A").to("B").on("Leave");
+        builder.externalTransition().from("B").to("A").on("Enter");
+    }
+
+    @After
+    public void teardown() {
+        SquirrelSingletonProvider.getInstance().get(StateMachineTimer.class).shutdown();
+        SquirrelSingletonProvider.getInstance().unregister(StateMachineTimer.class);
+    }
+
+    private TimedStateMachine newStateMachine() {
+        return newStateMachine("A");
+    }
+
+    private TimedStateMachine newStateMachine(String initialState) {
+        TimedStateMachine stateMachine = builder.newUntypedStateMachine(initialState);
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    private void assertTicksStopped(TimedStateMachine stateMachine) throws Exception {
+        int ticks = stateMachine.ticks.get();
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(stateMachine.ticks.get(), equalTo(ticks));
+    }
+
+    @Test
+    public void testTimerDisarmedOnExit() throws Exception {
+        TimedStateMachine stateMachine = newStateMachine();
+        stateMachine.latch = new CountDownLatch(3);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        stateMachine.fire("Leave", 0);
+        assertTicksStopped(stateMachine);
+
+        stateMachine.latch = new CountDownLatch(2);
+        stateMachine.fire("Enter", 0);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void testTimerKeptPerInstance() throws Exception {
+        TimedStateMachine leaving = newStateMachine();
+        TimedStateMachine staying = newStateMachine();
+        leaving.fire("Leave", 0);
+        staying.latch = new CountDownLatch(3);
+        assertThat(staying.latch.await(5, TimeUnit.SECONDS), is(true));
+        assertTicksStopped(leaving);
+        staying.terminate();
+        assertTicksStopped(staying);
+    }
+
+    @Test
+    public void testTimeoutsCascadedThroughLevels() throws Exception {
+        // 1ms tick with 16 buckets per level, so that level spans are 16ms, 256ms and 4096ms
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class,
+                new StateMachineTimerImpl(1, TimeUnit.MILLISECONDS, 16, 3));
+        builder = StateMachineBuilderFactory.create(TimedStateMachine.class);
+        builder.internalTransition().within("A").on("Record").callMethod("record");
+        TimedStateMachine stateMachine = newStateMachine();
+        stateMachine.latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+        stateMachine.fireDelayed("Record", 300, 300, TimeUnit.MILLISECONDS);
+        stateMachine.fireDelayed("Record", 5, 5, TimeUnit.MILLISECONDS);
+        stateMachine.fireDelayed("Record", 50, 50, TimeUnit.MILLISECONDS);
+        Timeout cancelled = stateMachine.fireDelayed("Record", 100, 100, TimeUnit.MILLISECONDS);
+        assertThat(cancelled.cancel(), is(true));
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime()-start, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(300)));
+        assertThat(stateMachine.processed, equalTo((List<Integer>)Lists.newArrayList(5, 50, 300)));
+    }
+
+    @Test
+    public void testPluggedTimerBackend() throws Exception {
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class, new ScheduledExecutorTimer());
+        TimedStateMachine stateMachine = newStateMachine();
+        stateMachine.latch = new CountDownLatch(3);
+        assertThat(stateMachine.latch.await(5, TimeUnit.SECONDS), is(true));
+        stateMachine.fire("Leave", 0);
+        assertTicksStopped(stateMachine);
+    }
+
+    @Test
+    public void testPendingTimerRearmedAfterLoad() throws Exception {
+        builder = StateMachineBuilderFactory.create(TimedStateMachine.class);
+        builder.defineTimedState("W", 200, 0, "Wake", null);
+        builder.externalTransition().from("W").to("X").on("Wake").callMethod("record");
+        long startTime = System.currentTimeMillis();
+        TimedStateMachine stateMachine = newStateMachine("W");
+        StateMachineData.Reader<UntypedStateMachine, Object, Object, Object> savedData = stateMachine.dumpSavedData();
+        stateMachine.terminate();
+        assertThat(savedData.pendingTimerStates(), contains((Object)"W"));
+        PendingTimer timer = savedData.pendingTimerOf("W");
+        assertThat(timer.getDueTime(), greaterThanOrEqualTo(startTime+200));
+        assertThat(timer.getDueTime(), lessThanOrEqualTo(System.currentTimeMillis()+200));
+        assertThat(timer.getPeriod(), equalTo(0L));
+
+        BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object> serializer =
+                new BinaryStateMachineDataSerializer<UntypedStateMachine, Object, Object, Object>();
+        savedData = serializer.fromByteArray(serializer.toByteArray(savedData));
+        assertThat(savedData.pendingTimerOf("W"), equalTo(timer));
+
+        TimedStateMachine restored = builder.newUntypedStateMachine("W");
+        restored.loadSavedData(savedData);
+        assertThat(restored.dumpSavedData().pendingTimerOf("W"), notNullValue());
+        assertThat(restored.latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(System.currentTimeMillis(), greaterThanOrEqualTo(timer.getDueTime()));
+        assertThat(restored.getCurrentState(), equalTo((Object)"X"));
+        assertThat(restored.dumpSavedData().pendingTimerStates().isEmpty(), is(true));
+    }
+
+    private int ticksAfterLoad(TimerCatchUpPolicy policy) throws Exception {
+        builder = StateMachineBuilderFactory.create(TimedStateMachine.class);
+        builder.defineTimedState("P", 1000, 1000, "Tick", null);
+        builder.internalTransition().within("P").on("Tick").callMethod("tick");
+        StateMachineData<UntypedStateMachine, Object, Object, Object> savedData =
+                new StateMachineDataImpl<UntypedStateMachine, Object, Object, Object>();
+        TimedStateMachine stateMachine = newStateMachine("P");
+        savedData.dump(stateMachine.dumpSavedData());
+        stateMachine.terminate();
+        // five periods were missed, and next one is due 500 milliseconds later
+        savedData.write().pendingTimerFor("P", new PendingTimer(System.currentTimeMillis()-4500, 1000));
+
+        TimedStateMachine restored = builder.newUntypedStateMachine("P",
+                StateMachineConfiguration.create().setTimerCatchUpPolicy(policy));
+        restored.loadSavedData(savedData.read());
+        TimeUnit.MILLISECONDS.sleep(200);
+        PendingTimer timer = restored.dumpSavedData().pendingTimerOf("P");
+        assertThat(timer.getDueTime()-System.currentTimeMillis(), lessThanOrEqualTo(300L));
+        assertThat(timer.getPeriod(), equalTo(1000L));
+        restored.terminate();
+        return restored.ticks.get();
+    }
+
+    private TimedStateMachine loadMissedTimer(long missedTime) {
+        builder = StateMachineBuilderFactory.create(TimedStateMachine.class);
+        builder.defineTimedState("P", 1000, 1000, "Tick", null);
+        builder.internalTransition().within("P").on("Tick").callMethod("tick");
+        builder.externalTransition().from("P").to("Q").on("Leave");
+        StateMachineData<UntypedStateMachine, Object, Object, Object> savedData =
+                new StateMachineDataImpl<UntypedStateMachine, Object, Object, Object>();
+        TimedStateMachine stateMachine = newStateMachine("P");
+        savedData.dump(stateMachine.dumpSavedData());
+        stateMachine.terminate();
+        savedData.write().pendingTimerFor("P", new PendingTimer(System.currentTimeMillis()-missedTime, 1000));
+        TimedStateMachine restored = builder.newUntypedStateMachine("P",
+                StateMachineConfiguration.create().setTimerCatchUpPolicy(TimerCatchUpPolicy.FIRE_ALL));
+        restored.loadSavedData(savedData.read());
+        return restored;
+    }
+
+    @Test
+    public void testCatchUpFiringsBounded() throws Exception {
+        // one day of missed firings
+        TimedStateMachine stateMachine = loadMissedTimer(TimeUnit.DAYS.toMillis(1));
+        for(int i=0; i<500 && stateMachine.ticks.get()<1000; ++i) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertThat(stateMachine.ticks.get(), equalTo(1000));
+        stateMachine.terminate();
+    }
+
+    @Test
+    public void testCatchUpFiringsCancelledOnExit() throws Exception {
+        // coarse ticks so that catch-up firings are still pending when timed state is exited
+        SquirrelSingletonProvider.getInstance().register(StateMachineTimer.class,
+                new StateMachineTimerImpl(200, TimeUnit.MILLISECONDS, 16, 2));
+        TimedStateMachine stateMachine = loadMissedTimer(4500);
+        stateMachine.fire("Leave", 0);
+        TimeUnit.MILLISECONDS.sleep(500);
+        assertThat(stateMachine.ticks.get(), equalTo(0));
+        assertThat(stateMachine.getCurrentState(), equalTo((Object)"Q"));
+    }
+
+    @Test
+    public void testTimerCatchUpPolicies() throws Exception {
+        assertThat(ticksAfterLoad(TimerCatchUpPolicy.FIRE_ONCE), equalTo(1));
+        assertThat(ticksAfterLoad(TimerCatchUpPolicy.FIRE_ALL), equalTo(5));
+        assertThat(ticksAfterLoad(TimerCatchUpPolicy.SKIP), equalTo(0));
+    }
+}